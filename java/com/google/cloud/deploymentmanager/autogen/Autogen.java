@@ -15,7 +15,8 @@
 package com.google.cloud.deploymentmanager.autogen;
 
 import com.google.auto.value.AutoValue;
-import com.google.cloud.deploymentmanager.autogen.Autogen.Module.TemplateFileSet;
+import com.google.cloud.deploymentmanager.autogen.Autogen.Module.DeploymentManagerTemplates;
+import com.google.cloud.deploymentmanager.autogen.Autogen.Module.TerraformTemplates;
 import com.google.cloud.deploymentmanager.autogen.SoyFunctions.TierTemplateName;
 import com.google.cloud.deploymentmanager.autogen.proto.DeploymentPackageAutogenSpec;
 import com.google.cloud.deploymentmanager.autogen.proto.DeploymentPackageAutogenSpec.DeploymentTool;
@@ -28,25 +29,55 @@ import com.google.cloud.deploymentmanager.autogen.proto.SingleVmDeploymentPackag
 import com.google.cloud.deploymentmanager.autogen.proto.SolutionPackage;
 import com.google.cloud.deploymentmanager.autogen.proto.VmTierSpec;
 import com.google.cloud.deploymentmanager.autogen.soy.TemplateRenderer;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.base.Suppliers;
+import com.google.common.base.Throwables;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Resources;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
 import com.google.inject.AbstractModule;
 import com.google.inject.Inject;
+import com.google.inject.Provider;
 import com.google.inject.Provides;
 import com.google.inject.Singleton;
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 import javax.annotation.Nullable;
 import javax.inject.Qualifier;
 import org.yaml.snakeyaml.DumperOptions;
@@ -68,6 +99,12 @@ public class Autogen {
   private static final String BUNDLED_SHARED_SUPPORT_RESOURCE_PATH =
       BUNDLED_RESOURCE_PATH + "/dm/sharedsupport";
 
+  // Written next to the ahead-of-time compiled templates by TemplateBundleCompiler.
+  static final String PRECOMPILED_DEPLOYMENT_MANAGER_TEMPLATES_FINGERPRINT =
+      "com/google/cloud/deploymentmanager/autogen/compiled_dm_templates.fingerprint";
+  static final String PRECOMPILED_TERRAFORM_TEMPLATES_FINGERPRINT =
+      "com/google/cloud/deploymentmanager/autogen/compiled_tf_templates.fingerprint";
+
   private static final String MEDIA_RESOURCE_PREFIX = "@media/";
   private static final String RESOURCE_PATH_PREFIX = "resources/en-us/";
 
@@ -140,6 +177,26 @@ public class Autogen {
                 }
               });
 
+  private static final Supplier<SolutionPackage> sharedSupportFiles =
+      Suppliers.memoize(
+          () -> {
+            SolutionPackage.Builder builder = SolutionPackage.newBuilder();
+            try {
+              addSharedSupportFiles(PackageSink.forBuilder(builder));
+            } catch (IOException e) {
+              throw new AssertionError("Building a SolutionPackage does no I/O", e);
+            }
+            return builder.build();
+          });
+
+  private static final Supplier<String> generatorFingerprint =
+      Suppliers.memoize(Autogen::computeGeneratorFingerprint);
+
+  private static final byte[] PNG_HEADER = {
+    (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'
+  };
+  private static final byte[] JPEG_HEADER = {(byte) 0xff, (byte) 0xd8, (byte) 0xff};
+
   /**
    * Defines the behavior of autogen wrt shared support files.
    *
@@ -150,6 +207,11 @@ public class Autogen {
   public enum SharedSupportFilesStrategy {
     INCLUDED,
     EXCLUDED,
+    /**
+     * Not included, but listed in {@code SolutionPackage.shared_support_files}, for a single copy
+     * of {@link #getSharedSupportFiles} to be shared by the packages of a batch.
+     */
+    SHARED,
   }
 
   static final class Module extends AbstractModule {
@@ -162,40 +224,149 @@ public class Autogen {
 
     @Retention(RetentionPolicy.RUNTIME)
     @Qualifier
-    @interface TemplateFileSet {}
+    @interface DeploymentManagerTemplates {}
+
+    @Retention(RetentionPolicy.RUNTIME)
+    @Qualifier
+    @interface TerraformTemplates {}
+
+    // Each deployment tool has its own set of templates, compiled or loaded separately on first use
+    // into a SoySauce of its own.
+    @Provides
+    @Singleton
+    @DeploymentManagerTemplates
+    TemplateRenderer.FileSet provideDeploymentManagerFileSet(
+        TemplateRenderer.FileSet.Builder builder) {
+      return addTemplates(builder, DeploymentTool.DEPLOYMENT_MANAGER)
+          .usePrecompiled(PRECOMPILED_DEPLOYMENT_MANAGER_TEMPLATES_FINGERPRINT)
+          .build();
+    }
 
-    // Lists the soy template files to compile.
     @Provides
     @Singleton
-    @TemplateFileSet
-    TemplateRenderer.FileSet provideFileSet(TemplateRenderer.FileSet.Builder builder) {
-      DEPLOYMENT_MANAGER_SOY_FILES.forEach(
-          file -> builder.addContentFromResource(resource("dm/" + file)));
-      TERRAFORM_SOY_FILES.forEach(file -> builder.addContentFromResource(resource("tf/" + file)));
-
-      return builder
-          .addProtoDescriptors(
-              DeploymentPackageAutogenSpecProtos.getDescriptor(),
-              MarketingInfoProtos.getDescriptor())
+    @TerraformTemplates
+    TemplateRenderer.FileSet provideTerraformFileSet(TemplateRenderer.FileSet.Builder builder) {
+      return addTemplates(builder, DeploymentTool.TERRAFORM)
+          .usePrecompiled(PRECOMPILED_TERRAFORM_TEMPLATES_FINGERPRINT)
           .build();
     }
+
+    // Adds the soy template files of a deployment tool. Shared with TemplateBundleCompiler so that
+    // the precompiled bundles are built from exactly the same sources.
+    static TemplateRenderer.FileSet.Builder addTemplates(
+        TemplateRenderer.FileSet.Builder builder, DeploymentTool tool) {
+      switch (tool) {
+        case DEPLOYMENT_MANAGER:
+          DEPLOYMENT_MANAGER_SOY_FILES.forEach(
+              file -> builder.addContentFromResource(resource("dm/" + file)));
+          break;
+        case TERRAFORM:
+          TERRAFORM_SOY_FILES.forEach(
+              file -> builder.addContentFromResource(resource("tf/" + file)));
+          break;
+        default:
+          throw new IllegalArgumentException("Unsupported deployment tool: " + tool);
+      }
+
+      return builder.addProtoDescriptors(
+          DeploymentPackageAutogenSpecProtos.getDescriptor(), MarketingInfoProtos.getDescriptor());
+    }
   }
 
   public static AbstractModule getAutogenModule() {
     return new Module();
   }
 
-  private final TemplateRenderer.FileSet fileSet;
+  private final Provider<TemplateRenderer.FileSet> deploymentManagerFileSet;
+  private final Provider<TemplateRenderer.FileSet> terraformFileSet;
+  private final LongAdder soyFunctionCacheHits = new LongAdder();
+  private final LongAdder soyFunctionCacheMisses = new LongAdder();
+  private final LongAdder specIndexHits = new LongAdder();
 
   @Inject
-  Autogen(@TemplateFileSet TemplateRenderer.FileSet fileSet) {
-    this.fileSet = fileSet;
+  Autogen(
+      @DeploymentManagerTemplates Provider<TemplateRenderer.FileSet> deploymentManagerFileSet,
+      @TerraformTemplates Provider<TemplateRenderer.FileSet> terraformFileSet) {
+    this.deploymentManagerFileSet = deploymentManagerFileSet;
+    this.terraformFileSet = terraformFileSet;
+  }
+
+  /**
+   * Loads or compiles the templates of all deployment tools, which otherwise happens when the first
+   * package of each tool is generated. Lets long running processes pay that cost upfront.
+   */
+  public void warmUp() {
+    deploymentManagerFileSet.get();
+    terraformFileSet.get();
   }
 
   /** Generates the deployment package. */
   public SolutionPackage generateDeploymentPackage(
       DeploymentPackageInput input, SharedSupportFilesStrategy sharedSupportFilesStrategy) {
-    validate(input);
+    return generateDeploymentPackage(
+        input, sharedSupportFilesStrategy, MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Generates the deployment package, rendering its files concurrently on the given executor.
+   *
+   * <p>The files are in the same order as the ones generated on the calling thread. The calling
+   * thread blocks until all files are rendered, so it should not be one of the executor's threads
+   * if the executor has a bounded number of threads.
+   */
+  public SolutionPackage generateDeploymentPackage(
+      DeploymentPackageInput input,
+      SharedSupportFilesStrategy sharedSupportFilesStrategy,
+      Executor executor) {
+    SolutionPackage.Builder builder = SolutionPackage.newBuilder();
+    try {
+      generate(input, sharedSupportFilesStrategy, PackageSink.forBuilder(builder), executor);
+    } catch (IOException e) {
+      throw new AssertionError("Building a SolutionPackage does no I/O", e);
+    }
+    return builder.build();
+  }
+
+  /**
+   * Generates the deployment package into the given sink. Each file is rendered on the calling
+   * thread straight into the sink, so no file content has to be held in memory as a whole.
+   *
+   * <p>The sink receives the same files, in the same order, as the package returned by {@link
+   * #generateDeploymentPackage(DeploymentPackageInput, SharedSupportFilesStrategy)}.
+   */
+  public void generateDeploymentPackage(
+      DeploymentPackageInput input,
+      SharedSupportFilesStrategy sharedSupportFilesStrategy,
+      PackageSink sink)
+      throws IOException {
+    generate(input, sharedSupportFilesStrategy, sink, null);
+  }
+
+  /**
+   * Generates the deployment package into the given sink, rendering its files concurrently on the
+   * given executor. Each file is handed to the sink on the calling thread once it's rendered, in
+   * the same order as without an executor.
+   */
+  public void generateDeploymentPackage(
+      DeploymentPackageInput input,
+      SharedSupportFilesStrategy sharedSupportFilesStrategy,
+      PackageSink sink,
+      Executor executor)
+      throws IOException {
+    generate(input, sharedSupportFilesStrategy, sink, executor);
+  }
+
+  /**
+   * Generates the deployment package into the sink, rendering its files concurrently on the
+   * executor, or straight into the sink on the calling thread if there's no executor.
+   */
+  private void generate(
+      DeploymentPackageInput input,
+      SharedSupportFilesStrategy sharedSupportFilesStrategy,
+      PackageSink sink,
+      @Nullable Executor executor)
+      throws IOException {
+    Map<String, Image.RawImage.ContentType> localImageTypes = validate(input);
     DeploymentPackageInput.Builder inputBuilder = input.toBuilder();
     DeploymentPackageAutogenSpec.Builder specBuilder = inputBuilder.getSpecBuilder();
     switch (specBuilder.getSpecCase()) {
@@ -204,20 +375,120 @@ public class Autogen {
           SpecDefaults.fillInMissingDefaults(specBuilder.getSingleVmBuilder());
           DeploymentPackageInput built = inputBuilder.build();
           SpecValidations.validate(built.getSpec().getSingleVm());
-          return buildSingleVm(built, sharedSupportFilesStrategy);
+          buildSingleVm(built, localImageTypes, sharedSupportFilesStrategy, sink, executor);
+          return;
         }
       case MULTI_VM:
         {
           SpecDefaults.fillInMissingDefaults(specBuilder.getMultiVmBuilder());
           DeploymentPackageInput built = inputBuilder.build();
           SpecValidations.validate(built.getSpec().getMultiVm());
-          return buildMultiVm(built, sharedSupportFilesStrategy);
+          buildMultiVm(built, localImageTypes, sharedSupportFilesStrategy, sink, executor);
+          return;
         }
       default:
         throw new IllegalArgumentException("No valid autogen spec is specified");
     }
   }
 
+  /**
+   * Returns the shared support files, which packages generated with {@link
+   * SharedSupportFilesStrategy#SHARED} reference by path instead of including them.
+   */
+  public static SolutionPackage getSharedSupportFiles() {
+    return sharedSupportFiles.get();
+  }
+
+  /**
+   * Returns the package with the binary file contents encoded with Base64 into the text contents,
+   * as generated before {@code binary_content} existed, for consumers not supporting it yet.
+   */
+  public static SolutionPackage encodeBinaryContentWithBase64(SolutionPackage solutionPackage) {
+    SolutionPackage.Builder builder = solutionPackage.toBuilder();
+    for (SolutionPackage.File.Builder file : builder.getFilesBuilderList()) {
+      if (file.getSourceCase() == SolutionPackage.File.SourceCase.BINARY_CONTENT) {
+        file.setContent(BaseEncoding.base64().encode(file.getBinaryContent().toByteArray()))
+            .clearSource();
+      }
+    }
+    return builder.build();
+  }
+
+  /**
+   * Returns the package with the contents of the files referencing a local source file read into
+   * the package, for consumers not having access to the local files.
+   */
+  public static SolutionPackage inlineSourceFiles(SolutionPackage solutionPackage) {
+    SolutionPackage.Builder builder = solutionPackage.toBuilder();
+    for (SolutionPackage.File.Builder file : builder.getFilesBuilderList()) {
+      if (file.getSourceCase() == SolutionPackage.File.SourceCase.SOURCE_PATH) {
+        try {
+          Path sourcePath = Paths.get(file.getSourcePath());
+          file.setBinaryContent(ByteString.copyFrom(Files.readAllBytes(sourcePath)));
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+    }
+    return builder.build();
+  }
+
+  /**
+   * Returns a fingerprint of what determines the generated packages besides their input: the
+   * bundled templates and shared support files, and the version of the code generating them.
+   */
+  public static String getGeneratorFingerprint() {
+    return generatorFingerprint.get();
+  }
+
+  private static String computeGeneratorFingerprint() {
+    List<String> resources = new ArrayList<>();
+    DEPLOYMENT_MANAGER_SOY_FILES.forEach(file -> resources.add(resource("dm/" + file)));
+    TERRAFORM_SOY_FILES.forEach(file -> resources.add(resource("tf/" + file)));
+    SINGLE_VM_SHARED_SUPPORT_FILES.forEach(file -> resources.add(sharedSupportResource(file)));
+    Hasher hasher = Hashing.sha256().newHasher();
+    try {
+      for (String resource : resources) {
+        hasher.putString(resource, StandardCharsets.UTF_8).putByte((byte) 0);
+        Resources.asByteSource(Resources.getResource(resource))
+            .copyTo(Funnels.asOutputStream(hasher));
+      }
+      // Identifies the precompiled templates, when bundled, by the sources they were compiled from.
+      for (String fingerprint :
+          Arrays.asList(
+              PRECOMPILED_DEPLOYMENT_MANAGER_TEMPLATES_FINGERPRINT,
+              PRECOMPILED_TERRAFORM_TEMPLATES_FINGERPRINT)) {
+        URL url = Autogen.class.getClassLoader().getResource(fingerprint);
+        if (url != null) {
+          hasher.putString(fingerprint, StandardCharsets.UTF_8).putByte((byte) 0);
+          Resources.asByteSource(url).copyTo(Funnels.asOutputStream(hasher));
+        }
+      }
+      CodeFingerprint.putCodeVersion(Autogen.class, hasher);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return hasher.hash().toString();
+  }
+
+  /**
+   * Returns how often pure soy functions were called again with the same arguments within a
+   * package, and their results reused, across all packages generated so far. Only the hit and
+   * miss counts are recorded.
+   */
+  public CacheStats getSoyFunctionCacheStats() {
+    return new CacheStats(soyFunctionCacheHits.sum(), soyFunctionCacheMisses.sum(), 0, 0, 0, 0);
+  }
+
+  /**
+   * Returns how many soy function calls were answered by the {@link SpecIndex} of their package
+   * rather than by scanning the spec, across all packages generated so far.
+   */
+  @VisibleForTesting
+  long getSpecIndexHitCount() {
+    return specIndexHits.sum();
+  }
+
   /** Holds information about various images in the deployment package. */
   @AutoValue
   abstract static class ImageInfo {
@@ -245,266 +516,278 @@ public class Autogen {
   }
 
   /** Builds the deployment package for {@link SingleVmDeploymentPackageSpec} */
-  private SolutionPackage buildSingleVm(
-      DeploymentPackageInput input, SharedSupportFilesStrategy sharedSupportFilesStrategy) {
+  private void buildSingleVm(
+      DeploymentPackageInput input,
+      Map<String, Image.RawImage.ContentType> localImageTypes,
+      SharedSupportFilesStrategy sharedSupportFilesStrategy,
+      PackageSink sink,
+      @Nullable Executor executor)
+      throws IOException {
     switch (input.getSpec().getDeploymentTool()) {
       case DEPLOYMENT_TOOL_UNSPECIFIED:
       case DEPLOYMENT_MANAGER:
-        return buildDmSingleVm(input, sharedSupportFilesStrategy);
+        buildDmSingleVm(input, localImageTypes, sharedSupportFilesStrategy, sink, executor);
+        return;
       case TERRAFORM:
-        return buildTerraformSingleVm(input);
+        buildTerraformSingleVm(input, sink, executor);
+        return;
       case UNRECOGNIZED:
         throw new AssertionError("unrecognized deployment tool");
     }
     throw new AssertionError("unreachable");
   }
 
-  private SolutionPackage buildDmSingleVm(
-      DeploymentPackageInput input, SharedSupportFilesStrategy sharedSupportFilesStrategy) {
-    SolutionPackage.Builder builder = SolutionPackage.newBuilder();
+  private void buildDmSingleVm(
+      DeploymentPackageInput input,
+      Map<String, Image.RawImage.ContentType> localImageTypes,
+      SharedSupportFilesStrategy sharedSupportFilesStrategy,
+      PackageSink sink,
+      @Nullable Executor executor)
+      throws IOException {
+    RenderedFiles files = new RenderedFiles(deploymentManagerFileSet.get(), newSpecIndex(input));
     String solutionId = input.getSolutionId();
-    ImageInfo imageInfo = generateImages(input, builder);
+    ImageInfo imageInfo = generateImages(input, localImageTypes, sink);
     Map<String, Object> params = makeSingleVmParams(input, imageInfo);
 
-    builder
-        .addFiles(
-            SolutionPackage.File.newBuilder()
-                .setPath(solutionId + ".jinja")
-                .setContent(fileSet.newRenderer("vm.single.jinja.main").setData(params).render()))
-        .addFiles(
-            SolutionPackage.File.newBuilder()
-                .setPath(solutionId + ".jinja.schema")
-                .setContent(fileSet.newRenderer("vm.single.schema.main").setData(params).render()))
-        .addFiles(
-            SolutionPackage.File.newBuilder()
-                .setPath(solutionId + ".jinja.display")
-                .setContent(fileSet.newRenderer("vm.single.display.main").setData(params).render()))
-        .addFiles(
-            SolutionPackage.File.newBuilder()
-                .setPath("test_config.yaml")
-                .setContent(
-                    fileSet.newRenderer("vm.single.test_config.main").setData(params).render()))
-        .addFiles(
-            SolutionPackage.File.newBuilder()
-                .setPath("c2d_deployment_configuration.json")
-                .setContent(
-                    fileSet
-                        .newRenderer("vm.single.c2d_deployment_configuration.main")
-                        .setData(params)
-                        .render()));
-
-    if (sharedSupportFilesStrategy == SharedSupportFilesStrategy.INCLUDED) {
-      for (String filename : SINGLE_VM_SHARED_SUPPORT_FILES) {
-        try {
-          builder
-              .addFilesBuilder()
-              .setPath(filename)
-              .setContent(sharedSupportFilesCache.get(filename));
-        } catch (ExecutionException e) {
-          throw new RuntimeException(e);
-        }
-      }
-    }
-    return builder.build();
+    files
+        .add(solutionId + ".jinja", "vm.single.jinja.main", params)
+        .add(solutionId + ".jinja.schema", "vm.single.schema.main", params)
+        .add(solutionId + ".jinja.display", "vm.single.display.main", params)
+        .add("test_config.yaml", "vm.single.test_config.main", params)
+        .add(
+            "c2d_deployment_configuration.json",
+            "vm.single.c2d_deployment_configuration.main",
+            params)
+        .addTo(sink, executor);
+
+    addSharedSupportFiles(sink, sharedSupportFilesStrategy);
   }
 
-  private SolutionPackage buildTerraformSingleVm(DeploymentPackageInput input) {
-    SolutionPackage.Builder builder = SolutionPackage.newBuilder();
+  private void buildTerraformSingleVm(
+      DeploymentPackageInput input, PackageSink sink, @Nullable Executor executor)
+      throws IOException {
+    RenderedFiles files = new RenderedFiles(terraformFileSet.get(), newSpecIndex(input));
     ImageInfo imageInfo = ImageInfo.builder().build();
     ImmutableMap<String, Object> params = makeSingleVmParams(input, imageInfo);
 
-    builder
-        .addFiles(
-            SolutionPackage.File.newBuilder()
-                .setPath("README.md")
-                .setContent(fileSet.newRenderer("vm.single.readme.main").setData(params).render()))
-        .addFiles(
-            SolutionPackage.File.newBuilder()
-                .setPath("main.tf")
-                .setContent(fileSet.newRenderer("vm.single.tf.main").setData(params).render()))
-        .addFiles(
-            SolutionPackage.File.newBuilder()
-                .setPath("variables.tf")
-                .setContent(
-                    fileSet.newRenderer("vm.single.variables.main").setData(params).render()))
-        .addFiles(
-            SolutionPackage.File.newBuilder()
-                .setPath("marketplace_test.tfvars")
-                .setContent(fileSet.newRenderer("vm.single.tfvars.main").setData(params).render()))
-        .addFiles(
-            SolutionPackage.File.newBuilder()
-                .setPath("outputs.tf")
-                .setContent(fileSet.newRenderer("vm.single.outputs.main").setData(params).render()))
-        .addFiles(
-            SolutionPackage.File.newBuilder()
-                .setPath("metadata.yaml")
-                .setContent(
-                    fileSet.newRenderer("vm.single.metadata.main").setData(params).render()))
-        .addFiles(
-            SolutionPackage.File.newBuilder()
-                .setPath("metadata.display.yaml")
-                .setContent(
-                    fileSet
-                        .newRenderer("vm.single.metadata.display.main")
-                        .setData(params)
-                        .render()));
-
-    return builder.build();
+    files
+        .add("README.md", "vm.single.readme.main", params)
+        .add("main.tf", "vm.single.tf.main", params)
+        .add("variables.tf", "vm.single.variables.main", params)
+        .add("marketplace_test.tfvars", "vm.single.tfvars.main", params)
+        .add("outputs.tf", "vm.single.outputs.main", params)
+        .add("metadata.yaml", "vm.single.metadata.main", params)
+        .add("metadata.display.yaml", "vm.single.metadata.display.main", params)
+        .addTo(sink, executor);
   }
 
   /** Builds the deployment package for {@link MultiVmDeploymentPackageSpec} */
-  private SolutionPackage buildMultiVm(
-      DeploymentPackageInput input, SharedSupportFilesStrategy sharedSupportFilesStrategy) {
+  private void buildMultiVm(
+      DeploymentPackageInput input,
+      Map<String, Image.RawImage.ContentType> localImageTypes,
+      SharedSupportFilesStrategy sharedSupportFilesStrategy,
+      PackageSink sink,
+      @Nullable Executor executor)
+      throws IOException {
     switch (input.getSpec().getDeploymentTool()) {
       case DEPLOYMENT_TOOL_UNSPECIFIED:
       case DEPLOYMENT_MANAGER:
-        return buildDmMultiVm(input, sharedSupportFilesStrategy);
+        buildDmMultiVm(input, localImageTypes, sharedSupportFilesStrategy, sink, executor);
+        return;
       case TERRAFORM:
-        return buildTerraformMultiVm(input);
+        buildTerraformMultiVm(input, sink, executor);
+        return;
       case UNRECOGNIZED:
         throw new AssertionError("unrecognized deployment tool");
     }
     throw new AssertionError("unreachable");
   }
 
-  private SolutionPackage buildDmMultiVm(
-      DeploymentPackageInput input, SharedSupportFilesStrategy sharedSupportFilesStrategy) {
-    SolutionPackage.Builder builder = SolutionPackage.newBuilder();
+  private void buildDmMultiVm(
+      DeploymentPackageInput input,
+      Map<String, Image.RawImage.ContentType> localImageTypes,
+      SharedSupportFilesStrategy sharedSupportFilesStrategy,
+      PackageSink sink,
+      @Nullable Executor executor)
+      throws IOException {
+    RenderedFiles files = new RenderedFiles(deploymentManagerFileSet.get(), newSpecIndex(input));
     String solutionId = input.getSolutionId();
-    ImageInfo imageInfo = generateImages(input, builder);
+    ImageInfo imageInfo = generateImages(input, localImageTypes, sink);
     MultiVmDeploymentPackageSpec spec = input.getSpec().getMultiVm();
     ImmutableMap<String, Object> params = makeMultiVmParams(input, imageInfo);
 
     for (VmTierSpec tierSpec : spec.getTiersList()) {
       ImmutableMap<String, Object> tierParams = ImmutableMap.of(
           "spec", tierSpec, "packageSpec", spec);
-      builder
-          .addFiles(
-              SolutionPackage.File.newBuilder()
-                  .setPath(TierTemplateName.apply(tierSpec))
-                  .setContent(
-                      fileSet.newRenderer("vm.multi.tierJinja.main").setData(tierParams).render()))
-          .addFiles(
-              SolutionPackage.File.newBuilder()
-                  .setPath(TierTemplateName.apply(tierSpec) + ".schema")
-                  .setContent(
-                      fileSet
-                          .newRenderer("vm.multi.tierSchema.main")
-                          .setData(tierParams)
-                          .render()));
-    }
-    builder
-        .addFiles(
-            SolutionPackage.File.newBuilder()
-                .setPath(solutionId + ".jinja")
-                .setContent(fileSet.newRenderer("vm.multi.jinja.main").setData(params).render()))
-        .addFiles(
-            SolutionPackage.File.newBuilder()
-                .setPath(solutionId + ".jinja.schema")
-                .setContent(fileSet.newRenderer("vm.multi.schema.main").setData(params).render()))
-        .addFiles(
-            SolutionPackage.File.newBuilder()
-                .setPath(solutionId + ".jinja.display")
-                .setContent(fileSet.newRenderer("vm.multi.display.main").setData(params).render()))
-        .addFiles(
-            SolutionPackage.File.newBuilder()
-                .setPath("test_config.yaml")
-                .setContent(
-                    fileSet.newRenderer("vm.multi.test_config.main").setData(params).render()))
-        .addFiles(
-            SolutionPackage.File.newBuilder()
-                .setPath("c2d_deployment_configuration.json")
-                .setContent(
-                    fileSet
-                        .newRenderer("vm.multi.c2d_deployment_configuration.main")
-                        .setData(params)
-                        .render()));
-
-    if (sharedSupportFilesStrategy == SharedSupportFilesStrategy.INCLUDED) {
-      for (String filename : SINGLE_VM_SHARED_SUPPORT_FILES) {
-        try {
-          builder
-              .addFilesBuilder()
-              .setPath(filename)
-              .setContent(sharedSupportFilesCache.get(filename));
-        } catch (ExecutionException e) {
-          throw new RuntimeException(e);
-        }
-      }
+      files
+          .add(TierTemplateName.apply(tierSpec), "vm.multi.tierJinja.main", tierParams)
+          .add(
+              TierTemplateName.apply(tierSpec) + ".schema", "vm.multi.tierSchema.main", tierParams);
     }
-    return builder.build();
+    files
+        .add(solutionId + ".jinja", "vm.multi.jinja.main", params)
+        .add(solutionId + ".jinja.schema", "vm.multi.schema.main", params)
+        .add(solutionId + ".jinja.display", "vm.multi.display.main", params)
+        .add("test_config.yaml", "vm.multi.test_config.main", params)
+        .add(
+            "c2d_deployment_configuration.json",
+            "vm.multi.c2d_deployment_configuration.main",
+            params)
+        .addTo(sink, executor);
+
+    addSharedSupportFiles(sink, sharedSupportFilesStrategy);
   }
 
-  private SolutionPackage buildTerraformMultiVm(DeploymentPackageInput input) {
-    SolutionPackage.Builder builder = SolutionPackage.newBuilder();
+  private void buildTerraformMultiVm(
+      DeploymentPackageInput input, PackageSink sink, @Nullable Executor executor)
+      throws IOException {
+    RenderedFiles files = new RenderedFiles(terraformFileSet.get(), newSpecIndex(input));
     ImageInfo imageInfo = ImageInfo.builder().build();
     ImmutableMap<String, Object> params = makeMultiVmParams(input, imageInfo);
     MultiVmDeploymentPackageSpec spec = input.getSpec().getMultiVm();
     for (VmTierSpec tierSpec : spec.getTiersList()) {
       ImmutableMap<String, Object> tierParams = ImmutableMap.of(
           "spec", tierSpec, "packageSpec", spec);
-      builder
-          .addFiles(
-              SolutionPackage.File.newBuilder()
-                  .setPath(String.format("modules/%s/main.tf", tierSpec.getName()))
-                  .setContent(
-                      fileSet.newRenderer("vm.multi.tierTf.main").setData(tierParams).render()))
-          .addFiles(
-              SolutionPackage.File.newBuilder()
-                  .setPath(String.format("modules/%s/variables.tf", tierSpec.getName()))
-                  .setContent(
-                      fileSet
-                          .newRenderer("vm.multi.tier.variables.main")
-                          .setData(tierParams)
-                          .render()))
-          .addFiles(
-              SolutionPackage.File.newBuilder()
-                  .setPath(String.format("modules/%s/outputs.tf", tierSpec.getName()))
-                  .setContent(
-                      fileSet
-                          .newRenderer("vm.multi.tier.outputs.main")
-                          .setData(tierParams)
-                          .render()));
-    }
-
-    builder
-        .addFiles(
-            SolutionPackage.File.newBuilder()
-                .setPath("README.md")
-                .setContent(fileSet.newRenderer("vm.multi.readme.main").setData(params).render()))
-        .addFiles(
-            SolutionPackage.File.newBuilder()
-                .setPath("main.tf")
-                .setContent(fileSet.newRenderer("vm.multi.tf.main").setData(params).render()))
-        .addFiles(
-            SolutionPackage.File.newBuilder()
-                .setPath("variables.tf")
-                .setContent(
-                    fileSet.newRenderer("vm.multi.variables.main").setData(params).render()))
-        .addFiles(
-            SolutionPackage.File.newBuilder()
-                .setPath("outputs.tf")
-                .setContent(fileSet.newRenderer("vm.multi.outputs.main").setData(params).render()))
-        .addFiles(
-            SolutionPackage.File.newBuilder()
-                .setPath("marketplace_test.tfvars")
-                .setContent(fileSet.newRenderer("vm.multi.tfvars.main").setData(params).render()))
-        .addFiles(
-            SolutionPackage.File.newBuilder()
-                .setPath("metadata.yaml")
-                .setContent(fileSet.newRenderer("vm.multi.metadata.main").setData(params).render()))
-        .addFiles(
-            SolutionPackage.File.newBuilder()
-                .setPath("metadata.display.yaml")
-                .setContent(
-                    fileSet
-                        .newRenderer("vm.multi.metadata.display.main")
-                        .setData(params)
-                        .render()));
-    return builder.build();
+      files
+          .add(
+              String.format("modules/%s/main.tf", tierSpec.getName()),
+              "vm.multi.tierTf.main",
+              tierParams)
+          .add(
+              String.format("modules/%s/variables.tf", tierSpec.getName()),
+              "vm.multi.tier.variables.main",
+              tierParams)
+          .add(
+              String.format("modules/%s/outputs.tf", tierSpec.getName()),
+              "vm.multi.tier.outputs.main",
+              tierParams);
+    }
+
+    files
+        .add("README.md", "vm.multi.readme.main", params)
+        .add("main.tf", "vm.multi.tf.main", params)
+        .add("variables.tf", "vm.multi.variables.main", params)
+        .add("outputs.tf", "vm.multi.outputs.main", params)
+        .add("marketplace_test.tfvars", "vm.multi.tfvars.main", params)
+        .add("metadata.yaml", "vm.multi.metadata.main", params)
+        .add("metadata.display.yaml", "vm.multi.metadata.display.main", params)
+        .addTo(sink, executor);
+  }
+
+  private SpecIndex newSpecIndex(DeploymentPackageInput input) {
+    return SpecIndex.of(
+        input.getSpec(),
+        new SoyFunctionCache(soyFunctionCacheHits, soyFunctionCacheMisses),
+        specIndexHits);
   }
 
-  private void validate(DeploymentPackageInput input) {
+  private static void addSharedSupportFiles(
+      PackageSink sink, SharedSupportFilesStrategy sharedSupportFilesStrategy)
+      throws IOException {
+    switch (sharedSupportFilesStrategy) {
+      case INCLUDED:
+        addSharedSupportFiles(sink);
+        break;
+      case SHARED:
+        for (String filename : SINGLE_VM_SHARED_SUPPORT_FILES) {
+          sink.addSharedSupportFile(filename);
+        }
+        break;
+      case EXCLUDED:
+        break;
+    }
+  }
+
+  private static void addSharedSupportFiles(PackageSink sink) throws IOException {
+    for (String filename : SINGLE_VM_SHARED_SUPPORT_FILES) {
+      String content;
+      try {
+        content = sharedSupportFilesCache.get(filename);
+      } catch (ExecutionException e) {
+        throw new RuntimeException(e);
+      }
+      sink.addTextFile(filename, content);
+    }
+  }
+
+  /**
+   * Files of a deployment package that are rendered from templates.
+   *
+   * <p>Every render only reads its own immutable data and the shared {@link SpecIndex}, so the
+   * renders can run concurrently. The files are still added to the package in the order they were
+   * declared.
+   */
+  private static final class RenderedFiles {
+    private final TemplateRenderer.FileSet fileSet;
+    private final SpecIndex specIndex;
+    private final List<String> paths = new ArrayList<>();
+    private final List<TemplateRenderer> renderers = new ArrayList<>();
+
+    RenderedFiles(TemplateRenderer.FileSet fileSet, SpecIndex specIndex) {
+      this.fileSet = fileSet;
+      this.specIndex = specIndex;
+    }
+
+    @CanIgnoreReturnValue
+    RenderedFiles add(String path, String templateName, Map<String, Object> data) {
+      paths.add(path);
+      renderers.add(fileSet.newRenderer(templateName).setData(data));
+      return this;
+    }
+
+    /**
+     * Renders all files on the executor and adds them to the sink, in declaration order. Without
+     * an executor, each file is rendered on the calling thread straight into the sink instead.
+     */
+    void addTo(PackageSink sink, @Nullable Executor executor) throws IOException {
+      if (executor == null) {
+        for (int i = 0; i < paths.size(); i++) {
+          try (Writer writer = sink.addTextFile(paths.get(i))) {
+            renderTo(renderers.get(i), writer);
+          }
+        }
+        return;
+      }
+      List<CompletableFuture<String>> renders = new ArrayList<>(renderers.size());
+      for (TemplateRenderer renderer : renderers) {
+        renders.add(
+            CompletableFuture.supplyAsync(() -> specIndex.render(renderer::render), executor));
+      }
+      try {
+        for (int i = 0; i < renders.size(); i++) {
+          sink.addTextFile(paths.get(i), renders.get(i).join());
+        }
+      } catch (CompletionException e) {
+        Throwables.throwIfUnchecked(e.getCause());
+        throw new RuntimeException(e.getCause());
+      } finally {
+        // Only has an effect if a render or the sink failed, leaving renders outstanding.
+        renders.forEach(render -> render.cancel(false));
+      }
+    }
+
+    private void renderTo(TemplateRenderer renderer, Writer writer) throws IOException {
+      try {
+        specIndex.render(
+            () -> {
+              try {
+                renderer.renderTo(writer);
+                return null;
+              } catch (IOException e) {
+                throw new UncheckedIOException(e);
+              }
+            });
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+    }
+  }
+
+  /**
+   * Validates the input, returning the content types of its local image files by path, which are
+   * only read once.
+   */
+  private Map<String, Image.RawImage.ContentType> validate(DeploymentPackageInput input) {
     Preconditions.checkArgument(!input.getSolutionId().isEmpty(), "solution_id is required");
     Preconditions.checkArgument(!input.getPartnerId().isEmpty(), "partner_id is required");
     Preconditions.checkArgument(input.hasSpec(), "spec is required");
@@ -512,18 +795,20 @@ public class Autogen {
       Preconditions.checkArgument(
           !input.getSolutionInfo().getName().isEmpty(), "name in solution info is required");
     }
+    Map<String, Image.RawImage.ContentType> localImageTypes = new HashMap<>();
     if (input.hasIcon()) {
-      validate(input.getIcon());
+      validate(input.getIcon(), localImageTypes);
     }
     if (input.hasLogo()) {
-      validate(input.getLogo());
+      validate(input.getLogo(), localImageTypes);
     }
     if (input.hasArchitectureDiagram()) {
-      validate(input.getArchitectureDiagram());
+      validate(input.getArchitectureDiagram(), localImageTypes);
     }
     if (input.getSpec().getDeploymentTool().equals(DeploymentTool.TERRAFORM)) {
       validateTerraformAutogen(input.getSpec());
     }
+    return localImageTypes;
   }
 
   private void validateTerraformAutogen(DeploymentPackageAutogenSpec spec) {
@@ -539,24 +824,57 @@ public class Autogen {
     }
   }
 
-  private void validate(Image image) {
-    Preconditions.checkArgument(image.hasRaw(), "Image raw bytes are required");
-    Preconditions.checkArgument(
-        !image.getRaw().getContent().isEmpty(), "Raw image content is required");
-    Preconditions.checkArgument(
-        image.getRaw().getContentTypeValue() > 0, "Raw image content type is required");
+  private void validate(Image image, Map<String, Image.RawImage.ContentType> localImageTypes) {
+    switch (image.getSourceCase()) {
+      case RAW:
+        Preconditions.checkArgument(
+            !image.getRaw().getContent().isEmpty(), "Raw image content is required");
+        Preconditions.checkArgument(
+            image.getRaw().getContentTypeValue() > 0, "Raw image content type is required");
+        break;
+      case LOCAL_FILE:
+        localImageTypes.computeIfAbsent(image.getLocalFile(), Autogen::sniffContentType);
+        break;
+      default:
+        throw new IllegalArgumentException("Image raw bytes or local file are required");
+    }
+  }
+
+  // Only reads the header of the file, the image itself is copied into the package when written.
+  private static Image.RawImage.ContentType sniffContentType(String localFile) {
+    byte[] header = new byte[PNG_HEADER.length];
+    int length;
+    try (InputStream stream = Files.newInputStream(Paths.get(localFile))) {
+      length = ByteStreams.read(stream, header, 0, header.length);
+    } catch (IOException | InvalidPathException e) {
+      throw new IllegalArgumentException("Can't read image file " + localFile, e);
+    }
+    if (startsWith(header, length, PNG_HEADER)) {
+      return Image.RawImage.ContentType.PNG;
+    }
+    if (startsWith(header, length, JPEG_HEADER)) {
+      return Image.RawImage.ContentType.JPEG;
+    }
+    throw new IllegalArgumentException("Image file must be a PNG or JPEG: " + localFile);
+  }
+
+  private static boolean startsWith(byte[] header, int length, byte[] prefix) {
+    return length >= prefix.length
+        && Arrays.equals(header, 0, prefix.length, prefix, 0, prefix.length);
   }
 
   private ImageInfo generateImages(
-      DeploymentPackageInput input, SolutionPackage.Builder builder) {
+      DeploymentPackageInput input,
+      Map<String, Image.RawImage.ContentType> localImageTypes,
+      PackageSink sink)
+      throws IOException {
     String solutionId = input.getSolutionId();
     ImageInfo.Builder imageInfoBuilder = ImageInfo.builder();
     if (input.hasLogo()) {
       Image image = input.getLogo();
       String namePrefix = solutionId + "_store";
-      SolutionPackage.File fileContent = makeImageFileContent(image.getRaw(), namePrefix);
-      String imageName = makeImageName(image.getRaw(), namePrefix);
-      builder.addFiles(fileContent);
+      String imageName = makeImageName(image, localImageTypes, namePrefix);
+      addImageFile(sink, image, imageName);
       imageInfoBuilder.logoPath(MEDIA_RESOURCE_PREFIX + imageName);
       if (!image.getDescription().isEmpty()) {
         imageInfoBuilder.logoDescription(image.getDescription());
@@ -565,9 +883,8 @@ public class Autogen {
     if (input.hasIcon()) {
       Image image = input.getIcon();
       String namePrefix = solutionId + "_small";
-      SolutionPackage.File fileContent = makeImageFileContent(image.getRaw(), namePrefix);
-      String imageName = makeImageName(image.getRaw(), namePrefix);
-      builder.addFiles(fileContent);
+      String imageName = makeImageName(image, localImageTypes, namePrefix);
+      addImageFile(sink, image, imageName);
       imageInfoBuilder.iconPath(MEDIA_RESOURCE_PREFIX + imageName);
       if (!image.getDescription().isEmpty()) {
         imageInfoBuilder.iconDescription(image.getDescription());
@@ -576,9 +893,8 @@ public class Autogen {
     if (input.hasArchitectureDiagram()) {
       Image image = input.getArchitectureDiagram();
       String namePrefix = solutionId + "_architecture_diagram";
-      SolutionPackage.File fileContent = makeImageFileContent(image.getRaw(), namePrefix);
-      String imageName = makeImageName(image.getRaw(), namePrefix);
-      builder.addFiles(fileContent);
+      String imageName = makeImageName(image, localImageTypes, namePrefix);
+      addImageFile(sink, image, imageName);
       imageInfoBuilder.architectureDiagramPath(MEDIA_RESOURCE_PREFIX + imageName);
       if (!image.getDescription().isEmpty()) {
         imageInfoBuilder.architectureDiagramDescription(image.getDescription());
@@ -633,17 +949,23 @@ public class Autogen {
     }
   }
 
-  private SolutionPackage.File makeImageFileContent(
-      Image.RawImage logo, String namePrefix) {
-    String name = makeImageName(logo, namePrefix);
-    return SolutionPackage.File.newBuilder()
-            .setPath(RESOURCE_PATH_PREFIX + name)
-            .setContent(BaseEncoding.base64().encode(logo.getContent().toByteArray()))
-            .build();
+  private static void addImageFile(PackageSink sink, Image image, String name)
+      throws IOException {
+    String path = RESOURCE_PATH_PREFIX + name;
+    if (image.hasRaw()) {
+      sink.addBinaryFile(path, image.getRaw().getContent());
+    } else {
+      sink.addSourceFile(path, image.getLocalFile());
+    }
   }
 
-  private String makeImageName(Image.RawImage logo, String prefix) {
-    switch (logo.getContentType()) {
+  private String makeImageName(
+      Image image, Map<String, Image.RawImage.ContentType> localImageTypes, String prefix) {
+    Image.RawImage.ContentType contentType =
+        image.hasRaw()
+            ? image.getRaw().getContentType()
+            : localImageTypes.get(image.getLocalFile());
+    switch (contentType) {
       case PNG:
         return prefix + ".png";
       case JPEG:
@@ -0,0 +1,95 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.deploymentmanager.autogen;
+
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hasher;
+import com.google.common.io.MoreFiles;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.CodeSource;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Fingerprints the version of the code of a package, for {@link Autogen#getGeneratorFingerprint}.
+ */
+final class CodeFingerprint {
+
+  /**
+   * Puts the version of the code of the given class's package into the hasher.
+   *
+   * <p>Uses the implementation version of the jar the class was loaded from if it has one.
+   * Otherwise uses the files of the package and its subpackages in that jar, by the CRC-32 and size
+   * its central directory records for them, or in that classes directory. The rest of a deploy jar,
+   * which is mostly dependencies, isn't read on every start. Puts nothing if the class wasn't
+   * loaded from a jar or a directory.
+   */
+  static void putCodeVersion(Class<?> clazz, Hasher hasher) throws IOException {
+    String version = clazz.getPackage().getImplementationVersion();
+    if (version != null) {
+      hasher.putString(version, StandardCharsets.UTF_8);
+      return;
+    }
+    CodeSource codeSource = clazz.getProtectionDomain().getCodeSource();
+    if (codeSource == null) {
+      return;
+    }
+    Path location;
+    try {
+      location = Paths.get(codeSource.getLocation().toURI());
+    } catch (URISyntaxException | IllegalArgumentException e) {
+      return;
+    }
+    String packagePath = clazz.getPackage().getName().replace('.', '/') + "/";
+    if (!Files.isDirectory(location)) {
+      try (ZipFile jar = new ZipFile(location.toFile())) {
+        List<ZipEntry> entries =
+            jar.stream()
+                .filter(entry -> !entry.isDirectory() && entry.getName().startsWith(packagePath))
+                .sorted(Comparator.comparing(ZipEntry::getName))
+                .collect(Collectors.toList());
+        for (ZipEntry entry : entries) {
+          hasher.putString(entry.getName(), StandardCharsets.UTF_8).putByte((byte) 0);
+          hasher.putLong(entry.getCrc()).putLong(entry.getSize());
+        }
+      }
+      return;
+    }
+    Path packageDirectory = location.resolve(packagePath);
+    if (!Files.isDirectory(packageDirectory)) {
+      return;
+    }
+    List<Path> files;
+    try (Stream<Path> walk = Files.walk(packageDirectory)) {
+      files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+    }
+    for (Path file : files) {
+      hasher.putString(location.relativize(file).toString(), StandardCharsets.UTF_8);
+      hasher.putByte((byte) 0);
+      MoreFiles.asByteSource(file).copyTo(Funnels.asOutputStream(hasher));
+    }
+  }
+
+  private CodeFingerprint() {}
+}
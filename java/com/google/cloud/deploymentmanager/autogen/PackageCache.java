@@ -0,0 +1,254 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.cloud.deploymentmanager.autogen;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.cloud.deploymentmanager.autogen.Autogen.SharedSupportFilesStrategy;
+import com.google.cloud.deploymentmanager.autogen.proto.DeploymentPackageInput;
+import com.google.cloud.deploymentmanager.autogen.proto.Image;
+import com.google.cloud.deploymentmanager.autogen.proto.SolutionPackage;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Caches generated deployment packages on local disk, across processes.
+ *
+ * <p>Packages are keyed by a hash of the {@link SpecFingerprint} of their input, the content of its
+ * local image files, the shared support files strategy and the {@link
+ * Autogen#getGeneratorFingerprint generator fingerprint}. A hit returns the stored package without
+ * validating or rendering anything. The total size of the stored packages is capped by evicting
+ * the least recently used ones, which the cache tracks through the files' modification times.
+ */
+public final class PackageCache {
+  private static final String FILE_EXTENSION = ".pb";
+
+  private final Autogen autogen;
+  private final Path directory;
+  private final long maxBytes;
+
+  // Sizes of the stored packages by key, from least to most recently used.
+  private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long totalBytes;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * Creates a cache storing packages in the given directory, which is created if needed. Packages
+   * already stored there are reused.
+   */
+  public PackageCache(Autogen autogen, Path directory, long maxBytes) throws IOException {
+    Preconditions.checkArgument(maxBytes > 0, "maxBytes must be positive");
+    this.autogen = autogen;
+    this.directory = Files.createDirectories(directory);
+    this.maxBytes = maxBytes;
+
+    List<Path> files;
+    try (Stream<Path> list = Files.list(directory)) {
+      files =
+          list.filter(file -> file.getFileName().toString().endsWith(FILE_EXTENSION))
+              .sorted(Comparator.comparing(PackageCache::lastModifiedTime))
+              .collect(Collectors.toList());
+    }
+    synchronized (this) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        record(name.substring(0, name.length() - FILE_EXTENSION.length()), Files.size(file));
+      }
+      evictIfNeeded();
+    }
+  }
+
+  /** Returns the stored package for the input, generating and storing it on a miss. */
+  public SolutionPackage generateDeploymentPackage(
+      DeploymentPackageInput input, SharedSupportFilesStrategy sharedSupportFilesStrategy) {
+    return generateDeploymentPackage(
+        input, sharedSupportFilesStrategy, MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Returns the stored package for the input, generating it with {@link
+   * Autogen#generateDeploymentPackage(DeploymentPackageInput, SharedSupportFilesStrategy,
+   * Executor)} and storing it on a miss.
+   */
+  public SolutionPackage generateDeploymentPackage(
+      DeploymentPackageInput input,
+      SharedSupportFilesStrategy sharedSupportFilesStrategy,
+      Executor executor) {
+    String key = key(input, sharedSupportFilesStrategy);
+    SolutionPackage cached = read(key);
+    if (cached != null) {
+      hits.increment();
+      return cached;
+    }
+    misses.increment();
+    SolutionPackage solutionPackage =
+        autogen.generateDeploymentPackage(input, sharedSupportFilesStrategy, executor);
+    write(key, solutionPackage);
+    return solutionPackage;
+  }
+
+  /** Returns the hit, miss and eviction counts of this instance. */
+  public CacheStats stats() {
+    return new CacheStats(hits.sum(), misses.sum(), 0, 0, 0, evictions.sum());
+  }
+
+  @VisibleForTesting
+  static String key(
+      DeploymentPackageInput input, SharedSupportFilesStrategy sharedSupportFilesStrategy) {
+    Hasher hasher =
+        Hashing.sha256()
+            .newHasher()
+            .putString(Autogen.getGeneratorFingerprint(), UTF_8)
+            .putByte((byte) 0)
+            .putString(sharedSupportFilesStrategy.name(), UTF_8)
+            .putByte((byte) 0)
+            .putBytes(SpecFingerprint.of(input).asBytes());
+    for (Image image :
+        Arrays.asList(input.getIcon(), input.getLogo(), input.getArchitectureDiagram())) {
+      if (image.hasLocalFile()) {
+        putLocalFile(hasher, image.getLocalFile());
+      }
+    }
+    return hasher.hash().toString();
+  }
+
+  // Packages only reference local image files by path, but their file names depend on the type of
+  // the image, and generating them checks that they can be read. The content is small enough to be
+  // read on every lookup.
+  private static void putLocalFile(Hasher hasher, String localFile) {
+    hasher.putString(localFile, UTF_8).putByte((byte) 0);
+    byte[] content;
+    try {
+      content = Files.readAllBytes(Paths.get(localFile));
+    } catch (IOException | InvalidPathException e) {
+      // Never stored, generating the package fails.
+      hasher.putInt(-1);
+      return;
+    }
+    hasher.putInt(content.length).putBytes(content);
+  }
+
+  private SolutionPackage read(String key) {
+    Path file = path(key);
+    SolutionPackage solutionPackage;
+    try (InputStream stream = Files.newInputStream(file)) {
+      solutionPackage = SolutionPackage.parseFrom(stream);
+      Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (InvalidProtocolBufferException e) {
+      // Corrupted, regenerated and overwritten by the caller.
+      return null;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    synchronized (this) {
+      // Another process may have stored the package.
+      if (entries.get(key) == null) {
+        record(key, solutionPackage.getSerializedSize());
+        evictIfNeeded();
+      }
+    }
+    return solutionPackage;
+  }
+
+  private void write(String key, SolutionPackage solutionPackage) {
+    Path file = path(key);
+    try {
+      // Written to a temporary file first, so that readers never see a partial package.
+      Path temporaryFile = Files.createTempFile(directory, key, ".tmp");
+      try (OutputStream stream = Files.newOutputStream(temporaryFile)) {
+        solutionPackage.writeTo(stream);
+      }
+      Files.move(
+          temporaryFile,
+          file,
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    synchronized (this) {
+      Long previousSize = entries.remove(key);
+      if (previousSize != null) {
+        totalBytes -= previousSize;
+      }
+      record(key, solutionPackage.getSerializedSize());
+      evictIfNeeded();
+    }
+  }
+
+  private void record(String key, long size) {
+    entries.put(key, size);
+    totalBytes += size;
+  }
+
+  private void evictIfNeeded() {
+    Iterator<Map.Entry<String, Long>> leastRecentlyUsed = entries.entrySet().iterator();
+    while (totalBytes > maxBytes && leastRecentlyUsed.hasNext()) {
+      Map.Entry<String, Long> entry = leastRecentlyUsed.next();
+      try {
+        Files.deleteIfExists(path(entry.getKey()));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      totalBytes -= entry.getValue();
+      leastRecentlyUsed.remove();
+      evictions.increment();
+    }
+  }
+
+  private Path path(String key) {
+    return directory.resolve(key + FILE_EXTENSION);
+  }
+
+  private static FileTime lastModifiedTime(Path file) {
+    try {
+      return Files.getLastModifiedTime(file);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
@@ -0,0 +1,92 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.cloud.deploymentmanager.autogen;
+
+import com.google.cloud.deploymentmanager.autogen.proto.SolutionPackage;
+import com.google.common.base.Preconditions;
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Receives the files of a deployment package as {@link Autogen} generates them, so that they can be
+ * written out without first building the whole {@link SolutionPackage}.
+ *
+ * <p>Files are received one at a time, on the thread calling {@link Autogen}, in the same order as
+ * in the {@link SolutionPackage} generated for the same input: the logo, icon and architecture
+ * diagram images, then the files rendered from templates, then the shared support files. A file
+ * added with {@link #addTextFile(String)} is complete once its writer is closed, which happens
+ * before the next file is added.
+ */
+public interface PackageSink {
+
+  /** Returns a sink adding the files it receives to the given package. */
+  static PackageSink forBuilder(SolutionPackage.Builder builder) {
+    return new SolutionPackageSink(builder);
+  }
+
+  /** Adds a text file, returning the writer its content is rendered into. */
+  Writer addTextFile(String path) throws IOException;
+
+  /** Adds a text file whose content was already rendered. */
+  default void addTextFile(String path, String content) throws IOException {
+    try (Writer writer = addTextFile(path)) {
+      writer.write(content);
+    }
+  }
+
+  /** Adds a binary file whose content is already in memory, such as a raw image. */
+  void addBinaryFile(String path, ByteString content) throws IOException;
+
+  /** Adds a file whose content is to be copied from a local file, such as an image file. */
+  void addSourceFile(String path, String sourcePath) throws IOException;
+
+  /**
+   * Adds a shared support file that the package references without including, see {@link
+   * Autogen.SharedSupportFilesStrategy#SHARED}.
+   */
+  void addSharedSupportFile(String path) throws IOException;
+
+  /**
+   * Adds all files of an already generated package, in order.
+   *
+   * @throws IllegalArgumentException if a file has both text content and a binary source
+   */
+  default void addAll(SolutionPackage solutionPackage) throws IOException {
+    for (SolutionPackage.File file : solutionPackage.getFilesList()) {
+      Preconditions.checkArgument(
+          file.getContent().isEmpty()
+              || file.getSourceCase() == SolutionPackage.File.SourceCase.SOURCE_NOT_SET,
+          "File %s has both content and a %s",
+          file.getPath(),
+          file.getSourceCase());
+      switch (file.getSourceCase()) {
+        case BINARY_CONTENT:
+          addBinaryFile(file.getPath(), file.getBinaryContent());
+          break;
+        case SOURCE_PATH:
+          addSourceFile(file.getPath(), file.getSourcePath());
+          break;
+        case SOURCE_NOT_SET:
+          addTextFile(file.getPath(), file.getContent());
+          break;
+      }
+    }
+    for (String path : solutionPackage.getSharedSupportFilesList()) {
+      addSharedSupportFile(path);
+    }
+  }
+}
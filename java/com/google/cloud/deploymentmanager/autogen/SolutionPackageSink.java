@@ -0,0 +1,61 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.cloud.deploymentmanager.autogen;
+
+import com.google.cloud.deploymentmanager.autogen.proto.SolutionPackage;
+import com.google.protobuf.ByteString;
+import java.io.StringWriter;
+import java.io.Writer;
+
+/** Builds a {@link SolutionPackage} out of the files it receives. */
+final class SolutionPackageSink implements PackageSink {
+  private final SolutionPackage.Builder builder;
+
+  SolutionPackageSink(SolutionPackage.Builder builder) {
+    this.builder = builder;
+  }
+
+  @Override
+  public Writer addTextFile(String path) {
+    SolutionPackage.File.Builder file = builder.addFilesBuilder().setPath(path);
+    return new StringWriter() {
+      @Override
+      public void close() {
+        file.setContent(toString());
+      }
+    };
+  }
+
+  @Override
+  public void addTextFile(String path, String content) {
+    builder.addFilesBuilder().setPath(path).setContent(content);
+  }
+
+  @Override
+  public void addBinaryFile(String path, ByteString content) {
+    builder.addFilesBuilder().setPath(path).setBinaryContent(content);
+  }
+
+  @Override
+  public void addSourceFile(String path, String sourcePath) {
+    builder.addFilesBuilder().setPath(path).setSourcePath(sourcePath);
+  }
+
+  @Override
+  public void addSharedSupportFile(String path) {
+    builder.addSharedSupportFiles(path);
+  }
+}
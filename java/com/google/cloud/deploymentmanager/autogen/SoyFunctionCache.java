@@ -0,0 +1,96 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.cloud.deploymentmanager.autogen;
+
+import com.google.template.soy.data.SoyList;
+import com.google.template.soy.data.SoyProtoValue;
+import com.google.template.soy.data.SoyValue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Memoizes pure soy functions for the generation of one package, whose templates call them with
+ * the same spec protos over and over.
+ *
+ * <p>Calls are keyed by function and arguments: protos by identity, lists by their elements and
+ * other values by equality. Hits and misses are added to counters shared across packages.
+ */
+final class SoyFunctionCache {
+  private final ConcurrentMap<List<Object>, SoyValue> results = new ConcurrentHashMap<>();
+  private final LongAdder hits;
+  private final LongAdder misses;
+
+  SoyFunctionCache(LongAdder hits, LongAdder misses) {
+    this.hits = hits;
+    this.misses = misses;
+  }
+
+  /** Returns the cached result of the function call, computing it on a miss. */
+  SoyValue get(Class<?> function, List<SoyValue> args, Supplier<SoyValue> compute) {
+    List<Object> key = new ArrayList<>(args.size() + 1);
+    key.add(function);
+    for (SoyValue arg : args) {
+      key.add(argumentKey(arg));
+    }
+    SoyValue result = results.get(key);
+    if (result != null) {
+      hits.increment();
+      return result;
+    }
+    misses.increment();
+    // Not computed within the map, as functions can call other functions. Concurrent renders may
+    // compute the same result twice, which is harmless.
+    result = compute.get();
+    SoyValue previous = results.putIfAbsent(key, result);
+    return previous != null ? previous : result;
+  }
+
+  private static Object argumentKey(SoyValue arg) {
+    if (arg instanceof SoyProtoValue) {
+      return new Identity(((SoyProtoValue) arg).getProto());
+    }
+    if (arg instanceof SoyList) {
+      List<Object> elements = new ArrayList<>();
+      for (SoyValue element : ((SoyList) arg).asResolvedJavaList()) {
+        elements.add(argumentKey(element));
+      }
+      return elements;
+    }
+    return arg;
+  }
+
+  private static final class Identity {
+    private final Object object;
+
+    Identity(Object object) {
+      this.object = object;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof Identity && ((Identity) other).object == object;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(object);
+    }
+  }
+}
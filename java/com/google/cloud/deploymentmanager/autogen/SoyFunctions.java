@@ -61,7 +61,9 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import javax.annotation.Nullable;
 
 /**
  * Additional soy functions to support our templating.
@@ -117,13 +119,24 @@ final class SoyFunctions {
     @Override
     public SoyValue computeForJava(List<SoyValue> args) {
       VmTierSpec tier = (VmTierSpec) ((SoyProtoValue) args.get(0)).getProto();
+      SpecIndex index = SpecIndex.current();
+      if (index != null && findIndexedTier(tier.getName(), args.get(1)) == tier) {
+        List<VmTierSpec> dependents = index.getDependentTiers(tier);
+        if (dependents != null) {
+          index.recordHit();
+          return SoyValueConverter.INSTANCE.convert(dependents).resolve();
+        }
+      }
       List<VmTierSpec> tierList;
       try {
         tierList = extractTierList(args.get(1));
       } catch (IllegalArgumentException e) {
         throw new IllegalArgumentException("Unexpected 2nd arg type for dependentTiers", e);
       }
+      return SoyValueConverter.INSTANCE.convert(apply(tier, tierList)).resolve();
+    }
 
+    static List<VmTierSpec> apply(VmTierSpec tier, List<VmTierSpec> tierList) {
       Set<Integer> dependentIndices = new HashSet<>();
       for (GceMetadataItem item : tier.getGceMetadataItemsList()) {
         if (item.hasTierVmNames()) {
@@ -138,10 +151,10 @@ final class SoyFunctions {
           dependents.add(tierList.get(i));
         }
       }
-      return SoyValueConverter.INSTANCE.convert(dependents).resolve();
+      return dependents;
     }
 
-    private int findTier(String name, List<VmTierSpec> tierList) {
+    private static int findTier(String name, List<VmTierSpec> tierList) {
       for (int i = 0; i < tierList.size(); i++) {
         if (name.equals(tierList.get(i).getName())) {
           return i;
@@ -231,6 +244,14 @@ final class SoyFunctions {
     public SoyValue computeForJava(List<SoyValue> list) {
       String name = list.get(0).stringValue();
       DeployInputSpec deployInputSpec = (DeployInputSpec) ((SoyProtoValue) list.get(1)).getProto();
+      SpecIndex index = SpecIndex.current();
+      if (index != null && index.indexes(deployInputSpec)) {
+        DeployInputField field = index.findField(name);
+        if (field != null) {
+          index.recordHit();
+          return SoyValueConverter.INSTANCE.convert(field).resolve();
+        }
+      }
       for (DeployInputSection section : deployInputSpec.getSectionsList()) {
         for (DeployInputField field : section.getFieldsList()) {
           if (name.equals(field.getName())) {
@@ -261,6 +282,10 @@ final class SoyFunctions {
 
     @Override
     public SoyValue computeForJava(List<SoyValue> args) {
+      return memoize(getClass(), args, () -> compute(args));
+    }
+
+    private SoyValue compute(List<SoyValue> args) {
       DeployInputSpec deployInputSpec = (DeployInputSpec) ((SoyProtoValue) args.get(0)).getProto();
       List<DeployInputField> filteredFields = new ArrayList<>();
       for (DeployInputSection section : deployInputSpec.getSectionsList()) {
@@ -357,6 +382,10 @@ final class SoyFunctions {
 
     @Override
     public SoyValue computeForJava(List<SoyValue> args) {
+      return memoize(getClass(), args, () -> compute(args));
+    }
+
+    private static SoyValue compute(List<SoyValue> args) {
       Message message = ((SoyProtoValue) args.get(0)).getProto();
       if (message instanceof SingleVmDeploymentPackageSpec) {
         return SoyValueConverter.INSTANCE
@@ -440,6 +469,11 @@ final class SoyFunctions {
     @Override
     public SoyValue computeForJava(List<SoyValue> args) {
       String tierName = args.get(0).stringValue();
+      VmTierSpec indexedTier = findIndexedTier(tierName, args.get(1));
+      if (indexedTier != null) {
+        SpecIndex.current().recordHit();
+        return SoyValueConverter.INSTANCE.convert(indexedTier).resolve();
+      }
       List<VmTierSpec> tierList;
       try {
         tierList = extractTierList(args.get(1));
@@ -583,6 +617,10 @@ final class SoyFunctions {
 
     @Override
     public SoyValue computeForJava(List<SoyValue> args) {
+      return memoize(getClass(), args, () -> compute(args));
+    }
+
+    private SoyValue compute(List<SoyValue> args) {
       BooleanExpression spec = (BooleanExpression) ((SoyProtoValue) args.get(0)).getProto();
       SoyValue tiersList = NullData.INSTANCE;
       if (args.size() > 1) {
@@ -691,6 +729,10 @@ final class SoyFunctions {
      */
     @Override
     public SoyValue computeForJava(List<SoyValue> args) {
+      return memoize(getClass(), args, () -> compute(args));
+    }
+
+    private static SoyValue compute(List<SoyValue> args) {
       Message value = ((SoyProtoValue) args.get(0)).getProto();
       if (value instanceof SingleVmDeploymentPackageSpec) {
         return SoyValueConverter.INSTANCE
@@ -740,7 +782,23 @@ final class SoyFunctions {
 
     @Override
     public SoyValue computeForJava(List<SoyValue> args) {
+      return memoize(getClass(), args, () -> compute(args));
+    }
+
+    private static SoyValue compute(List<SoyValue> args) {
       DeployInputSpec inputSpec = (DeployInputSpec) ((SoyProtoValue) args.get(0)).getProto();
+      SpecIndex index = SpecIndex.current();
+      if (index != null && index.indexes(inputSpec)) {
+        if (args.size() == 1) {
+          index.recordHit();
+          return SoyValueConverter.INSTANCE.convert(index.getFields()).resolve();
+        }
+        VmTierSpec tierSpec = (VmTierSpec) ((SoyProtoValue) args.get(1)).getProto();
+        if (index.indexes(tierSpec)) {
+          index.recordHit();
+          return SoyValueConverter.INSTANCE.convert(index.getReferencedFields(tierSpec)).resolve();
+        }
+      }
       if (args.size() == 1) {
         return SoyValueConverter.INSTANCE.convert(apply(inputSpec)).resolve();
       } else {
@@ -758,7 +816,6 @@ final class SoyFunctions {
       return fields;
     }
 
-    @VisibleForTesting
     static List<DeployInputField> apply(DeployInputSpec inputSpec, VmTierSpec tierSpec) {
       Set<String> referencedFields = buildReferencedFieldsSet(tierSpec);
       List<DeployInputField> fields = new ArrayList<>();
@@ -794,6 +851,48 @@ final class SoyFunctions {
     }
   }
 
+  /**
+   * Returns the result of a pure function, memoized for the package being rendered if any. See
+   * {@link SoyFunctionCache}.
+   */
+  private static SoyValue memoize(
+      Class<?> function, List<SoyValue> args, Supplier<SoyValue> compute) {
+    SpecIndex index = SpecIndex.current();
+    return index != null ? index.getFunctionCache().get(function, args, compute) : compute.get();
+  }
+
+  /**
+   * Returns the first tier with the given name, if the tiers argument holds the tiers of the {@link
+   * SpecIndex} of the current render. Returns null if the tiers should be scanned instead.
+   */
+  @Nullable
+  private static VmTierSpec findIndexedTier(String name, SoyValue tiersArg) {
+    SpecIndex index = SpecIndex.current();
+    VmTierSpec tier = index != null ? index.findTier(name) : null;
+    if (tier == null) {
+      return null;
+    }
+    if (tiersArg instanceof SoyProtoValue) {
+      Message proto = ((SoyProtoValue) tiersArg).getProto();
+      return proto instanceof MultiVmDeploymentPackageSpec
+              && index.indexes((MultiVmDeploymentPackageSpec) proto)
+          ? tier
+          : null;
+    }
+    if (tiersArg instanceof SoyList) {
+      // Checking every element would cost as much as the scan. The tier list of another spec
+      // wouldn't hold the very same tier proto at the same position.
+      SoyList list = (SoyList) tiersArg;
+      int position = index.tierIndex(name);
+      return list.length() == index.getTierCount()
+              && list.get(position) instanceof SoyProtoValue
+              && ((SoyProtoValue) list.get(position)).getProto() == tier
+          ? tier
+          : null;
+    }
+    return null;
+  }
+
   private static List<VmTierSpec> extractTierList(SoyValue tiersArg) {
     if (tiersArg instanceof SoyList) {
       List<? extends SoyValue> list = ((SoyList) tiersArg).asResolvedJavaList();
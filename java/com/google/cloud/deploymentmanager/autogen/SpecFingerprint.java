@@ -0,0 +1,73 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.cloud.deploymentmanager.autogen;
+
+import com.google.cloud.deploymentmanager.autogen.proto.DeploymentPackageAutogenSpec;
+import com.google.cloud.deploymentmanager.autogen.proto.DeploymentPackageInput;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.protobuf.CodedOutputStream;
+import java.io.IOException;
+
+/**
+ * Fingerprints deployment package inputs, such that inputs generating the same package have the
+ * same fingerprint.
+ *
+ * <p>The fingerprint is a SHA-256 of the deterministic serialization of the input once its missing
+ * defaults are filled in, as done before generating its package. A spec setting fields to their
+ * default values therefore has the same fingerprint as one leaving them out, and map fields such as
+ * {@code StringDropdown.value_labels} are hashed in key order rather than insertion order. The
+ * serialization is streamed to the hash function, without being buffered as a whole.
+ */
+public final class SpecFingerprint {
+
+  /**
+   * Returns the fingerprint of the input. Throws {@link IllegalArgumentException} if its defaults
+   * can't be filled in, in which case no package can be generated for it.
+   */
+  public static HashCode of(DeploymentPackageInput input) {
+    Hasher hasher = Hashing.sha256().newHasher();
+    CodedOutputStream output = CodedOutputStream.newInstance(Funnels.asOutputStream(hasher));
+    output.useDeterministicSerialization();
+    try {
+      withDefaults(input).writeTo(output);
+      output.flush();
+    } catch (IOException e) {
+      throw new AssertionError("Hashing doesn't throw", e);
+    }
+    return hasher.hash();
+  }
+
+  private static DeploymentPackageInput withDefaults(DeploymentPackageInput input) {
+    DeploymentPackageInput.Builder inputBuilder = input.toBuilder();
+    DeploymentPackageAutogenSpec.Builder specBuilder = inputBuilder.getSpecBuilder();
+    switch (specBuilder.getSpecCase()) {
+      case SINGLE_VM:
+        SpecDefaults.fillInMissingDefaults(specBuilder.getSingleVmBuilder());
+        return inputBuilder.build();
+      case MULTI_VM:
+        SpecDefaults.fillInMissingDefaults(specBuilder.getMultiVmBuilder());
+        return inputBuilder.build();
+      default:
+        // Fails generation anyway.
+        return input;
+    }
+  }
+
+  private SpecFingerprint() {}
+}
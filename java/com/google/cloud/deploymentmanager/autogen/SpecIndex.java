@@ -0,0 +1,201 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.cloud.deploymentmanager.autogen;
+
+import com.google.cloud.deploymentmanager.autogen.SoyFunctions.DependentTiers;
+import com.google.cloud.deploymentmanager.autogen.SoyFunctions.ListDeployInputFields;
+import com.google.cloud.deploymentmanager.autogen.proto.DeployInputField;
+import com.google.cloud.deploymentmanager.autogen.proto.DeployInputSection;
+import com.google.cloud.deploymentmanager.autogen.proto.DeployInputSpec;
+import com.google.cloud.deploymentmanager.autogen.proto.DeploymentPackageAutogenSpec;
+import com.google.cloud.deploymentmanager.autogen.proto.MultiVmDeploymentPackageSpec;
+import com.google.cloud.deploymentmanager.autogen.proto.VmTierSpec;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import javax.annotation.Nullable;
+
+/**
+ * Lookup tables over the deploy input fields and the tiers of the spec a package is generated for,
+ * so that {@link SoyFunctions} don't scan the spec on every call.
+ *
+ * <p>Soy functions can't read injected data, so the index is made available to them for the
+ * duration of each render instead, see {@link #render} and {@link #current}. Functions only use it
+ * when their arguments are the very protos that were indexed, and scan them otherwise. The lookups
+ * answered by the index are added to a counter shared across packages. The index also carries the
+ * {@link SoyFunctionCache} of the package.
+ */
+final class SpecIndex {
+  private static final ThreadLocal<SpecIndex> current = new ThreadLocal<>();
+
+  private final DeployInputSpec deployInputSpec;
+  @Nullable private final MultiVmDeploymentPackageSpec multiVmSpec;
+  private final ImmutableList<DeployInputField> fields;
+  private final ImmutableMap<String, DeployInputField> fieldsByName;
+  private final ImmutableMap<String, Integer> tierIndices;
+  // Keyed by tier name.
+  private final ImmutableMap<String, ImmutableList<DeployInputField>> referencedFields;
+  private final ImmutableMap<String, ImmutableList<VmTierSpec>> dependentTiers;
+  private final SoyFunctionCache functionCache;
+  private final LongAdder hits;
+
+  static SpecIndex of(
+      DeploymentPackageAutogenSpec spec, SoyFunctionCache functionCache, LongAdder hits) {
+    return spec.hasMultiVm()
+        ? new SpecIndex(
+            spec.getMultiVm().getDeployInput(), spec.getMultiVm(), functionCache, hits)
+        : new SpecIndex(spec.getSingleVm().getDeployInput(), null, functionCache, hits);
+  }
+
+  private SpecIndex(
+      DeployInputSpec deployInputSpec,
+      @Nullable MultiVmDeploymentPackageSpec multiVmSpec,
+      SoyFunctionCache functionCache,
+      LongAdder hits) {
+    this.deployInputSpec = deployInputSpec;
+    this.functionCache = functionCache;
+    this.hits = hits;
+    this.multiVmSpec = multiVmSpec;
+
+    ImmutableList.Builder<DeployInputField> fields = ImmutableList.builder();
+    // Lookups return the first field with a given name, like a scan would.
+    Map<String, DeployInputField> fieldsByName = new HashMap<>();
+    for (DeployInputSection section : deployInputSpec.getSectionsList()) {
+      for (DeployInputField field : section.getFieldsList()) {
+        fields.add(field);
+        fieldsByName.putIfAbsent(field.getName(), field);
+      }
+    }
+    this.fields = fields.build();
+    this.fieldsByName = ImmutableMap.copyOf(fieldsByName);
+
+    List<VmTierSpec> tiers =
+        multiVmSpec != null ? multiVmSpec.getTiersList() : ImmutableList.<VmTierSpec>of();
+    Map<String, Integer> tierIndices = new HashMap<>();
+    for (int i = 0; i < tiers.size(); i++) {
+      tierIndices.putIfAbsent(tiers.get(i).getName(), i);
+    }
+    this.tierIndices = ImmutableMap.copyOf(tierIndices);
+
+    ImmutableMap.Builder<String, ImmutableList<DeployInputField>> referencedFields =
+        ImmutableMap.builder();
+    ImmutableMap.Builder<String, ImmutableList<VmTierSpec>> dependentTiers =
+        ImmutableMap.builder();
+    for (Map.Entry<String, Integer> entry : this.tierIndices.entrySet()) {
+      VmTierSpec tier = tiers.get(entry.getValue());
+      referencedFields.put(
+          entry.getKey(),
+          ImmutableList.copyOf(ListDeployInputFields.apply(deployInputSpec, tier)));
+      try {
+        dependentTiers.put(
+            entry.getKey(), ImmutableList.copyOf(DependentTiers.apply(tier, tiers)));
+      } catch (IllegalArgumentException e) {
+        // Depends on an unknown tier. Left out, so that the function reports it when called.
+      }
+    }
+    this.referencedFields = referencedFields.buildOrThrow();
+    this.dependentTiers = dependentTiers.buildOrThrow();
+  }
+
+  /** Returns the result of the render, with this index available to soy functions. */
+  <T> T render(Supplier<T> render) {
+    SpecIndex previous = current.get();
+    current.set(this);
+    try {
+      return render.get();
+    } finally {
+      if (previous != null) {
+        current.set(previous);
+      } else {
+        current.remove();
+      }
+    }
+  }
+
+  /** Returns the index of the package being rendered on the current thread, if any. */
+  @Nullable
+  static SpecIndex current() {
+    return current.get();
+  }
+
+  SoyFunctionCache getFunctionCache() {
+    return functionCache;
+  }
+
+  /** Records that a soy function call was answered by the index rather than by a scan. */
+  void recordHit() {
+    hits.increment();
+  }
+
+  boolean indexes(DeployInputSpec deployInputSpec) {
+    return deployInputSpec == this.deployInputSpec;
+  }
+
+  boolean indexes(MultiVmDeploymentPackageSpec multiVmSpec) {
+    return multiVmSpec == this.multiVmSpec;
+  }
+
+  /** Whether the tier is the indexed tier with that name. */
+  boolean indexes(VmTierSpec tier) {
+    Integer index = tierIndices.get(tier.getName());
+    return index != null && multiVmSpec.getTiers(index) == tier;
+  }
+
+  int getTierCount() {
+    return multiVmSpec != null ? multiVmSpec.getTiersCount() : 0;
+  }
+
+  /** Returns the position of the first tier with the given name, or -1 if there is none. */
+  int tierIndex(String name) {
+    Integer index = tierIndices.get(name);
+    return index != null ? index : -1;
+  }
+
+  /** Returns the first tier with the given name, or null if there is none. */
+  @Nullable
+  VmTierSpec findTier(String name) {
+    int index = tierIndex(name);
+    return index >= 0 ? multiVmSpec.getTiers(index) : null;
+  }
+
+  /** Returns the first deploy input field with the given name, or null if there is none. */
+  @Nullable
+  DeployInputField findField(String name) {
+    return fieldsByName.get(name);
+  }
+
+  ImmutableList<DeployInputField> getFields() {
+    return fields;
+  }
+
+  /** Returns the deploy input fields referenced by an {@link #indexes indexed} tier. */
+  ImmutableList<DeployInputField> getReferencedFields(VmTierSpec tier) {
+    return referencedFields.get(tier.getName());
+  }
+
+  /**
+   * Returns the tiers an {@link #indexes indexed} tier depends upon, or null if it depends on an
+   * unknown tier.
+   */
+  @Nullable
+  ImmutableList<VmTierSpec> getDependentTiers(VmTierSpec tier) {
+    return dependentTiers.get(tier.getName());
+  }
+}
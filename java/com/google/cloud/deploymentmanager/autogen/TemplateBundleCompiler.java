@@ -0,0 +1,55 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.deploymentmanager.autogen;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.cloud.deploymentmanager.autogen.proto.DeploymentPackageAutogenSpec.DeploymentTool;
+import com.google.cloud.deploymentmanager.autogen.soy.TemplateRenderer;
+import com.google.common.io.Files;
+import com.google.inject.Guice;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Build time tool that compiles the bundled soy templates into java bytecode.
+ *
+ * <p>Usage: {@code TemplateBundleCompiler <DEPLOYMENT_MANAGER|TERRAFORM> <output jar> <output
+ * fingerprint file>}
+ *
+ * <p>The fingerprint file must be packaged as the matching {@code PRECOMPILED_*_FINGERPRINT}
+ * resource of {@link Autogen}, next to the jar. At runtime, the precompiled templates are only used
+ * if the bundled template sources still match this fingerprint.
+ */
+public final class TemplateBundleCompiler {
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 3) {
+      System.err.println(
+          "Usage: TemplateBundleCompiler <DEPLOYMENT_MANAGER|TERRAFORM> <output jar>"
+              + " <output fingerprint file>");
+      System.exit(1);
+    }
+    TemplateRenderer.FileSet.Builder builder =
+        Autogen.Module.addTemplates(
+            Guice.createInjector(Autogen.getAutogenModule())
+                .getInstance(TemplateRenderer.FileSet.Builder.class),
+            DeploymentTool.valueOf(args[0]));
+    builder.compileToJar(Files.asByteSink(new File(args[1])));
+    Files.asCharSink(new File(args[2]), UTF_8).write(builder.fingerprint());
+  }
+
+  private TemplateBundleCompiler() {}
+}
@@ -0,0 +1,162 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.deploymentmanager.autogen.cli;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.io.ByteSource;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Streams files into an archive as they are added, without buffering the archive. Closing it
+ * finishes the archive and closes the underlying stream.
+ */
+abstract class ArchiveOutput implements Closeable {
+
+  /** Adds a regular file to the archive, at the given slash separated path. */
+  abstract void putFile(String path, ByteSource content) throws IOException;
+
+  /** Returns an output writing a ZIP archive to the stream. */
+  static ArchiveOutput zip(OutputStream stream) {
+    return new ZipArchiveOutput(stream);
+  }
+
+  /** Returns an output writing a gzipped POSIX ustar archive to the stream. */
+  static ArchiveOutput tarGz(OutputStream stream) throws IOException {
+    return new TarGzArchiveOutput(stream);
+  }
+
+  private static class ZipArchiveOutput extends ArchiveOutput {
+    private final ZipOutputStream zip;
+    private final long time = System.currentTimeMillis();
+
+    ZipArchiveOutput(OutputStream stream) {
+      this.zip = new ZipOutputStream(stream);
+    }
+
+    @Override
+    void putFile(String path, ByteSource content) throws IOException {
+      ZipEntry entry = new ZipEntry(path);
+      entry.setTime(time);
+      zip.putNextEntry(entry);
+      content.copyTo(zip);
+      zip.closeEntry();
+    }
+
+    @Override
+    public void close() throws IOException {
+      zip.close();
+    }
+  }
+
+  // The tar format is simple enough not to need a dependency: each file is a 512 byte header
+  // followed by its content padded to 512 bytes, and the archive ends with two empty blocks.
+  private static class TarGzArchiveOutput extends ArchiveOutput {
+    private static final int BLOCK_SIZE = 512;
+    private static final int NAME_LENGTH = 100;
+    private static final int PREFIX_LENGTH = 155;
+    private static final int FILE_MODE = 0644;
+
+    private final GZIPOutputStream gzip;
+    private final long timeSeconds = System.currentTimeMillis() / 1000;
+
+    TarGzArchiveOutput(OutputStream stream) throws IOException {
+      this.gzip = new GZIPOutputStream(stream, 64 * 1024);
+    }
+
+    @Override
+    void putFile(String path, ByteSource content) throws IOException {
+      long size = content.size();
+      gzip.write(header(path, size));
+      long copied = content.copyTo(gzip);
+      if (copied != size) {
+        throw new IOException(
+            String.format("Size of %s changed from %d to %d while archiving", path, size, copied));
+      }
+      int padding = (int) (-size & (BLOCK_SIZE - 1));
+      gzip.write(new byte[padding]);
+    }
+
+    @Override
+    public void close() throws IOException {
+      gzip.write(new byte[2 * BLOCK_SIZE]);
+      gzip.close();
+    }
+
+    private byte[] header(String path, long size) throws IOException {
+      byte[] header = new byte[BLOCK_SIZE];
+      byte[] name = path.getBytes(UTF_8);
+      int split = splitIndex(name);
+      if (split < 0) {
+        throw new IOException("Path too long for a tar archive: " + path);
+      }
+      if (split > 0) {
+        System.arraycopy(name, 0, header, 345, split);
+        System.arraycopy(name, split + 1, header, 0, name.length - split - 1);
+      } else {
+        System.arraycopy(name, 0, header, 0, name.length);
+      }
+      putOctal(header, 100, 8, FILE_MODE);
+      putOctal(header, 108, 8, 0); // uid
+      putOctal(header, 116, 8, 0); // gid
+      putOctal(header, 124, 12, size);
+      putOctal(header, 136, 12, timeSeconds);
+      header[156] = '0'; // Regular file.
+      System.arraycopy("ustar\u000000".getBytes(UTF_8), 0, header, 257, 8);
+
+      // The checksum is computed with its own field filled with spaces.
+      Arrays.fill(header, 148, 156, (byte) ' ');
+      long checksum = 0;
+      for (byte b : header) {
+        checksum += b & 0xff;
+      }
+      putOctal(header, 148, 7, checksum);
+      return header;
+    }
+
+    // Returns 0 if the name fits the name field, the index of the slash separating the prefix
+    // field from the name field if it has to be split, or -1 if it can't be.
+    private static int splitIndex(byte[] name) {
+      if (name.length <= NAME_LENGTH) {
+        return 0;
+      }
+      for (int i = Math.min(PREFIX_LENGTH, name.length - 1); i > 0; i--) {
+        if (name[i] == '/' && name.length - i - 1 <= NAME_LENGTH) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    // Writes the value as zero padded octal digits followed by a NUL.
+    private static void putOctal(byte[] header, int offset, int length, long value)
+        throws IOException {
+      String digits = Long.toOctalString(value);
+      if (digits.length() > length - 1) {
+        throw new IOException("Value too large for a tar header: " + value);
+      }
+      int padding = length - 1 - digits.length();
+      Arrays.fill(header, offset, offset + padding, (byte) '0');
+      System.arraycopy(digits.getBytes(UTF_8), 0, header, offset + padding, digits.length());
+      header[offset + length - 1] = 0;
+    }
+  }
+}
@@ -16,16 +16,23 @@ package com.google.cloud.deploymentmanager.autogen.cli;
 
 import com.google.cloud.deploymentmanager.autogen.Autogen;
 import com.google.cloud.deploymentmanager.autogen.Autogen.SharedSupportFilesStrategy;
-import com.google.cloud.deploymentmanager.autogen.proto.BatchInput;
-import com.google.cloud.deploymentmanager.autogen.proto.BatchOutput;
+import com.google.cloud.deploymentmanager.autogen.PackageCache;
+import com.google.cloud.deploymentmanager.autogen.proto.BatchOutput.SolutionOutput;
 import com.google.cloud.deploymentmanager.autogen.proto.DeploymentPackageInput;
 import com.google.cloud.deploymentmanager.autogen.proto.SolutionPackage;
+import com.google.common.base.Optional;
 import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
-import com.google.protobuf.Message;
+import com.sun.net.httpserver.HttpServer;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import javax.annotation.Nullable;
 import org.apache.commons.cli.ParseException;
 
 /**
@@ -37,38 +44,147 @@ public final class AutogenCli {
   private static final Supplier<Injector> injector =
       Suppliers.memoize(() -> Guice.createInjector(Autogen.getAutogenModule()));
 
-  private static SolutionPackage getSolutionPackage(
-      DeploymentPackageInput solution, AutogenSettings settings) {
-    SharedSupportFilesStrategy strategy =
-        settings.shouldExcludeSharedSupportFiles()
-            ? SharedSupportFilesStrategy.EXCLUDED
-            : SharedSupportFilesStrategy.INCLUDED;
-    return injector.get().getInstance(Autogen.class).generateDeploymentPackage(solution, strategy);
+  private static SharedSupportFilesStrategy getSharedSupportFilesStrategy(
+      AutogenSettings settings) {
+    if (settings.shouldExcludeSharedSupportFiles()) {
+      return SharedSupportFilesStrategy.EXCLUDED;
+    }
+    return settings.shouldShareSupportFiles()
+        ? SharedSupportFilesStrategy.SHARED
+        : SharedSupportFilesStrategy.INCLUDED;
+  }
+
+  /** Generates packages with Autogen, or through the package cache if one is configured. */
+  private interface PackageGenerator {
+    SolutionPackage generate(DeploymentPackageInput input, Executor executor);
+  }
+
+  @Nullable
+  private static PackageCache openCache(AutogenSettings settings, Autogen autogen)
+      throws IOException {
+    if (!settings.isCacheEnabled()) {
+      return null;
+    }
+    return new PackageCache(
+        autogen, Paths.get(settings.getCacheDir()), settings.getCacheMaxBytes());
+  }
+
+  private static PackageGenerator getPackageGenerator(
+      AutogenSettings settings, Autogen autogen, @Nullable PackageCache cache) {
+    SharedSupportFilesStrategy strategy = getSharedSupportFilesStrategy(settings);
+    PackageGenerator generator;
+    if (cache != null) {
+      generator = (input, executor) -> cache.generateDeploymentPackage(input, strategy, executor);
+    } else {
+      generator =
+          (input, executor) -> autogen.generateDeploymentPackage(input, strategy, executor);
+    }
+    // Only the package and archive writers copy the local files referenced by the packages, the
+    // other output types hold their contents.
+    boolean inlineSourceFiles = !settings.getOutputType().writesPackageFiles();
+    boolean encodeWithBase64 = settings.shouldEncodeBinaryContentWithBase64();
+    if (!inlineSourceFiles && !encodeWithBase64) {
+      return generator;
+    }
+    return (input, executor) -> {
+      SolutionPackage solutionPackage = generator.generate(input, executor);
+      if (inlineSourceFiles) {
+        solutionPackage = Autogen.inlineSourceFiles(solutionPackage);
+      }
+      if (encodeWithBase64) {
+        solutionPackage = Autogen.encodeBinaryContentWithBase64(solutionPackage);
+      }
+      return solutionPackage;
+    };
   }
 
   static void runAutogen(String[] args) throws IOException, ParseException {
     AutogenSettings settings = AutogenSettings.build(args);
 
-    Message.Builder inputBuilder =
-        settings.isSingleMode() ? DeploymentPackageInput.newBuilder() : BatchInput.newBuilder();
-    Message inputMessage = InputReaderFactory.getReader(settings).readInput(inputBuilder);
+    Autogen autogen = injector.get().getInstance(Autogen.class);
+    PackageCache cache = openCache(settings, autogen);
+    if (settings.isServeMode()) {
+      serve(settings, autogen, cache);
+      return;
+    }
+    PackageGenerator generator = getPackageGenerator(settings, autogen, cache);
 
     OutputWriterFactory.OutputWriter writer = OutputWriterFactory.getWriter(settings);
+    ExecutorService executor = ExecutorFactory.getExecutor(settings);
+    try {
+      if (settings.isSingleMode()) {
+        DeploymentPackageInput input =
+            (DeploymentPackageInput)
+                InputReaderFactory.getReader(settings)
+                    .readInput(DeploymentPackageInput.newBuilder());
+        // Renders the files of the single solution concurrently. Unless the package is cached,
+        // output types that don't need the whole package write each file once it and the ones
+        // before it are rendered.
+        Optional<OutputWriterFactory.SolutionSink> sink =
+            cache == null ? writer.openSolutionSink() : Optional.absent();
+        if (sink.isPresent()) {
+          autogen.generateDeploymentPackage(
+              input, getSharedSupportFilesStrategy(settings), sink.get(), executor);
+          // Only closed once the generation succeeded, not to complete a partial output.
+          sink.get().close();
+        } else {
+          writer.writeOutput(generator.generate(input, executor));
+        }
+      } else {
+        // Generates the solutions concurrently, each one on a single thread. Streaming input types
+        // only read the next solution once one of the solutions in flight is done, and each output
+        // is handed to the writer as soon as it and the ones before it are generated.
+        try (InputReaderFactory.SolutionIterator solutions =
+                InputReaderFactory.getBatchReader(settings).readSolutions();
+            OutputWriterFactory.BatchWriter batchWriter = writer.openBatch()) {
+          if (settings.shouldShareSupportFiles()) {
+            batchWriter.writeSharedSupportFiles(Autogen.getSharedSupportFiles());
+          }
+          new BatchRunner(
+                  executor,
+                  solution -> generator.generate(solution, MoreExecutors.directExecutor()),
+                  settings.getMaxInFlight())
+              .run(solutions, solution -> write(batchWriter, solution));
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
 
-    if (settings.isSingleMode()) {
-      writer.writeOutput(getSolutionPackage((DeploymentPackageInput) inputMessage, settings));
+  // The server keeps the process running until it is terminated.
+  private static void serve(
+      AutogenSettings settings, Autogen autogen, @Nullable PackageCache cache)
+      throws IOException {
+    autogen.warmUp();
+    SharedSupportFilesStrategy strategy = getSharedSupportFilesStrategy(settings);
+    AutogenServer.Generator generator;
+    if (cache != null) {
+      generator = (input, sink) -> sink.addAll(cache.generateDeploymentPackage(input, strategy));
     } else {
-      BatchInput message = (BatchInput) inputMessage;
-      BatchOutput.Builder builder = BatchOutput.newBuilder();
-      for (DeploymentPackageInput solution : message.getSolutionsList()) {
-        SolutionPackage dp = getSolutionPackage(solution, settings);
-        builder
-            .addSolutionsBuilder()
-            .setPartnerId(solution.getPartnerId())
-            .setSolutionId(solution.getSolutionId())
-            .setPackage(dp);
-      }
-      writer.writeOutput(builder.build());
+      generator = (input, sink) -> autogen.generateDeploymentPackage(input, strategy, sink);
+    }
+    ExecutorService executor = ExecutorFactory.getExecutor(settings);
+    HttpServer server =
+        new AutogenServer(generator, settings.shouldEncodeBinaryContentWithBase64(), executor)
+            .start(settings.getPort());
+    System.err.printf(
+        "Serving on http://localhost:%d%s%n",
+        server.getAddress().getPort(), AutogenServer.PATH);
+    Runtime.getRuntime()
+        .addShutdownHook(
+            new Thread(
+                () -> {
+                  server.stop(/* delay= */ 1);
+                  executor.shutdownNow();
+                }));
+  }
+
+  private static void write(OutputWriterFactory.BatchWriter batchWriter, SolutionOutput solution) {
+    try {
+      batchWriter.write(solution);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
     }
   }
 
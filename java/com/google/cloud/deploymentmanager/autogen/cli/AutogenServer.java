@@ -0,0 +1,292 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.cloud.deploymentmanager.autogen.cli;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.cloud.deploymentmanager.autogen.Autogen;
+import com.google.cloud.deploymentmanager.autogen.PackageSink;
+import com.google.cloud.deploymentmanager.autogen.proto.DeploymentPackageInput;
+import com.google.cloud.deploymentmanager.autogen.proto.Image;
+import com.google.cloud.deploymentmanager.autogen.proto.SolutionPackage;
+import com.google.common.base.Ascii;
+import com.google.common.base.Preconditions;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.ByteStreams;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+import com.google.protobuf.util.JsonFormat;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Serves {@link Autogen#generateDeploymentPackage} over HTTP on the loopback interface.
+ *
+ * <p>{@value #PATH} accepts a POST of a {@link DeploymentPackageInput} and responds with the
+ * generated {@link SolutionPackage}, in the binary wire format or in JSON if the request content
+ * type is {@value #JSON_CONTENT_TYPE}. Each request is handled as a task of the given executor,
+ * generating the package with the given generator. Inputs with images given by a local file are
+ * rejected, as the server only serves what the request holds.
+ *
+ * <p>The wire format is encoded straight from the generated files, without building the {@link
+ * SolutionPackage} message. The response is still only sent once the whole package is generated,
+ * for generation failures to get an error status.
+ */
+class AutogenServer {
+  static final String PATH = "/generate";
+  static final String JSON_CONTENT_TYPE = "application/json";
+  static final String WIRE_CONTENT_TYPE = "application/x-protobuf";
+
+  private static final String LOCAL_FILES_UNSUPPORTED =
+      "Image.local_file is not supported by the server, images must be given by their raw bytes";
+
+  /** Generates the package of an input into a sink. */
+  interface Generator {
+    void generate(DeploymentPackageInput input, PackageSink sink) throws IOException;
+  }
+
+  private final Generator generator;
+  private final boolean encodeBinaryContentWithBase64;
+  private final ExecutorService executor;
+
+  AutogenServer(
+      Generator generator, boolean encodeBinaryContentWithBase64, ExecutorService executor) {
+    this.generator = generator;
+    this.encodeBinaryContentWithBase64 = encodeBinaryContentWithBase64;
+    this.executor = executor;
+  }
+
+  /** Starts serving on the given port, returning once the server is accepting requests. */
+  HttpServer start(int port) throws IOException {
+    HttpServer server =
+        HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    server.createContext(PATH, this::handle);
+    server.setExecutor(executor);
+    server.start();
+    return server;
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      if (!"POST".equals(exchange.getRequestMethod())) {
+        exchange.getResponseHeaders().set("Allow", "POST");
+        respondError(exchange, 405, "Only POST is supported");
+        return;
+      }
+      boolean json = isJson(exchange.getRequestHeaders().getFirst("Content-Type"));
+      DeploymentPackageInput input;
+      try {
+        input = readInput(exchange.getRequestBody(), json);
+      } catch (InvalidProtocolBufferException e) {
+        respondError(exchange, 400, "Invalid DeploymentPackageInput: " + e.getMessage());
+        return;
+      }
+      if (hasLocalFile(input)) {
+        respondError(exchange, 400, LOCAL_FILES_UNSUPPORTED);
+        return;
+      }
+
+      ByteArrayOutputStream response = new ByteArrayOutputStream();
+      try {
+        if (json) {
+          generateJson(input, response);
+        } else {
+          generateWire(input, response);
+        }
+      } catch (IllegalArgumentException e) {
+        // Thrown by the spec validations.
+        respondError(exchange, 400, String.valueOf(e.getMessage()));
+        return;
+      } catch (RuntimeException | IOException e) {
+        System.err.println("Failed to generate a package: " + e);
+        respondError(exchange, 500, String.valueOf(e.getMessage()));
+        return;
+      }
+
+      exchange
+          .getResponseHeaders()
+          .set("Content-Type", json ? JSON_CONTENT_TYPE : WIRE_CONTENT_TYPE);
+      exchange.sendResponseHeaders(200, response.size());
+      try (OutputStream body = exchange.getResponseBody()) {
+        response.writeTo(body);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void generateJson(DeploymentPackageInput input, OutputStream out) throws IOException {
+    SolutionPackage.Builder builder = SolutionPackage.newBuilder();
+    generator.generate(input, PackageSink.forBuilder(builder));
+    SolutionPackage solution = builder.build();
+    for (SolutionPackage.File file : solution.getFilesList()) {
+      Preconditions.checkArgument(
+          file.getSourceCase() != SolutionPackage.File.SourceCase.SOURCE_PATH,
+          LOCAL_FILES_UNSUPPORTED);
+    }
+    if (encodeBinaryContentWithBase64) {
+      solution = Autogen.encodeBinaryContentWithBase64(solution);
+    }
+    Writer writer = new OutputStreamWriter(out, UTF_8);
+    JsonFormat.printer().appendTo(solution, writer);
+    writer.flush();
+  }
+
+  private void generateWire(DeploymentPackageInput input, OutputStream out) throws IOException {
+    CodedOutputStream output = CodedOutputStream.newInstance(out);
+    generator.generate(input, new WireSink(output, encodeBinaryContentWithBase64));
+    output.flush();
+  }
+
+  /**
+   * Encodes the files it receives as a {@link SolutionPackage} in the wire format, one element of
+   * its repeated fields at a time.
+   */
+  private static final class WireSink implements PackageSink {
+    private final CodedOutputStream output;
+    private final boolean encodeBinaryContentWithBase64;
+
+    WireSink(CodedOutputStream output, boolean encodeBinaryContentWithBase64) {
+      this.output = output;
+      this.encodeBinaryContentWithBase64 = encodeBinaryContentWithBase64;
+    }
+
+    /**
+     * Returns a writer encoding the content into a buffer, only holding the bytes of this file,
+     * which are needed for the length of the file message before its fields.
+     */
+    @Override
+    public Writer addTextFile(String path) {
+      ContentBuffer content = new ContentBuffer();
+      return new OutputStreamWriter(content, UTF_8) {
+        @Override
+        public void close() throws IOException {
+          super.close();
+          content.writeTextFile(path);
+        }
+      };
+    }
+
+    @Override
+    public void addTextFile(String path, String content) throws IOException {
+      byte[] bytes = content.getBytes(UTF_8);
+      writeTextFile(path, bytes, bytes.length);
+    }
+
+    // Encodes the file like SolutionPackage.File#writeTo, which omits an empty content.
+    private void writeTextFile(String path, byte[] content, int length) throws IOException {
+      int contentSize =
+          length == 0
+              ? 0
+              : CodedOutputStream.computeTagSize(SolutionPackage.File.CONTENT_FIELD_NUMBER)
+                  + CodedOutputStream.computeUInt32SizeNoTag(length)
+                  + length;
+      output.writeTag(SolutionPackage.FILES_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+      output.writeUInt32NoTag(
+          CodedOutputStream.computeStringSize(SolutionPackage.File.PATH_FIELD_NUMBER, path)
+              + contentSize);
+      output.writeString(SolutionPackage.File.PATH_FIELD_NUMBER, path);
+      if (length > 0) {
+        output.writeTag(
+            SolutionPackage.File.CONTENT_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+        output.writeUInt32NoTag(length);
+        output.writeRawBytes(content, 0, length);
+      }
+    }
+
+    /** Buffers the encoded content of a text file, written out without copying the buffer. */
+    private final class ContentBuffer extends ByteArrayOutputStream {
+      void writeTextFile(String path) throws IOException {
+        WireSink.this.writeTextFile(path, buf, count);
+      }
+    }
+
+    @Override
+    public void addBinaryFile(String path, ByteString content) throws IOException {
+      if (encodeBinaryContentWithBase64) {
+        addTextFile(path, BaseEncoding.base64().encode(content.toByteArray()));
+        return;
+      }
+      output.writeTag(SolutionPackage.FILES_FIELD_NUMBER, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+      output.writeUInt32NoTag(
+          CodedOutputStream.computeStringSize(SolutionPackage.File.PATH_FIELD_NUMBER, path)
+              + CodedOutputStream.computeBytesSize(
+                  SolutionPackage.File.BINARY_CONTENT_FIELD_NUMBER, content));
+      output.writeString(SolutionPackage.File.PATH_FIELD_NUMBER, path);
+      output.writeBytes(SolutionPackage.File.BINARY_CONTENT_FIELD_NUMBER, content);
+    }
+
+    @Override
+    public void addSourceFile(String path, String sourcePath) {
+      throw new IllegalArgumentException(LOCAL_FILES_UNSUPPORTED);
+    }
+
+    @Override
+    public void addSharedSupportFile(String path) throws IOException {
+      output.writeString(SolutionPackage.SHARED_SUPPORT_FILES_FIELD_NUMBER, path);
+    }
+  }
+
+  private static boolean hasLocalFile(DeploymentPackageInput input) {
+    return isLocalFile(input.getLogo())
+        || isLocalFile(input.getIcon())
+        || isLocalFile(input.getArchitectureDiagram());
+  }
+
+  private static boolean isLocalFile(Image image) {
+    return image.getSourceCase() == Image.SourceCase.LOCAL_FILE;
+  }
+
+  private static boolean isJson(String contentType) {
+    return contentType != null
+        && Ascii.toLowerCase(contentType.trim()).startsWith(JSON_CONTENT_TYPE);
+  }
+
+  private static DeploymentPackageInput readInput(InputStream body, boolean json)
+      throws IOException {
+    DeploymentPackageInput.Builder builder = DeploymentPackageInput.newBuilder();
+    if (json) {
+      JsonFormat.parser().merge(new InputStreamReader(body, UTF_8), builder);
+    } else {
+      builder.mergeFrom(body);
+    }
+    // Drains anything left so that the connection can be reused.
+    ByteStreams.exhaust(body);
+    return builder.build();
+  }
+
+  private static void respondError(HttpExchange exchange, int status, String message)
+      throws IOException {
+    byte[] response = (message + "\n").getBytes(UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+    exchange.sendResponseHeaders(status, response.length);
+    try (OutputStream body = exchange.getResponseBody()) {
+      body.write(response);
+    }
+  }
+}
@@ -33,7 +33,19 @@ final class AutogenSettings {
   private static final String OPTION_INPUT_TYPE = "input_type";
   private static final String OPTION_OUTPUT_TYPE = "output_type";
   private static final String OPTION_EXCLUDE_SHARED_SUPPORT_FILES = "exclude_shared_support_files";
+  private static final String OPTION_SHARE_SUPPORT_FILES = "share_support_files";
   private static final String OPTION_DEV_FEATURES = "dev_features";
+  private static final String OPTION_BASE64_BINARY_CONTENT = "base64_binary_content";
+  private static final String OPTION_SKIP_UNCHANGED = "skip_unchanged";
+  private static final String OPTION_WRITE_CONCURRENCY = "write_concurrency";
+  private static final String OPTION_FSYNC = "fsync";
+  private static final String OPTION_PARALLELISM = "parallelism";
+  private static final String OPTION_VIRTUAL_THREADS = "virtual_threads";
+  private static final String OPTION_MAX_IN_FLIGHT = "max_in_flight";
+  private static final String OPTION_SERVE = "serve";
+  private static final String OPTION_PORT = "port";
+  private static final String OPTION_CACHE_DIR = "cache_dir";
+  private static final String OPTION_CACHE_MAX_MB = "cache_max_mb";
 
   private static final String HELP_DESC = "Prints usage help";
   private static final String SINGLE_INPUT_DESC = "Input source, a filename or empty for stdin,"
@@ -43,25 +55,80 @@ final class AutogenSettings {
   private static final String OUTPUT_DESC = "Output destination folder if output_type is PACKAGE,"
       + " or filename otherwise (Optional, current directory will be used for output_type PACKAGE"
       + " and stdout for other types, if option not present)";
-  private static final String INPUT_TYPE_DESC = "Input content type";
-  private static final String OUTPUT_TYPE_DESC = "Output content type";
+  private static final String INPUT_TYPE_DESC = "Input content type. DELIMITED_WIRE and JSON_LINES"
+      + " stream the solutions of a batch one at a time, as length-delimited DeploymentPackageInput"
+      + " records or one JSON DeploymentPackageInput per line";
+  private static final String OUTPUT_TYPE_DESC = "Output content type. PACKAGE writes the package"
+      + " files into a folder, ZIP and TGZ stream them into a zip or tar.gz archive";
   private static final String EXCLUDE_SHARED_SUPPORT_FILES_DESC =
       "Whether to exclude symlinkable shared support files";
+  private static final String SHARE_SUPPORT_FILES_DESC = "Whether to output the shared support"
+      + " files once for the whole batch, referenced by each solution, instead of in each solution."
+      + " With output_type PACKAGE, they are linked into the solution folders";
   private static final String DEV_FEATURES_DESC = "Enables features in development";
+  private static final String WRITE_CONCURRENCY_DESC = "Maximum number of package files being"
+      + " written at any time with output_type PACKAGE (Optional, defaults to 16)";
+  private static final String FSYNC_DESC = "When written package files are synced to disk with"
+      + " output_type PACKAGE: NONE, SOLUTION before writing the next solution, or BATCH once all"
+      + " solutions are written (Optional, defaults to NONE)";
+  private static final String SKIP_UNCHANGED_DESC = "Whether to only write the package files whose"
+      + " content changed since the last run with this option, as recorded in a manifest at the"
+      + " root of the output folder, deleting the ones no longer generated. Requires output_type"
+      + " PACKAGE";
+  private static final String BASE64_BINARY_CONTENT_DESC = "Whether to encode binary files, such"
+      + " as images, with Base64 into the content field instead of binary_content, for"
+      + " consumers of the output predating binary_content";
+  private static final String PARALLELISM_DESC = "Number of threads generating solutions"
+      + " (Optional, defaults to the number of available processors)";
+  private static final String VIRTUAL_THREADS_DESC = "Whether to generate each solution on its own"
+      + " virtual thread instead of a pool of --parallelism threads. Requires Java 21 or later";
+  private static final String MAX_IN_FLIGHT_DESC = "Maximum number of batch solutions being"
+      + " generated or waiting to be written at any time, which bounds memory usage"
+      + " (Optional, defaults to twice the parallelism)";
+  private static final String SERVE_DESC = "Serves DeploymentPackageInput to SolutionPackage"
+      + " generation over HTTP on localhost, instead of processing a single or batch input."
+      + " Requests are handled on virtual threads when supported";
+  private static final String PORT_DESC =
+      "Port to serve on with --serve (Optional, defaults to 8080)";
+  private static final String CACHE_DIR_DESC = "Folder of a cache of the generated packages, reused"
+      + " across runs. A package is only generated again if its input or the generator changed"
+      + " (Optional, packages are always generated if option not present)";
+  private static final String CACHE_MAX_MB_DESC = "Maximum size in megabytes of the packages in"
+      + " --cache_dir, the least recently used ones are evicted beyond it (Optional, defaults to"
+      + " 1024)";
 
   private boolean singleMode;
+  private boolean serveMode;
+  private int port;
+  private String cacheDir;
+  private int cacheMaxMb;
   private String input;
   private String output;
   private InputType inputType;
   private OutputType outputType;
   private boolean excludeSharedSupportFiles;
+  private boolean shareSupportFiles;
   private boolean devFeaturesEnabled;
+  private boolean base64BinaryContent;
+  private boolean skipUnchanged;
+  private int writeConcurrency;
+  private FsyncPolicy fsyncPolicy;
+  private int parallelism;
+  private boolean virtualThreads;
+  private int maxInFlight;
 
   enum InputType {
     PROTOTEXT,
     JSON,
     YAML,
-    WIRE
+    WIRE,
+    DELIMITED_WIRE,
+    JSON_LINES;
+
+    /** Whether the batch is a stream of solutions rather than a single BatchInput message. */
+    boolean isStreaming() {
+      return this == DELIMITED_WIRE || this == JSON_LINES;
+    }
   }
 
   enum OutputType {
@@ -69,7 +136,21 @@ final class AutogenSettings {
     JSON,
     YAML,
     WIRE,
-    PACKAGE
+    PACKAGE,
+    ZIP,
+    TGZ;
+
+    /** Whether the package files are written out as files, rather than in a message. */
+    boolean writesPackageFiles() {
+      return this == PACKAGE || this == ZIP || this == TGZ;
+    }
+  }
+
+  /** When the files of packages written to folders are synced to disk. */
+  enum FsyncPolicy {
+    NONE,
+    SOLUTION,
+    BATCH
   }
 
   private static void printUsage(Options options) {
@@ -92,15 +173,72 @@ final class AutogenSettings {
         .addOption(null, OPTION_OUTPUT_TYPE, true, OUTPUT_TYPE_DESC)
         .addOption(
             null, OPTION_EXCLUDE_SHARED_SUPPORT_FILES, false, EXCLUDE_SHARED_SUPPORT_FILES_DESC)
-        .addOption(null, OPTION_DEV_FEATURES, false, DEV_FEATURES_DESC);
+        .addOption(null, OPTION_SHARE_SUPPORT_FILES, false, SHARE_SUPPORT_FILES_DESC)
+        .addOption(null, OPTION_DEV_FEATURES, false, DEV_FEATURES_DESC)
+        .addOption(null, OPTION_BASE64_BINARY_CONTENT, false, BASE64_BINARY_CONTENT_DESC)
+        .addOption(null, OPTION_SKIP_UNCHANGED, false, SKIP_UNCHANGED_DESC)
+        .addOption(null, OPTION_WRITE_CONCURRENCY, true, WRITE_CONCURRENCY_DESC)
+        .addOption(null, OPTION_FSYNC, true, FSYNC_DESC)
+        .addOption(null, OPTION_PARALLELISM, true, PARALLELISM_DESC)
+        .addOption(null, OPTION_VIRTUAL_THREADS, false, VIRTUAL_THREADS_DESC)
+        .addOption(null, OPTION_MAX_IN_FLIGHT, true, MAX_IN_FLIGHT_DESC)
+        .addOption(null, OPTION_SERVE, false, SERVE_DESC)
+        .addOption(null, OPTION_PORT, true, PORT_DESC)
+        .addOption(null, OPTION_CACHE_DIR, true, CACHE_DIR_DESC)
+        .addOption(null, OPTION_CACHE_MAX_MB, true, CACHE_MAX_MB_DESC);
   }
 
   private static void validateCliOptions(CommandLine cmd) {
     List<String> errors = new ArrayList<>();
-    if (cmd.hasOption(OPTION_SINGLE_INPUT) && cmd.hasOption(OPTION_BATCH_INPUT)) {
+    if (cmd.hasOption(OPTION_SERVE)) {
+      if (cmd.hasOption(OPTION_SINGLE_INPUT) || cmd.hasOption(OPTION_BATCH_INPUT)) {
+        errors.add("--serve can't be used with --single_input or --batch_input");
+      }
+    } else if (cmd.hasOption(OPTION_SINGLE_INPUT) && cmd.hasOption(OPTION_BATCH_INPUT)) {
       errors.add("--single_input and --batch_input can't be used at the same time");
     } else if (!cmd.hasOption(OPTION_SINGLE_INPUT) && !cmd.hasOption(OPTION_BATCH_INPUT)) {
-      errors.add("at least one of --single_input or --batch_input must be specified");
+      errors.add("at least one of --single_input, --batch_input or --serve must be specified");
+    }
+    if (cmd.hasOption(OPTION_INPUT_TYPE)) {
+      InputType inputType = parseInputType(cmd.getOptionValue(OPTION_INPUT_TYPE));
+      if (inputType == null) {
+        errors.add("unknown --input_type " + cmd.getOptionValue(OPTION_INPUT_TYPE));
+      } else if (inputType.isStreaming() && cmd.hasOption(OPTION_SINGLE_INPUT)) {
+        errors.add(String.format("--input_type %s can only be used with --batch_input", inputType));
+      }
+    }
+    if (cmd.hasOption(OPTION_SHARE_SUPPORT_FILES)) {
+      if (!cmd.hasOption(OPTION_BATCH_INPUT)) {
+        errors.add("--share_support_files can only be used with --batch_input");
+      }
+      if (cmd.hasOption(OPTION_EXCLUDE_SHARED_SUPPORT_FILES)) {
+        errors.add("--share_support_files can't be used with --exclude_shared_support_files");
+      }
+    }
+    for (String option :
+        new String[] {OPTION_SKIP_UNCHANGED, OPTION_WRITE_CONCURRENCY, OPTION_FSYNC}) {
+      if (cmd.hasOption(option)
+          && !OutputType.PACKAGE.name().equals(cmd.getOptionValue(OPTION_OUTPUT_TYPE))) {
+        errors.add(String.format("--%s can only be used with --output_type PACKAGE", option));
+      }
+    }
+    if (cmd.hasOption(OPTION_FSYNC) && parseFsyncPolicy(cmd.getOptionValue(OPTION_FSYNC)) == null) {
+      errors.add("unknown --fsync " + cmd.getOptionValue(OPTION_FSYNC));
+    }
+    if (cmd.hasOption(OPTION_CACHE_MAX_MB) && !cmd.hasOption(OPTION_CACHE_DIR)) {
+      errors.add("--cache_max_mb can only be used with --cache_dir");
+    }
+    for (String option :
+        new String[] {
+          OPTION_PARALLELISM,
+          OPTION_MAX_IN_FLIGHT,
+          OPTION_PORT,
+          OPTION_CACHE_MAX_MB,
+          OPTION_WRITE_CONCURRENCY
+        }) {
+      if (cmd.hasOption(option) && !isPositiveInteger(cmd.getOptionValue(option))) {
+        errors.add(String.format("--%s must be a positive integer", option));
+      }
     }
 
     if (!errors.isEmpty()) {
@@ -112,6 +250,30 @@ final class AutogenSettings {
     }
   }
 
+  private static InputType parseInputType(String value) {
+    try {
+      return InputType.valueOf(value);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  private static FsyncPolicy parseFsyncPolicy(String value) {
+    try {
+      return FsyncPolicy.valueOf(value);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  private static boolean isPositiveInteger(String value) {
+    try {
+      return Integer.parseInt(value) > 0;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
   static AutogenSettings build(String[] args) throws ParseException {
     Options options = buildCommandOptions();
     CommandLineParser parser = new DefaultParser();
@@ -134,24 +296,56 @@ final class AutogenSettings {
       settings.input = cmd.getOptionValue(OPTION_BATCH_INPUT, settings.input);
       settings.singleMode = false;
     }
+    settings.serveMode = cmd.hasOption(OPTION_SERVE);
+    settings.port =
+        Integer.parseInt(cmd.getOptionValue(OPTION_PORT, String.valueOf(settings.port)));
+    settings.cacheDir = cmd.getOptionValue(OPTION_CACHE_DIR, settings.cacheDir);
+    settings.cacheMaxMb =
+        Integer.parseInt(
+            cmd.getOptionValue(OPTION_CACHE_MAX_MB, String.valueOf(settings.cacheMaxMb)));
     settings.output = cmd.getOptionValue(OPTION_OUTPUT, settings.output);
     settings.inputType =
         InputType.valueOf(cmd.getOptionValue(OPTION_INPUT_TYPE, settings.inputType.name()));
     settings.outputType =
         OutputType.valueOf(cmd.getOptionValue(OPTION_OUTPUT_TYPE, settings.outputType.name()));
     settings.excludeSharedSupportFiles = cmd.hasOption(OPTION_EXCLUDE_SHARED_SUPPORT_FILES);
+    settings.shareSupportFiles = cmd.hasOption(OPTION_SHARE_SUPPORT_FILES);
     settings.devFeaturesEnabled = cmd.hasOption(OPTION_DEV_FEATURES);
+    settings.base64BinaryContent = cmd.hasOption(OPTION_BASE64_BINARY_CONTENT);
+    settings.skipUnchanged = cmd.hasOption(OPTION_SKIP_UNCHANGED);
+    settings.writeConcurrency =
+        Integer.parseInt(
+            cmd.getOptionValue(
+                OPTION_WRITE_CONCURRENCY, String.valueOf(settings.writeConcurrency)));
+    settings.fsyncPolicy =
+        FsyncPolicy.valueOf(cmd.getOptionValue(OPTION_FSYNC, settings.fsyncPolicy.name()));
+    settings.parallelism =
+        Integer.parseInt(
+            cmd.getOptionValue(OPTION_PARALLELISM, String.valueOf(settings.parallelism)));
+    // Serving requests is mostly waiting on connections, which virtual threads are best suited to.
+    settings.virtualThreads = cmd.hasOption(OPTION_VIRTUAL_THREADS) || settings.serveMode;
+    settings.maxInFlight =
+        Integer.parseInt(
+            cmd.getOptionValue(OPTION_MAX_IN_FLIGHT, String.valueOf(2 * settings.parallelism)));
 
     return settings;
   }
 
   private AutogenSettings() {
     this.singleMode = true;
+    this.serveMode = false;
+    this.port = 8080;
+    this.writeConcurrency = 16;
+    this.fsyncPolicy = FsyncPolicy.NONE;
+    this.cacheDir = "";
+    this.cacheMaxMb = 1024;
     this.input = "";
     this.output = "";
     this.inputType = InputType.PROTOTEXT;
     this.outputType = OutputType.PROTOTEXT;
     this.excludeSharedSupportFiles = false;
+    this.parallelism = Runtime.getRuntime().availableProcessors();
+    this.virtualThreads = false;
   }
 
   public String getInput() {
@@ -174,11 +368,63 @@ final class AutogenSettings {
     return this.excludeSharedSupportFiles;
   }
 
+  public boolean shouldShareSupportFiles() {
+    return this.shareSupportFiles;
+  }
+
   public boolean isDevFeaturesEnabled() {
     return this.devFeaturesEnabled;
   }
 
+  public boolean shouldEncodeBinaryContentWithBase64() {
+    return this.base64BinaryContent;
+  }
+
+  public boolean shouldSkipUnchanged() {
+    return this.skipUnchanged;
+  }
+
+  public int getWriteConcurrency() {
+    return this.writeConcurrency;
+  }
+
+  public FsyncPolicy getFsyncPolicy() {
+    return this.fsyncPolicy;
+  }
+
   public boolean isSingleMode() {
     return this.singleMode;
   }
+
+  public boolean isServeMode() {
+    return this.serveMode;
+  }
+
+  public int getPort() {
+    return this.port;
+  }
+
+  public boolean isCacheEnabled() {
+    return !this.cacheDir.isEmpty();
+  }
+
+  public String getCacheDir() {
+    return this.cacheDir;
+  }
+
+  public long getCacheMaxBytes() {
+    return this.cacheMaxMb * 1024L * 1024L;
+  }
+
+  public int getParallelism() {
+    return this.parallelism;
+  }
+
+  public boolean shouldUseVirtualThreads() {
+    return this.virtualThreads;
+  }
+
+  public int getMaxInFlight() {
+    return this.maxInFlight;
+  }
 }
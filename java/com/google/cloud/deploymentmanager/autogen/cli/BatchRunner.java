@@ -0,0 +1,94 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.deploymentmanager.autogen.cli;
+
+import com.google.cloud.deploymentmanager.autogen.proto.BatchOutput.SolutionOutput;
+import com.google.cloud.deploymentmanager.autogen.proto.DeploymentPackageInput;
+import com.google.cloud.deploymentmanager.autogen.proto.SolutionPackage;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Generates the solutions of a batch concurrently, while handing out their outputs in input order.
+ *
+ * <p>At most {@code maxInFlight} solutions are being generated or waiting for the previous ones to
+ * complete at any time, so that memory usage doesn't grow with the size of the batch.
+ */
+class BatchRunner {
+  private final ExecutorService executor;
+  private final Function<DeploymentPackageInput, SolutionPackage> generator;
+  private final int maxInFlight;
+
+  BatchRunner(
+      ExecutorService executor,
+      Function<DeploymentPackageInput, SolutionPackage> generator,
+      int maxInFlight) {
+    Preconditions.checkArgument(maxInFlight > 0, "maxInFlight must be positive");
+    this.executor = executor;
+    this.generator = generator;
+    this.maxInFlight = maxInFlight;
+  }
+
+  /**
+   * Generates all solutions, passing their outputs to the consumer in the order of the inputs. The
+   * consumer is only called from the calling thread.
+   */
+  void run(Iterator<DeploymentPackageInput> solutions, Consumer<SolutionOutput> consumer) {
+    Queue<Future<SolutionOutput>> inFlight = new ArrayDeque<>();
+    try {
+      while (solutions.hasNext()) {
+        if (inFlight.size() == maxInFlight) {
+          consumer.accept(await(inFlight.remove()));
+        }
+        DeploymentPackageInput solution = solutions.next();
+        inFlight.add(executor.submit(() -> generate(solution)));
+      }
+      while (!inFlight.isEmpty()) {
+        consumer.accept(await(inFlight.remove()));
+      }
+    } finally {
+      // Only non-empty if a generation failed.
+      inFlight.forEach(future -> future.cancel(true));
+    }
+  }
+
+  private SolutionOutput generate(DeploymentPackageInput solution) {
+    return SolutionOutput.newBuilder()
+        .setPartnerId(solution.getPartnerId())
+        .setSolutionId(solution.getSolutionId())
+        .setPackage(generator.apply(solution))
+        .build();
+  }
+
+  private static SolutionOutput await(Future<SolutionOutput> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new RuntimeException(e.getCause());
+    }
+  }
+}
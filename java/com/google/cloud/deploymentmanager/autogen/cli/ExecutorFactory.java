@@ -0,0 +1,49 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.deploymentmanager.autogen.cli;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/** Creates the executor generating solutions, as configured by {@link AutogenSettings}. */
+class ExecutorFactory {
+  static ExecutorService getExecutor(AutogenSettings settings) {
+    if (settings.shouldUseVirtualThreads()) {
+      ExecutorService executor = newVirtualThreadPerTaskExecutor();
+      if (executor != null) {
+        return executor;
+      }
+      System.err.println(
+          "Virtual threads are not supported by this Java runtime, using a thread pool instead.");
+    }
+    return Executors.newFixedThreadPool(
+        settings.getParallelism(),
+        new ThreadFactoryBuilder().setNameFormat("autogen-%d").setDaemon(true).build());
+  }
+
+  // Virtual threads are only available from Java 21, while the tool targets an older language
+  // level. Returns null if the running JVM doesn't support them.
+  private static ExecutorService newVirtualThreadPerTaskExecutor() {
+    try {
+      return (ExecutorService)
+          Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return null;
+    }
+  }
+
+  private ExecutorFactory() {}
+}
@@ -16,19 +16,31 @@ package com.google.cloud.deploymentmanager.autogen.cli;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
-import com.google.gson.Gson;
+import com.google.cloud.deploymentmanager.autogen.proto.BatchInput;
+import com.google.cloud.deploymentmanager.autogen.proto.DeploymentPackageInput;
+import com.google.common.collect.AbstractIterator;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.ExtensionRegistryLite;
 import com.google.protobuf.Message;
 import com.google.protobuf.TextFormat;
+import com.google.protobuf.UnsafeByteOperations;
+import com.google.protobuf.WireFormat;
 import com.google.protobuf.util.JsonFormat;
 import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.Map;
-import org.yaml.snakeyaml.Yaml;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.util.Iterator;
 
 class InputReaderFactory {
+  /** Returns the reader of a single input message, which streaming input types don't hold. */
   static InputReader getReader(AutogenSettings settings) {
     switch (settings.getInputType()) {
       case PROTOTEXT:
@@ -39,29 +51,152 @@ class InputReaderFactory {
         return new YamlReader(settings);
       case WIRE:
         return new WireReader(settings);
+      case DELIMITED_WIRE:
+      case JSON_LINES:
+        throw new IllegalArgumentException(
+            "Input type " + settings.getInputType() + " can only be read as a batch");
     }
     throw new IllegalArgumentException("Unknown input type: " + settings.getInputType());
   }
 
-  abstract static class InputReader {
-    private final AutogenSettings settings;
+  /** Returns the reader of the solutions of a batch. */
+  static BatchReader getBatchReader(AutogenSettings settings) {
+    switch (settings.getInputType()) {
+      case DELIMITED_WIRE:
+        return new DelimitedWireReader(settings);
+      case JSON_LINES:
+        return new JsonLinesReader(settings);
+      default:
+        return getReader(settings);
+    }
+  }
+
+  static InputStream openInput(AutogenSettings settings) throws IOException {
+    String input = settings.getInput();
+    return input.isEmpty() ? System.in : new BufferedInputStream(new FileInputStream(input));
+  }
+
+  /** Reads the solutions of a batch input. */
+  interface BatchReader {
+    SolutionIterator readSolutions() throws IOException;
+  }
+
+  /** Reads an input message as a whole, which for a batch is a {@link BatchInput}. */
+  abstract static class InputReader implements BatchReader {
+    protected final AutogenSettings settings;
 
     InputReader(AutogenSettings settings) {
       this.settings = settings;
     }
 
     Message readInput(Message.Builder builder) throws IOException {
-      final String input = this.settings.getInput();
-      try (InputStream stream = input.isEmpty()
-          ? System.in : new BufferedInputStream(new FileInputStream(input))) {
+      try (InputStream stream = openInput()) {
         doReadInput(stream, builder);
       }
       return builder.build();
     }
 
+    /**
+     * Reads the solutions of a batch. By default, the whole {@link BatchInput} is read at once,
+     * readers able to parse it incrementally override this to read one solution at a time.
+     */
+    @Override
+    public SolutionIterator readSolutions() throws IOException {
+      BatchInput batch = (BatchInput) readInput(BatchInput.newBuilder());
+      return new SolutionIterator(() -> {}) {
+        private final Iterator<DeploymentPackageInput> solutions =
+            batch.getSolutionsList().iterator();
+
+        @Override
+        DeploymentPackageInput readNext() {
+          return solutions.hasNext() ? solutions.next() : null;
+        }
+      };
+    }
+
+    InputStream openInput() throws IOException {
+      return InputReaderFactory.openInput(settings);
+    }
+
     abstract void doReadInput(InputStream stream, Message.Builder builder) throws IOException;
   }
 
+  /** Solutions of a batch, read one at a time from an input that is closed with the iterator. */
+  abstract static class SolutionIterator extends AbstractIterator<DeploymentPackageInput>
+      implements Closeable {
+    private final Closeable input;
+
+    SolutionIterator(Closeable input) {
+      this.input = input;
+    }
+
+    @Override
+    protected final DeploymentPackageInput computeNext() {
+      try {
+        DeploymentPackageInput next = readNext();
+        return next != null ? next : endOfData();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    /** Reads the next solution, or returns null if there is none left. */
+    abstract DeploymentPackageInput readNext() throws IOException;
+
+    @Override
+    public void close() throws IOException {
+      input.close();
+    }
+  }
+
+  /** Streaming reader for length-delimited {@link DeploymentPackageInput} records. */
+  static class DelimitedWireReader implements BatchReader {
+    private final AutogenSettings settings;
+
+    DelimitedWireReader(AutogenSettings settings) {
+      this.settings = settings;
+    }
+
+    @Override
+    public SolutionIterator readSolutions() throws IOException {
+      InputStream stream = openInput(settings);
+      return new SolutionIterator(stream) {
+        @Override
+        DeploymentPackageInput readNext() throws IOException {
+          return DeploymentPackageInput.parseDelimitedFrom(stream);
+        }
+      };
+    }
+  }
+
+  /** Streaming reader for {@link DeploymentPackageInput} JSON records, one per line. */
+  static class JsonLinesReader implements BatchReader {
+    private final AutogenSettings settings;
+
+    JsonLinesReader(AutogenSettings settings) {
+      this.settings = settings;
+    }
+
+    @Override
+    public SolutionIterator readSolutions() throws IOException {
+      BufferedReader reader =
+          new BufferedReader(new InputStreamReader(openInput(settings), UTF_8));
+      return new SolutionIterator(reader) {
+        @Override
+        DeploymentPackageInput readNext() throws IOException {
+          for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            if (!line.trim().isEmpty()) {
+              DeploymentPackageInput.Builder builder = DeploymentPackageInput.newBuilder();
+              JsonFormat.parser().merge(line, builder);
+              return builder.build();
+            }
+          }
+          return null;
+        }
+      };
+    }
+  }
+
   static class PrototextReader extends InputReader {
     PrototextReader(AutogenSettings settings) {
       super(settings);
@@ -91,21 +226,160 @@ class InputReaderFactory {
 
     @Override
     void doReadInput(InputStream stream, Message.Builder builder) throws IOException {
-      Yaml yaml = new Yaml();
-      Gson gson = new Gson();
-      String json = gson.toJson(yaml.loadAs(new InputStreamReader(stream, UTF_8), Map.class));
-      JsonFormat.parser().merge(json, builder);
+      YamlProtoParser.merge(new InputStreamReader(stream, UTF_8), builder);
     }
   }
 
+  /**
+   * Reader for the binary wire format. Input files are memory-mapped and parsed with aliasing, so
+   * that {@code bytes} fields such as the image contents point into the mapped file instead of
+   * being copied to the heap. The file must not change while the parsed messages are in use.
+   */
   static class WireReader extends InputReader {
+    // The most a field takes before its value, or as a whole if not length-delimited: a tag and a
+    // varint of up to 5 and 10 bytes.
+    private static final int MAX_FIELD_HEADER_SIZE = 15;
+
+    private final int windowSize;
+
     WireReader(AutogenSettings settings) {
+      this(settings, Integer.MAX_VALUE);
+    }
+
+    /** Creates a reader mapping at most {@code windowSize} bytes of a batch at once. */
+    WireReader(AutogenSettings settings, int windowSize) {
       super(settings);
+      this.windowSize = windowSize;
+    }
+
+    @Override
+    Message readInput(Message.Builder builder) throws IOException {
+      if (settings.getInput().isEmpty()) {
+        return super.readInput(builder);
+      }
+      try (FileChannel channel = FileChannel.open(Paths.get(settings.getInput()))) {
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE) {
+          // Larger than any single message, which the stream parser reports.
+          return super.readInput(builder);
+        }
+        CodedInputStream input = map(channel, 0, size);
+        builder.mergeFrom(input);
+        input.checkLastTagWas(0);
+      }
+      return builder.build();
+    }
+
+    /**
+     * Parses the solutions of a batch one at a time, skipping any other field. A mapped batch is
+     * mapped in windows of at most the window size, which a single solution may not exceed.
+     */
+    @Override
+    public SolutionIterator readSolutions() throws IOException {
+      if (settings.getInput().isEmpty()) {
+        return readStreamedSolutions(openInput());
+      }
+      FileChannel channel = FileChannel.open(Paths.get(settings.getInput()));
+      long size = channel.size();
+      return new SolutionIterator(channel) {
+        private long windowStart;
+        private long windowEnd;
+        private CodedInputStream input;
+
+        @Override
+        DeploymentPackageInput readNext() throws IOException {
+          if (input == null) {
+            mapWindow(0);
+          }
+          while (true) {
+            long fieldStart = windowStart + input.getTotalBytesRead();
+            if (fieldStart == size) {
+              return null;
+            }
+            if (windowEnd < size && windowEnd - fieldStart < MAX_FIELD_HEADER_SIZE) {
+              mapWindow(fieldStart);
+            }
+            int tag = input.readTag();
+            if (WireFormat.getTagWireType(tag) != WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+              input.skipField(tag);
+              continue;
+            }
+            int length = input.readRawVarint32();
+            if (windowStart + input.getTotalBytesRead() + length > windowEnd) {
+              if (windowStart == fieldStart || windowEnd == size) {
+                throw new IOException(
+                    String.format(
+                        "Field at offset %d of %s is larger than the %d bytes mapped at once, or"
+                            + " truncated",
+                        fieldStart, settings.getInput(), windowSize));
+              }
+              // Maps the next window from the start of this field, and reads it again.
+              mapWindow(fieldStart);
+              continue;
+            }
+            if (WireFormat.getTagFieldNumber(tag) != BatchInput.SOLUTIONS_FIELD_NUMBER) {
+              input.skipRawBytes(length);
+              continue;
+            }
+            int oldLimit = input.pushLimit(length);
+            DeploymentPackageInput solution =
+                DeploymentPackageInput.parser()
+                    .parseFrom(input, ExtensionRegistryLite.getEmptyRegistry());
+            input.popLimit(oldLimit);
+            return solution;
+          }
+        }
+
+        private void mapWindow(long start) throws IOException {
+          windowStart = start;
+          windowEnd = start + Math.min(windowSize, size - start);
+          input = map(channel, windowStart, windowEnd - windowStart);
+        }
+      };
+    }
+
+    /**
+     * Parses the solutions of a batch read from a stream one at a time, resetting the size limit
+     * of the coded input for each, so that the batch as a whole may exceed it.
+     */
+    private static SolutionIterator readStreamedSolutions(InputStream stream) {
+      CodedInputStream input = CodedInputStream.newInstance(stream);
+      return new SolutionIterator(stream) {
+        @Override
+        DeploymentPackageInput readNext() throws IOException {
+          input.resetSizeCounter();
+          for (int tag = input.readTag(); tag != 0; tag = input.readTag()) {
+            if (WireFormat.getTagFieldNumber(tag) == BatchInput.SOLUTIONS_FIELD_NUMBER
+                && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+              return input.readMessage(
+                  DeploymentPackageInput.parser(), ExtensionRegistryLite.getEmptyRegistry());
+            }
+            input.skipField(tag);
+            input.resetSizeCounter();
+          }
+          return null;
+        }
+      };
     }
 
     @Override
     void doReadInput(InputStream stream, Message.Builder builder) throws IOException {
       builder.mergeFrom(stream);
     }
+
+    /**
+     * Maps a range of the input file, which stays mapped once the channel is closed, until the
+     * buffer is garbage collected.
+     */
+    private static CodedInputStream map(FileChannel channel, long start, long length)
+        throws IOException {
+      ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+      // CodedInputStream.newInstance(ByteBuffer) assumes the buffer may change and copies the bytes
+      // fields even with aliasing enabled. The coded input of a ByteString wrapping the buffer
+      // treats it as immutable, which the read-only mapping is.
+      CodedInputStream input = UnsafeByteOperations.unsafeWrap(mapped).newCodedInput();
+      input.enableAliasing(true);
+      return input;
+    }
   }
 }
@@ -16,24 +16,44 @@ package com.google.cloud.deploymentmanager.autogen.cli;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+import com.google.cloud.deploymentmanager.autogen.PackageSink;
 import com.google.cloud.deploymentmanager.autogen.proto.BatchOutput;
+import com.google.cloud.deploymentmanager.autogen.proto.BatchOutput.SolutionOutput;
 import com.google.cloud.deploymentmanager.autogen.proto.SolutionPackage;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashingOutputStream;
 import com.google.common.io.BaseEncoding;
-import com.google.common.io.Files;
+import com.google.common.io.ByteSource;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.io.MoreFiles;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
 import com.google.protobuf.Message;
 import com.google.protobuf.TextFormat;
 import com.google.protobuf.util.JsonFormat;
 import java.io.BufferedOutputStream;
-import java.io.File;
+import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PrintStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
-import org.yaml.snakeyaml.Yaml;
+import java.util.Set;
+import javax.annotation.Nullable;
+import org.yaml.snakeyaml.DumperOptions.FlowStyle;
 
 class OutputWriterFactory {
   static OutputWriter getWriter(AutogenSettings settings) {
@@ -48,6 +68,9 @@ class OutputWriterFactory {
         return new WireWriter(settings);
       case PACKAGE:
         return new PackageWriter(settings);
+      case ZIP:
+      case TGZ:
+        return new ArchiveWriter(settings);
     }
     throw new IllegalArgumentException("Unknown output type: " + settings.getOutputType());
   }
@@ -64,7 +87,120 @@ class OutputWriterFactory {
       return output.isEmpty() ? System.out : new BufferedOutputStream(new FileOutputStream(output));
     }
 
+    Writer newWriter() throws FileNotFoundException {
+      return new BufferedWriter(new OutputStreamWriter(newOutputStream(), UTF_8));
+    }
+
     abstract void writeOutput(Message message) throws IOException;
+
+    /**
+     * Opens a sink writing the files of a single solution as they are generated, if the output
+     * type doesn't need the whole {@link SolutionPackage} at once. Closing the sink completes the
+     * output.
+     */
+    Optional<SolutionSink> openSolutionSink() throws IOException {
+      return Optional.absent();
+    }
+
+    /** Writes the whole batch through {@link #openBatch}. */
+    void writeBatch(BatchOutput batch) throws IOException {
+      try (BatchWriter batchWriter = openBatch()) {
+        if (batch.hasSharedSupportFiles()) {
+          batchWriter.writeSharedSupportFiles(batch.getSharedSupportFiles());
+        }
+        for (SolutionOutput solution : batch.getSolutionsList()) {
+          batchWriter.write(solution);
+        }
+      }
+    }
+
+    /**
+     * Opens a writer for the solutions of a batch. By default, the solutions are collected and
+     * written as a single {@link BatchOutput} when the batch writer is closed.
+     */
+    BatchWriter openBatch() throws IOException {
+      BatchOutput.Builder builder = BatchOutput.newBuilder();
+      return new BatchWriter() {
+        @Override
+        public void writeSharedSupportFiles(SolutionPackage sharedSupportFiles) {
+          builder.setSharedSupportFiles(sharedSupportFiles);
+        }
+
+        @Override
+        public void write(SolutionOutput solution) {
+          builder.addSolutions(solution);
+        }
+
+        @Override
+        public void close() throws IOException {
+          writeOutput(builder.build());
+        }
+      };
+    }
+  }
+
+  /**
+   * Indents the lines written through it by one more level of the JSON and prototext printers, for
+   * a message printed on its own to be nested in an enclosing message.
+   */
+  private static final class IndentingAppendable implements Appendable {
+    private static final String INDENT = "  ";
+
+    private final Appendable out;
+    private boolean atStartOfLine;
+
+    /** Only indents the first line if {@code atStartOfLine}, continuing a line otherwise. */
+    IndentingAppendable(Appendable out, boolean atStartOfLine) {
+      this.out = out;
+      this.atStartOfLine = atStartOfLine;
+    }
+
+    @Override
+    public Appendable append(CharSequence csq) throws IOException {
+      return append(csq, 0, csq.length());
+    }
+
+    @Override
+    public Appendable append(CharSequence csq, int start, int end) throws IOException {
+      int lineStart = start;
+      for (int i = start; i < end; i++) {
+        if (atStartOfLine) {
+          out.append(csq, lineStart, i).append(INDENT);
+          lineStart = i;
+          atStartOfLine = false;
+        }
+        if (csq.charAt(i) == '\n') {
+          atStartOfLine = true;
+        }
+      }
+      out.append(csq, lineStart, end);
+      return this;
+    }
+
+    @Override
+    public Appendable append(char c) throws IOException {
+      if (atStartOfLine) {
+        out.append(INDENT);
+        atStartOfLine = false;
+      }
+      out.append(c);
+      atStartOfLine = c == '\n';
+      return this;
+    }
+  }
+
+  /** Receives the files of a single solution as they are generated, closed once all are. */
+  interface SolutionSink extends PackageSink, Closeable {}
+
+  /** Receives the solutions of a batch one at a time, in input order, as they are generated. */
+  interface BatchWriter extends Closeable {
+    /**
+     * Receives the shared support files referenced by the solutions, before any solution, when
+     * they are generated with {@code SharedSupportFilesStrategy.SHARED}.
+     */
+    void writeSharedSupportFiles(SolutionPackage sharedSupportFiles) throws IOException;
+
+    void write(SolutionOutput solution) throws IOException;
   }
 
   static class PrototextWriter extends OutputWriter {
@@ -74,10 +210,49 @@ class OutputWriterFactory {
 
     @Override
     void writeOutput(Message message) throws IOException {
-      try (OutputStream stream = newOutputStream()) {
-        new PrintStream(stream).print(TextFormat.printer().printToString(message));
+      try (Writer writer = newWriter()) {
+        TextFormat.printer().print(message, writer);
       }
     }
+
+    /**
+     * Prints each solution as soon as it's generated, as a {@code solutions} field of the {@link
+     * BatchOutput}. The shared support files are printed last, as they come after the solutions in
+     * the whole message.
+     */
+    @Override
+    BatchWriter openBatch() throws IOException {
+      Writer writer = newWriter();
+      return new BatchWriter() {
+        @Nullable private SolutionPackage sharedSupportFiles;
+
+        @Override
+        public void writeSharedSupportFiles(SolutionPackage sharedSupportFiles) {
+          this.sharedSupportFiles = sharedSupportFiles;
+        }
+
+        @Override
+        public void write(SolutionOutput solution) throws IOException {
+          printField(BatchOutput.SOLUTIONS_FIELD_NUMBER, solution);
+        }
+
+        @Override
+        public void close() throws IOException {
+          try (writer) {
+            if (sharedSupportFiles != null) {
+              printField(BatchOutput.SHARED_SUPPORT_FILES_FIELD_NUMBER, sharedSupportFiles);
+            }
+          }
+        }
+
+        private void printField(int fieldNumber, Message message) throws IOException {
+          writer.write(BatchOutput.getDescriptor().findFieldByNumber(fieldNumber).getName());
+          writer.write(" {\n");
+          TextFormat.printer().print(message, new IndentingAppendable(writer, true));
+          writer.write("}\n");
+        }
+      };
+    }
   }
 
   static class JsonWriter extends OutputWriter {
@@ -87,10 +262,67 @@ class OutputWriterFactory {
 
     @Override
     void writeOutput(Message message) throws IOException {
-      try (OutputStream stream = newOutputStream()) {
-        new PrintStream(stream).print(JsonFormat.printer().print(message));
+      try (Writer writer = newWriter()) {
+        JsonFormat.printer().appendTo(message, writer);
       }
     }
+
+    /**
+     * Prints each solution as soon as it's generated, as an element of the {@code solutions} array
+     * of the {@link BatchOutput}. The shared support files are printed last, as they come after the
+     * solutions in the whole message.
+     */
+    @Override
+    BatchWriter openBatch() throws IOException {
+      Writer writer = newWriter();
+      return new BatchWriter() {
+        @Nullable private SolutionPackage sharedSupportFiles;
+        private boolean started;
+
+        @Override
+        public void writeSharedSupportFiles(SolutionPackage sharedSupportFiles) {
+          this.sharedSupportFiles = sharedSupportFiles;
+        }
+
+        @Override
+        public void write(SolutionOutput solution) throws IOException {
+          if (started) {
+            writer.write(", ");
+          } else {
+            writer.write("{\n  " + quotedJsonName(BatchOutput.SOLUTIONS_FIELD_NUMBER) + ": [");
+            started = true;
+          }
+          JsonFormat.printer().appendTo(solution, new IndentingAppendable(writer, false));
+        }
+
+        @Override
+        public void close() throws IOException {
+          try (writer) {
+            if (!started) {
+              // Without solutions, the whole message is small.
+              BatchOutput.Builder batch = BatchOutput.newBuilder();
+              if (sharedSupportFiles != null) {
+                batch.setSharedSupportFiles(sharedSupportFiles);
+              }
+              JsonFormat.printer().appendTo(batch, writer);
+              return;
+            }
+            writer.write("]");
+            if (sharedSupportFiles != null) {
+              writer.write(
+                  ",\n  " + quotedJsonName(BatchOutput.SHARED_SUPPORT_FILES_FIELD_NUMBER) + ": ");
+              JsonFormat.printer()
+                  .appendTo(sharedSupportFiles, new IndentingAppendable(writer, false));
+            }
+            writer.write("\n}");
+          }
+        }
+      };
+    }
+
+    private static String quotedJsonName(int fieldNumber) {
+      return "\"" + BatchOutput.getDescriptor().findFieldByNumber(fieldNumber).getJsonName() + "\"";
+    }
   }
 
   static class YamlWriter extends OutputWriter {
@@ -100,11 +332,68 @@ class OutputWriterFactory {
 
     @Override
     void writeOutput(Message message) throws IOException {
-      try (OutputStream stream = newOutputStream()) {
-        Yaml yaml = new Yaml();
-        new PrintStream(stream).print(yaml.dump(yaml.load(JsonFormat.printer().print(message))));
+      try (Writer writer = newWriter()) {
+        new YamlProtoPrinter(writer).print(message);
       }
     }
+
+    /**
+     * Prints each solution as soon as it's generated, as an element of the {@code solutions}
+     * sequence of the {@link BatchOutput} document. The shared support files are printed last, as
+     * they come after the solutions in the whole message.
+     */
+    @Override
+    BatchWriter openBatch() throws IOException {
+      Writer writer = newWriter();
+      YamlProtoPrinter printer = new YamlProtoPrinter(writer);
+      return new BatchWriter() {
+        @Nullable private SolutionPackage sharedSupportFiles;
+        private boolean started;
+
+        @Override
+        public void writeSharedSupportFiles(SolutionPackage sharedSupportFiles) {
+          this.sharedSupportFiles = sharedSupportFiles;
+        }
+
+        @Override
+        public void write(SolutionOutput solution) throws IOException {
+          if (!started) {
+            printer.startDocument();
+            printer.startMapping(FlowStyle.BLOCK);
+            printer.printKey(jsonName(BatchOutput.SOLUTIONS_FIELD_NUMBER));
+            printer.startSequence(FlowStyle.BLOCK);
+            started = true;
+          }
+          printer.printMessage(solution);
+        }
+
+        @Override
+        public void close() throws IOException {
+          try (writer) {
+            if (!started) {
+              // Empty batches have no solutions field, which decides the style of the document.
+              BatchOutput.Builder batch = BatchOutput.newBuilder();
+              if (sharedSupportFiles != null) {
+                batch.setSharedSupportFiles(sharedSupportFiles);
+              }
+              printer.print(batch);
+              return;
+            }
+            printer.endSequence();
+            if (sharedSupportFiles != null) {
+              printer.printKey(jsonName(BatchOutput.SHARED_SUPPORT_FILES_FIELD_NUMBER));
+              printer.printMessage(sharedSupportFiles);
+            }
+            printer.endMapping();
+            printer.endDocument();
+          }
+        }
+      };
+    }
+
+    private static String jsonName(int fieldNumber) {
+      return BatchOutput.getDescriptor().findFieldByNumber(fieldNumber).getJsonName();
+    }
   }
 
   static class WireWriter extends OutputWriter {
@@ -118,41 +407,425 @@ class OutputWriterFactory {
         message.writeTo(stream);
       }
     }
+
+    /**
+     * Writes each solution as a length-delimited {@code solutions} field as soon as it's generated.
+     * The concatenation of these records, and of the {@code shared_support_files} field if any, is
+     * the wire format of the whole {@link BatchOutput}.
+     */
+    @Override
+    BatchWriter openBatch() throws IOException {
+      OutputStream stream = newOutputStream();
+      CodedOutputStream output = CodedOutputStream.newInstance(stream);
+      return new BatchWriter() {
+        @Override
+        public void writeSharedSupportFiles(SolutionPackage sharedSupportFiles)
+            throws IOException {
+          output.writeMessage(BatchOutput.SHARED_SUPPORT_FILES_FIELD_NUMBER, sharedSupportFiles);
+          output.flush();
+        }
+
+        @Override
+        public void write(SolutionOutput solution) throws IOException {
+          output.writeMessage(BatchOutput.SOLUTIONS_FIELD_NUMBER, solution);
+          output.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+          try {
+            output.flush();
+          } finally {
+            stream.close();
+          }
+        }
+      };
+    }
   }
 
   static class PackageWriter extends OutputWriter {
+    // Holds the single copy of the shared support files of a batch, linked into the solutions.
+    private static final String SHARED_SUPPORT_FILES_FOLDER = "_shared_support_files";
+
+    /** A shared support file written once, and its content as recorded in the manifest. */
+    private static class SharedFile {
+      final Path file;
+      final long size;
+      @Nullable final HashCode hash;
+
+      SharedFile(Path file, long size, @Nullable HashCode hash) {
+        this.file = file;
+        this.size = size;
+        this.hash = hash;
+      }
+    }
+
     PackageWriter(AutogenSettings settings) {
       super(settings);
     }
 
     @Override
     void writeOutput(Message message) throws IOException {
-      Map<String, SolutionPackage> solutions;
       if (message instanceof BatchOutput) {
-        final BatchOutput batchMessage = (BatchOutput) message;
-        ImmutableMap.Builder<String, SolutionPackage> builder = ImmutableMap.builder();
-        for (BatchOutput.SolutionOutput solution : batchMessage.getSolutionsList()) {
-          builder.put(solution.getPartnerId() + "/" + solution.getSolutionId(),
+        writeBatch((BatchOutput) message);
+      } else {
+        writeSolution(openSingleSolution(), (SolutionPackage) message);
+      }
+    }
+
+    @Override
+    Optional<SolutionSink> openSolutionSink() throws IOException {
+      return Optional.of(openSingleSolution());
+    }
+
+    private SolutionFolderSink openSingleSolution() throws IOException {
+      PackageManifest manifest = openManifest();
+      PackageFileWriter fileWriter = openFileWriter();
+      return new SolutionFolderSink(manifest, fileWriter, ImmutableMap.of(), "") {
+        @Override
+        public void close() throws IOException {
+          super.close();
+          finish(manifest, fileWriter);
+        }
+      };
+    }
+
+    /** Writes the files of each solution as soon as it's generated. */
+    @Override
+    BatchWriter openBatch() throws IOException {
+      Set<String> solutionFolders = new HashSet<>();
+      PackageManifest manifest = openManifest();
+      PackageFileWriter fileWriter = openFileWriter();
+      Map<String, SharedFile> sharedFiles = new HashMap<>();
+      return new BatchWriter() {
+        @Override
+        public void writeSharedSupportFiles(SolutionPackage sharedSupportFiles)
+            throws IOException {
+          writeSharedFiles(manifest, sharedSupportFiles, sharedFiles);
+        }
+
+        @Override
+        public void write(SolutionOutput solution) throws IOException {
+          String folder = solution.getPartnerId() + "/" + solution.getSolutionId();
+          Preconditions.checkArgument(
+              solutionFolders.add(folder), "Multiple solutions with the same id: %s", folder);
+          writeSolution(
+              new SolutionFolderSink(manifest, fileWriter, sharedFiles, folder),
               solution.getPackage());
         }
-        solutions = builder.buildOrThrow();
+
+        @Override
+        public void close() throws IOException {
+          finish(manifest, fileWriter);
+        }
+      };
+    }
+
+    private Path getRoot() {
+      return Paths.get(settings.getOutput()).toAbsolutePath();
+    }
+
+    @Nullable
+    private PackageManifest openManifest() throws IOException {
+      return settings.shouldSkipUnchanged() ? PackageManifest.load(getRoot()) : null;
+    }
+
+    private PackageFileWriter openFileWriter() {
+      return new PackageFileWriter(settings.getWriteConcurrency(), settings.getFsyncPolicy());
+    }
+
+    // The manifest is only saved once all files are written.
+    private static void finish(@Nullable PackageManifest manifest, PackageFileWriter fileWriter)
+        throws IOException {
+      fileWriter.close();
+      if (manifest != null) {
+        manifest.finish();
+        System.err.printf(
+            "Wrote %d files, %d unchanged, %d deleted%n",
+            manifest.getWrittenCount(), manifest.getUnchangedCount(), manifest.getDeletedCount());
+      }
+    }
+
+    // Written synchronously, as the solutions link to them.
+    private void writeSharedFiles(
+        @Nullable PackageManifest manifest,
+        SolutionPackage sharedSupportFiles,
+        Map<String, SharedFile> sharedFiles)
+        throws IOException {
+      Path folder = getRoot().resolve(SHARED_SUPPORT_FILES_FOLDER);
+      if (manifest != null) {
+        manifest.startSolution(SHARED_SUPPORT_FILES_FOLDER);
+      }
+      for (SolutionPackage.File file : sharedSupportFiles.getFilesList()) {
+        Path outputFile = folder.resolve(file.getPath());
+        ByteSource content = getContent(file);
+        long size = content.size();
+        HashCode hash = manifest != null ? PackageManifest.hash(content) : null;
+        sharedFiles.put(file.getPath(), new SharedFile(outputFile, size, hash));
+        if (manifest != null && manifest.isUnchanged(outputFile, size, hash)) {
+          continue;
+        }
+        Files.createDirectories(outputFile.getParent());
+        content.copyTo(MoreFiles.asByteSink(outputFile));
+        if (manifest != null) {
+          manifest.recordWritten(outputFile, size, hash);
+        }
+      }
+    }
+
+    private static void writeSolution(SolutionFolderSink sink, SolutionPackage solution)
+        throws IOException {
+      for (SolutionPackage.File file : solution.getFilesList()) {
+        Path source =
+            file.getSourceCase() == SolutionPackage.File.SourceCase.SOURCE_PATH
+                ? Paths.get(file.getSourcePath())
+                : null;
+        sink.writeFile(file.getPath(), getContent(file), source);
+      }
+      for (String path : solution.getSharedSupportFilesList()) {
+        sink.addSharedSupportFile(path);
+      }
+      sink.close();
+    }
+
+    /**
+     * Writes the files of a solution into its folder as they are received: text files as they are
+     * rendered, the others concurrently through the {@link PackageFileWriter}. Files whose content
+     * is unchanged since they were last written are skipped if there's a manifest.
+     */
+    private class SolutionFolderSink implements SolutionSink {
+      @Nullable private final PackageManifest manifest;
+      private final PackageFileWriter fileWriter;
+      private final Map<String, SharedFile> sharedFiles;
+      private final Path solutionFolder;
+      private final Set<Path> createdFolders = new HashSet<>();
+
+      SolutionFolderSink(
+          @Nullable PackageManifest manifest,
+          PackageFileWriter fileWriter,
+          Map<String, SharedFile> sharedFiles,
+          String folder) {
+        this.manifest = manifest;
+        this.fileWriter = fileWriter;
+        this.sharedFiles = sharedFiles;
+        this.solutionFolder = getRoot().resolve(folder);
+        if (manifest != null) {
+          manifest.startSolution(folder);
+        }
+      }
+
+      /**
+       * Returns a writer encoding the file straight into it, on the calling thread. With a
+       * manifest, the file is written to a temporary file next to it while hashing its content,
+       * which only replaces the file if the content changed.
+       */
+      @Override
+      public Writer addTextFile(String path) throws IOException {
+        Path outputFile = solutionFolder.resolve(path);
+        createParentFolder(outputFile);
+        if (manifest == null) {
+          return new OutputStreamWriter(Files.newOutputStream(outputFile), UTF_8) {
+            @Override
+            public void close() throws IOException {
+              super.close();
+              fileWriter.sync(outputFile);
+            }
+          };
+        }
+        Path temporaryFile =
+            Files.createTempFile(outputFile.getParent(), "." + outputFile.getFileName(), ".tmp");
+        CountingOutputStream counting =
+            new CountingOutputStream(Files.newOutputStream(temporaryFile));
+        HashingOutputStream hashing = PackageManifest.hashingStream(counting);
+        return new OutputStreamWriter(hashing, UTF_8) {
+          @Override
+          public void close() throws IOException {
+            super.close();
+            long size = counting.getCount();
+            HashCode hash = hashing.hash();
+            if (manifest.isUnchanged(outputFile, size, hash)) {
+              Files.delete(temporaryFile);
+              return;
+            }
+            Files.move(
+                temporaryFile,
+                outputFile,
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+            fileWriter.sync(outputFile);
+            manifest.recordWritten(outputFile, size, hash);
+          }
+        };
+      }
+
+      @Override
+      public void addTextFile(String path, String content) throws IOException {
+        writeFile(path, ByteSource.wrap(content.getBytes(UTF_8)), null);
+      }
+
+      @Override
+      public void addBinaryFile(String path, ByteString content) throws IOException {
+        writeFile(path, asByteSource(content), null);
+      }
+
+      @Override
+      public void addSourceFile(String path, String sourcePath) throws IOException {
+        Path source = Paths.get(sourcePath);
+        writeFile(path, MoreFiles.asByteSource(source), source);
+      }
+
+      @Override
+      public void addSharedSupportFile(String path) throws IOException {
+        SharedFile sharedFile = sharedFiles.get(path);
+        Preconditions.checkArgument(
+            sharedFile != null, "Shared support file %s is missing from the batch", path);
+        Path link = solutionFolder.resolve(path);
+        if (manifest != null && manifest.isUnchanged(link, sharedFile.size, sharedFile.hash)) {
+          return;
+        }
+        createParentFolder(link);
+        link(sharedFile.file, link);
+        if (manifest != null) {
+          manifest.recordWritten(link, sharedFile.size, sharedFile.hash);
+        }
+      }
+
+      void writeFile(String path, ByteSource content, @Nullable Path source) throws IOException {
+        Path outputFile = solutionFolder.resolve(path);
+        PackageFileWriter.Callback callback = null;
+        if (manifest != null) {
+          long size = content.size();
+          HashCode hash = PackageManifest.hash(content);
+          if (manifest.isUnchanged(outputFile, size, hash)) {
+            return;
+          }
+          callback = () -> manifest.recordWritten(outputFile, size, hash);
+        }
+        createParentFolder(outputFile);
+        fileWriter.write(outputFile, content, source, callback);
+      }
+
+      private void createParentFolder(Path file) throws IOException {
+        Path parent = file.getParent();
+        if (createdFolders.add(parent)) {
+          Files.createDirectories(parent);
+        }
+      }
+
+      /** Ends the solution, once all its files are received. */
+      @Override
+      public void close() throws IOException {
+        fileWriter.endSolution();
+      }
+    }
+
+    // Hard links the file, or symlinks it if the file system doesn't support hard links.
+    private static void link(Path target, Path link) throws IOException {
+      Files.deleteIfExists(link);
+      try {
+        Files.createLink(link, target);
+      } catch (IOException | UnsupportedOperationException e) {
+        Files.createSymbolicLink(link, link.getParent().relativize(target));
+      }
+    }
+  }
+
+  /** Streams the package files into a ZIP or gzipped tar archive, to a file or stdout. */
+  static class ArchiveWriter extends OutputWriter {
+    ArchiveWriter(AutogenSettings settings) {
+      super(settings);
+    }
+
+    @Override
+    void writeOutput(Message message) throws IOException {
+      if (message instanceof BatchOutput) {
+        writeBatch((BatchOutput) message);
       } else {
-        solutions = ImmutableMap.of("", (SolutionPackage) message);
+        try (ArchiveOutput archive = openArchive()) {
+          writeSolution(archive, "", (SolutionPackage) message);
+        }
       }
+    }
 
-      for (Map.Entry<String, SolutionPackage> entry : solutions.entrySet()) {
-        for (SolutionPackage.File file : entry.getValue().getFilesList()) {
-          String filePath =
-              Paths.get(this.settings.getOutput(), entry.getKey(), file.getPath()).toString();
-          File outputFile = new File(filePath);
-          Files.createParentDirs(outputFile);
-          if (filePath.endsWith(".png") || filePath.endsWith(".jpg")) {
-            Files.write(BaseEncoding.base64().decode(file.getContent()), outputFile);
-          } else {
-            Files.asCharSink(outputFile, UTF_8).write(file.getContent());
+    /** Adds the files of each solution to the archive as soon as it's generated. */
+    @Override
+    BatchWriter openBatch() throws IOException {
+      Set<String> solutionFolders = new HashSet<>();
+      ArchiveOutput archive = openArchive();
+      Map<String, SolutionPackage.File> sharedFiles = new HashMap<>();
+      return new BatchWriter() {
+        @Override
+        public void writeSharedSupportFiles(SolutionPackage sharedSupportFiles) {
+          for (SolutionPackage.File file : sharedSupportFiles.getFilesList()) {
+            sharedFiles.put(file.getPath(), file);
+          }
+        }
+
+        @Override
+        public void write(SolutionOutput solution) throws IOException {
+          String folder = solution.getPartnerId() + "/" + solution.getSolutionId();
+          Preconditions.checkArgument(
+              solutionFolders.add(folder), "Multiple solutions with the same id: %s", folder);
+          writeSolution(archive, folder + "/", solution.getPackage());
+          // Archive entries can't be linked portably, so the shared files are added to each
+          // solution, but only held once in memory.
+          for (String path : solution.getPackage().getSharedSupportFilesList()) {
+            SolutionPackage.File file = sharedFiles.get(path);
+            Preconditions.checkArgument(
+                file != null, "Shared support file %s is missing from the batch", path);
+            archive.putFile(folder + "/" + path, getContent(file));
           }
         }
+
+        @Override
+        public void close() throws IOException {
+          archive.close();
+        }
+      };
+    }
+
+    private ArchiveOutput openArchive() throws IOException {
+      OutputStream stream = newOutputStream();
+      return settings.getOutputType() == AutogenSettings.OutputType.ZIP
+          ? ArchiveOutput.zip(stream)
+          : ArchiveOutput.tarGz(stream);
+    }
+
+    private static void writeSolution(
+        ArchiveOutput archive, String prefix, SolutionPackage solution) throws IOException {
+      for (SolutionPackage.File file : solution.getFilesList()) {
+        archive.putFile(prefix + file.getPath(), getContent(file));
       }
     }
   }
+
+  /** Returns the content of the file, as written into the package folder or archive. */
+  private static ByteSource getContent(SolutionPackage.File file) {
+    switch (file.getSourceCase()) {
+      case SOURCE_PATH:
+        return MoreFiles.asByteSource(Paths.get(file.getSourcePath()));
+      case BINARY_CONTENT:
+        return asByteSource(file.getBinaryContent());
+      default:
+        if (file.getPath().endsWith(".png") || file.getPath().endsWith(".jpg")) {
+          // Generated with --base64_binary_content.
+          return ByteSource.wrap(BaseEncoding.base64().decode(file.getContent()));
+        }
+        return ByteSource.wrap(file.getContent().getBytes(UTF_8));
+    }
+  }
+
+  private static ByteSource asByteSource(ByteString bytes) {
+    return new ByteSource() {
+      @Override
+      public InputStream openStream() {
+        return bytes.newInput();
+      }
+
+      @Override
+      public Optional<Long> sizeIfKnown() {
+        return Optional.of((long) bytes.size());
+      }
+    };
+  }
 }
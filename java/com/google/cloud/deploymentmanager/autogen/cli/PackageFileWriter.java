@@ -0,0 +1,214 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.deploymentmanager.autogen.cli;
+
+import com.google.cloud.deploymentmanager.autogen.cli.AutogenSettings.FsyncPolicy;
+import com.google.common.io.ByteSource;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.Nullable;
+
+/**
+ * Writes package files concurrently on a pool of threads, through {@link FileChannel}s. At most the
+ * given number of files are being written at any time, the calling thread blocks while they are.
+ *
+ * <p>The first failure is thrown by the next call, or by {@link #close}, which waits for all files
+ * to be written and synced as configured by the {@link FsyncPolicy}.
+ */
+final class PackageFileWriter implements Closeable {
+
+  /** Called once a file is written, from the writing thread. */
+  interface Callback {
+    void onWritten() throws IOException;
+  }
+
+  private final int concurrency;
+  private final FsyncPolicy fsyncPolicy;
+  private final ExecutorService executor;
+  private final Semaphore pendingWrites;
+  // Files left to sync when closing, with FsyncPolicy.BATCH.
+  private final Queue<Path> unsynced = new ConcurrentLinkedQueue<>();
+  private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+  PackageFileWriter(int concurrency, FsyncPolicy fsyncPolicy) {
+    this.concurrency = concurrency;
+    this.fsyncPolicy = fsyncPolicy;
+    this.executor =
+        Executors.newFixedThreadPool(
+            concurrency,
+            new ThreadFactoryBuilder().setNameFormat("autogen-writer-%d").setDaemon(true).build());
+    this.pendingWrites = new Semaphore(concurrency);
+  }
+
+  /**
+   * Writes the content to the file, whose folder must exist, or copies the source file if there is
+   * one. Blocks while the maximum number of files are being written.
+   */
+  void write(Path file, ByteSource content, @Nullable Path source, @Nullable Callback callback)
+      throws IOException {
+    checkFailure();
+    acquire(1);
+    executor.execute(
+        () -> {
+          try {
+            writeFile(file, content, source);
+            if (callback != null) {
+              callback.onWritten();
+            }
+          } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+          } finally {
+            pendingWrites.release();
+          }
+        });
+  }
+
+  /**
+   * Syncs a file written on the calling thread as configured, right away with {@link
+   * FsyncPolicy#SOLUTION}, or when closing with {@link FsyncPolicy#BATCH}.
+   */
+  void sync(Path file) throws IOException {
+    switch (fsyncPolicy) {
+      case SOLUTION:
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+          channel.force(true);
+        }
+        break;
+      case BATCH:
+        unsynced.add(file);
+        break;
+      case NONE:
+        break;
+    }
+  }
+
+  /**
+   * Ends the files of a solution. With {@link FsyncPolicy#SOLUTION}, waits for them to be written
+   * and synced, so that each solution is durable before the next one is written.
+   */
+  void endSolution() throws IOException {
+    if (fsyncPolicy == FsyncPolicy.SOLUTION) {
+      awaitPendingWrites();
+      checkFailure();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      awaitPendingWrites();
+      checkFailure();
+      if (fsyncPolicy == FsyncPolicy.BATCH) {
+        for (Path file = unsynced.poll(); file != null; file = unsynced.poll()) {
+          Path toSync = file;
+          acquire(1);
+          executor.execute(
+              () -> {
+                try (FileChannel channel = FileChannel.open(toSync, StandardOpenOption.WRITE)) {
+                  channel.force(true);
+                } catch (Throwable t) {
+                  failure.compareAndSet(null, t);
+                } finally {
+                  pendingWrites.release();
+                }
+              });
+        }
+        awaitPendingWrites();
+        checkFailure();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private void writeFile(Path file, ByteSource content, @Nullable Path source) throws IOException {
+    try (FileChannel channel =
+        FileChannel.open(
+            file,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      if (source != null) {
+        transfer(source, channel);
+      } else {
+        // The stream isn't closed, the channel is.
+        content.copyTo(Channels.newOutputStream(channel));
+      }
+      if (fsyncPolicy == FsyncPolicy.SOLUTION) {
+        channel.force(true);
+      }
+    }
+    if (fsyncPolicy == FsyncPolicy.BATCH) {
+      unsynced.add(file);
+    }
+  }
+
+  // Transfers the file between the channels, which can avoid copying it through the heap.
+  private static void transfer(Path source, FileChannel out) throws IOException {
+    try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+      long size = in.size();
+      long position = 0;
+      while (position < size) {
+        long transferred = in.transferTo(position, size - position, out);
+        if (transferred <= 0) {
+          throw new EOFException("Truncated while copying: " + source);
+        }
+        position += transferred;
+      }
+    }
+  }
+
+  private void awaitPendingWrites() throws IOException {
+    acquire(concurrency);
+    pendingWrites.release(concurrency);
+  }
+
+  private void acquire(int permits) throws IOException {
+    try {
+      pendingWrites.acquire(permits);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while writing package files");
+    }
+  }
+
+  private void checkFailure() throws IOException {
+    Throwable t = failure.get();
+    if (t == null) {
+      return;
+    }
+    if (t instanceof IOException) {
+      throw new IOException(t.getMessage(), t);
+    }
+    if (t instanceof UncheckedIOException) {
+      throw new IOException(t.getMessage(), t.getCause());
+    }
+    throw new IllegalStateException("Failed to write package files", t);
+  }
+}
@@ -0,0 +1,243 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.deploymentmanager.autogen.cli;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingOutputStream;
+import com.google.common.io.ByteSource;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Records the size, hash and modification time of the files written under an output folder, in a
+ * {@value #FILE_NAME} file at its root, so that files having the same content as in a previous run
+ * are not written again.
+ *
+ * <p>A file is only considered unchanged if its size and modification time on disk are still the
+ * ones recorded, so files modified by other means are written again. Each file is recorded with the
+ * solution folder it was written for, the deepest one containing it, and the files recorded for a
+ * solution folder which is written again but no longer generated are deleted. A solution written at
+ * the root thus only owns the files it wrote itself, not the ones of solutions in subfolders.
+ */
+final class PackageManifest {
+  static final String FILE_NAME = ".autogen_manifest";
+
+  // Fast rather than cryptographic, only meant to detect changes between runs.
+  private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+  private static class Entry {
+    final long size;
+    final HashCode hash;
+    final long lastModifiedMillis;
+    // The solution folder the file was written for, relative to the root.
+    final String folder;
+
+    Entry(long size, HashCode hash, long lastModifiedMillis, String folder) {
+      this.size = size;
+      this.hash = hash;
+      this.lastModifiedMillis = lastModifiedMillis;
+      this.folder = folder;
+    }
+  }
+
+  private final Path root;
+  private final Path manifestFile;
+  // Entries by '/'-separated path relative to the root, as of the previous run and of this run.
+  private final Map<String, Entry> previous;
+  private final Map<String, Entry> current = new TreeMap<>();
+  private final Set<String> solutionFolders = new HashSet<>();
+
+  private int written;
+  private int unchanged;
+  private int deleted;
+
+  private PackageManifest(Path root, Map<String, Entry> previous) {
+    this.root = root;
+    this.manifestFile = root.resolve(FILE_NAME);
+    this.previous = previous;
+  }
+
+  /** Loads the manifest of the output folder, which is empty if there was none. */
+  static PackageManifest load(Path root) throws IOException {
+    Map<String, Entry> entries = new TreeMap<>();
+    Splitter splitter = Splitter.on('\t').limit(5);
+    try (BufferedReader reader = Files.newBufferedReader(root.resolve(FILE_NAME), UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        List<String> fields = splitter.splitToList(line);
+        if (fields.size() != 5) {
+          throw new IOException("Invalid line in " + FILE_NAME + ": " + line);
+        }
+        entries.put(
+            fields.get(4),
+            new Entry(
+                Long.parseLong(fields.get(0)),
+                HashCode.fromString(fields.get(1)),
+                Long.parseLong(fields.get(2)),
+                fields.get(3)));
+      }
+    } catch (NoSuchFileException e) {
+      // First run.
+    } catch (IllegalArgumentException e) {
+      throw new IOException("Invalid " + FILE_NAME, e);
+    }
+    return new PackageManifest(root, entries);
+  }
+
+  static HashCode hash(ByteSource content) throws IOException {
+    return content.hash(HASH_FUNCTION);
+  }
+
+  /** Returns a stream hashing the content written through it as {@link #hash} does. */
+  static HashingOutputStream hashingStream(OutputStream out) {
+    return new HashingOutputStream(HASH_FUNCTION, out);
+  }
+
+  /**
+   * Starts writing the files of the solution in the given folder, relative to the root and
+   * separated by '/'.
+   */
+  synchronized void startSolution(String folder) {
+    solutionFolders.add(folder);
+  }
+
+  /**
+   * Returns whether the file already has the content, as written in a previous run, in which case
+   * it's kept as is.
+   */
+  synchronized boolean isUnchanged(Path file, long size, HashCode hash) throws IOException {
+    String path = relativePath(file);
+    Entry entry = previous.get(path);
+    if (entry == null || entry.size != size || !entry.hash.equals(hash)) {
+      return false;
+    }
+    try {
+      if (Files.size(file) != size
+          || Files.getLastModifiedTime(file).toMillis() != entry.lastModifiedMillis) {
+        return false;
+      }
+    } catch (NoSuchFileException e) {
+      return false;
+    }
+    current.put(
+        path, new Entry(entry.size, entry.hash, entry.lastModifiedMillis, folderOf(path)));
+    unchanged++;
+    return true;
+  }
+
+  /** Records the content just written to the file, from any thread. */
+  synchronized void recordWritten(Path file, long size, HashCode hash) throws IOException {
+    String path = relativePath(file);
+    current.put(
+        path,
+        new Entry(size, hash, Files.getLastModifiedTime(file).toMillis(), folderOf(path)));
+    written++;
+  }
+
+  /**
+   * Deletes the files of the written solution folders that weren't written in this run, and saves
+   * the manifest. Entries of the solution folders not written in this run are kept.
+   */
+  synchronized void finish() throws IOException {
+    List<String> stale = new ArrayList<>();
+    for (Map.Entry<String, Entry> entry : previous.entrySet()) {
+      String path = entry.getKey();
+      if (current.containsKey(path)) {
+        continue;
+      }
+      if (solutionFolders.contains(entry.getValue().folder)) {
+        stale.add(path);
+      } else {
+        current.put(path, entry.getValue());
+      }
+    }
+    for (String path : stale) {
+      if (Files.deleteIfExists(root.resolve(path))) {
+        deleted++;
+      }
+    }
+
+    Files.createDirectories(root);
+    Path temporaryFile = Files.createTempFile(root, FILE_NAME, ".tmp");
+    try (BufferedWriter writer = Files.newBufferedWriter(temporaryFile, UTF_8)) {
+      for (Map.Entry<String, Entry> entry : current.entrySet()) {
+        Entry value = entry.getValue();
+        writer
+            .append(Long.toString(value.size))
+            .append('\t')
+            .append(value.hash.toString())
+            .append('\t')
+            .append(Long.toString(value.lastModifiedMillis))
+            .append('\t')
+            .append(value.folder)
+            .append('\t')
+            .append(entry.getKey());
+        writer.newLine();
+      }
+    }
+    Files.move(
+        temporaryFile,
+        manifestFile,
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  int getWrittenCount() {
+    return written;
+  }
+
+  int getUnchangedCount() {
+    return unchanged;
+  }
+
+  int getDeletedCount() {
+    return deleted;
+  }
+
+  // The deepest solution folder of this run containing the path, or the root.
+  private String folderOf(String path) {
+    for (int end = path.lastIndexOf('/'); end >= 0; end = path.lastIndexOf('/', end - 1)) {
+      String folder = path.substring(0, end);
+      if (solutionFolders.contains(folder)) {
+        return folder;
+      }
+    }
+    return "";
+  }
+
+  // Separated by '/' whatever the platform, like the solution folders, so that the manifest can be
+  // matched against them and read back on any platform.
+  private String relativePath(Path file) {
+    return Joiner.on('/').join(root.relativize(file));
+  }
+}
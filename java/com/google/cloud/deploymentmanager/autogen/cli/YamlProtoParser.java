@@ -0,0 +1,409 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.cloud.deploymentmanager.autogen.cli;
+
+import com.google.common.io.BaseEncoding;
+import com.google.common.primitives.Bytes;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.EnumDescriptor;
+import com.google.protobuf.Descriptors.EnumValueDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.FileDescriptor;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.util.JsonFormat;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.yaml.snakeyaml.Yaml;
+
+/**
+ * Merges a YAML document into a protobuf message, through the message descriptors.
+ *
+ * <p>The semantics are the ones of serializing the values loaded by SnakeYAML to JSON with Gson,
+ * and parsing that JSON with {@link JsonFormat#parser()}, which is how YAML input used to be read.
+ * Fields are matched by their proto or JSON name, enums by name or number, null values are ignored
+ * and scalars are converted from their JSON string form. The loaded values are set on the builder
+ * directly instead, without materializing the JSON string and its parsed tree.
+ */
+final class YamlProtoParser {
+  // Same tolerances as JsonFormat, which accepts printed values that are slightly out of range.
+  private static final double EPSILON = 1e-6;
+  private static final BigDecimal MORE_THAN_ONE = new BigDecimal(String.valueOf(1.0 + EPSILON));
+  private static final BigDecimal MAX_DOUBLE =
+      new BigDecimal(String.valueOf(Double.MAX_VALUE)).multiply(MORE_THAN_ONE);
+  private static final BigDecimal MIN_DOUBLE =
+      new BigDecimal(String.valueOf(-Double.MAX_VALUE)).multiply(MORE_THAN_ONE);
+  private static final BigInteger MAX_UINT32 = new BigInteger("FFFFFFFF", 16);
+  private static final BigInteger MAX_UINT64 = new BigInteger("FFFFFFFFFFFFFFFF", 16);
+
+  private static final ConcurrentMap<Descriptor, Map<String, FieldDescriptor>> fieldNameMaps =
+      new ConcurrentHashMap<>();
+
+  static void merge(Reader yaml, Message.Builder builder) throws InvalidProtocolBufferException {
+    Map<?, ?> document = new Yaml().loadAs(yaml, Map.class);
+    try {
+      mergeMessage(document, builder);
+    } catch (InvalidProtocolBufferException e) {
+      throw e;
+    } catch (RuntimeException e) {
+      // JsonFormat reports any parsing failure as an invalid protocol buffer.
+      throw new InvalidProtocolBufferException(e.getMessage());
+    }
+  }
+
+  private static void mergeMessage(Object value, Message.Builder builder)
+      throws InvalidProtocolBufferException {
+    if (!(value instanceof Map)) {
+      throw new InvalidProtocolBufferException("Expect message object but got: " + value);
+    }
+    Descriptor type = builder.getDescriptorForType();
+    Map<String, FieldDescriptor> fieldNameMap = getFieldNameMap(type);
+    for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+      // Null values are dropped when serializing to JSON, even for unknown fields.
+      if (entry.getValue() == null) {
+        continue;
+      }
+      String name = String.valueOf(entry.getKey());
+      FieldDescriptor field = fieldNameMap.get(name);
+      if (field == null) {
+        throw new InvalidProtocolBufferException(
+            "Cannot find field: " + name + " in message " + type.getFullName());
+      }
+      mergeField(field, entry.getValue(), builder);
+    }
+  }
+
+  private static Map<String, FieldDescriptor> getFieldNameMap(Descriptor type) {
+    return fieldNameMaps.computeIfAbsent(
+        type,
+        t -> {
+          Map<String, FieldDescriptor> fieldNameMap = new HashMap<>();
+          for (FieldDescriptor field : t.getFields()) {
+            fieldNameMap.put(field.getName(), field);
+            fieldNameMap.put(field.getJsonName(), field);
+          }
+          return fieldNameMap;
+        });
+  }
+
+  private static void mergeField(FieldDescriptor field, Object value, Message.Builder builder)
+      throws InvalidProtocolBufferException {
+    // The same field can be given both by its proto and its JSON name.
+    if (field.isRepeated() ? builder.getRepeatedFieldCount(field) > 0 : builder.hasField(field)) {
+      throw new InvalidProtocolBufferException(
+          "Field " + field.getFullName() + " has already been set.");
+    }
+    if (field.isMapField()) {
+      mergeMapField(field, value, builder);
+    } else if (field.isRepeated()) {
+      mergeRepeatedField(field, value, builder);
+    } else if (field.getContainingOneof() != null) {
+      mergeOneofField(field, value, builder);
+    } else {
+      builder.setField(field, parseFieldValue(field, value, builder));
+    }
+  }
+
+  private static void mergeMapField(FieldDescriptor field, Object value, Message.Builder builder)
+      throws InvalidProtocolBufferException {
+    if (!(value instanceof Map)) {
+      throw new InvalidProtocolBufferException("Expect a map object but found: " + value);
+    }
+    FieldDescriptor keyField = field.getMessageType().findFieldByName("key");
+    FieldDescriptor valueField = field.getMessageType().findFieldByName("value");
+    for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+      if (entry.getValue() == null) {
+        continue;
+      }
+      Message.Builder entryBuilder = builder.newBuilderForField(field);
+      // JSON object keys are always strings.
+      Object entryKey = parseFieldValue(keyField, String.valueOf(entry.getKey()), entryBuilder);
+      Object entryValue = parseFieldValue(valueField, entry.getValue(), entryBuilder);
+      entryBuilder.setField(keyField, entryKey);
+      entryBuilder.setField(valueField, entryValue);
+      builder.addRepeatedField(field, entryBuilder.build());
+    }
+  }
+
+  private static void mergeRepeatedField(
+      FieldDescriptor field, Object value, Message.Builder builder)
+      throws InvalidProtocolBufferException {
+    if (!isArray(value)) {
+      throw new InvalidProtocolBufferException("Expect an array but found: " + value);
+    }
+    for (Object element : asList(value)) {
+      if (element == null) {
+        throw new InvalidProtocolBufferException(
+            "Repeated field elements cannot be null in field: " + field.getFullName());
+      }
+      builder.addRepeatedField(field, parseFieldValue(field, element, builder));
+    }
+  }
+
+  private static void mergeOneofField(FieldDescriptor field, Object value, Message.Builder builder)
+      throws InvalidProtocolBufferException {
+    Object fieldValue = parseFieldValue(field, value, builder);
+    FieldDescriptor setField = builder.getOneofFieldDescriptor(field.getContainingOneof());
+    if (setField != null) {
+      throw new InvalidProtocolBufferException(
+          "Cannot set field "
+              + field.getFullName()
+              + " because another field "
+              + setField.getFullName()
+              + " belonging to the same oneof has already been set ");
+    }
+    builder.setField(field, fieldValue);
+  }
+
+  private static Object parseFieldValue(
+      FieldDescriptor field, Object value, Message.Builder builder)
+      throws InvalidProtocolBufferException {
+    switch (field.getType()) {
+      case INT32:
+      case SINT32:
+      case SFIXED32:
+        return parseInt32(value);
+      case INT64:
+      case SINT64:
+      case SFIXED64:
+        return parseInt64(value);
+      case BOOL:
+        return parseBool(value);
+      case FLOAT:
+        return parseFloat(value);
+      case DOUBLE:
+        return parseDouble(value);
+      case UINT32:
+      case FIXED32:
+        return parseUint32(value);
+      case UINT64:
+      case FIXED64:
+        return parseUint64(value);
+      case STRING:
+        return asString(value);
+      case BYTES:
+        return parseBytes(value);
+      case ENUM:
+        return parseEnum(field.getEnumType(), value);
+      case MESSAGE:
+      case GROUP:
+        Message.Builder subBuilder = builder.newBuilderForField(field);
+        mergeMessage(value, subBuilder);
+        return subBuilder.build();
+    }
+    throw new InvalidProtocolBufferException("Invalid field type: " + field.getType());
+  }
+
+  private static int parseInt32(Object value) throws InvalidProtocolBufferException {
+    try {
+      return Integer.parseInt(asString(value));
+    } catch (RuntimeException e) {
+      // Fall through to parse values such as "1.0" or "1e2".
+    }
+    try {
+      return new BigDecimal(asString(value)).intValueExact();
+    } catch (RuntimeException e) {
+      throw new InvalidProtocolBufferException("Not an int32 value: " + value);
+    }
+  }
+
+  private static long parseInt64(Object value) throws InvalidProtocolBufferException {
+    try {
+      return Long.parseLong(asString(value));
+    } catch (RuntimeException e) {
+      // Fall through to parse values such as "1.0" or "1e2".
+    }
+    try {
+      return new BigDecimal(asString(value)).longValueExact();
+    } catch (RuntimeException e) {
+      throw new InvalidProtocolBufferException("Not an int64 value: " + value);
+    }
+  }
+
+  private static int parseUint32(Object value) throws InvalidProtocolBufferException {
+    BigInteger result;
+    try {
+      result = new BigDecimal(asString(value)).toBigIntegerExact();
+    } catch (RuntimeException e) {
+      throw new InvalidProtocolBufferException("Not an uint32 value: " + value);
+    }
+    if (result.signum() < 0 || result.compareTo(MAX_UINT32) > 0) {
+      throw new InvalidProtocolBufferException("Out of range uint32 value: " + value);
+    }
+    return result.intValue();
+  }
+
+  private static long parseUint64(Object value) throws InvalidProtocolBufferException {
+    BigInteger result;
+    try {
+      result = new BigDecimal(asString(value)).toBigIntegerExact();
+    } catch (RuntimeException e) {
+      throw new InvalidProtocolBufferException("Not an uint64 value: " + value);
+    }
+    if (result.signum() < 0 || result.compareTo(MAX_UINT64) > 0) {
+      throw new InvalidProtocolBufferException("Out of range uint64 value: " + value);
+    }
+    return result.longValue();
+  }
+
+  private static boolean parseBool(Object value) throws InvalidProtocolBufferException {
+    String string = asString(value);
+    if (string.equals("true")) {
+      return true;
+    }
+    if (string.equals("false")) {
+      return false;
+    }
+    throw new InvalidProtocolBufferException("Invalid bool value: " + value);
+  }
+
+  private static float parseFloat(Object value) throws InvalidProtocolBufferException {
+    String string = asString(value);
+    switch (string) {
+      case "NaN":
+        return Float.NaN;
+      case "Infinity":
+        return Float.POSITIVE_INFINITY;
+      case "-Infinity":
+        return Float.NEGATIVE_INFINITY;
+      default:
+        break;
+    }
+    double result;
+    try {
+      result = Double.parseDouble(string);
+    } catch (RuntimeException e) {
+      throw new InvalidProtocolBufferException("Not a float value: " + value);
+    }
+    if (result > Float.MAX_VALUE * (1.0 + EPSILON) || result < -Float.MAX_VALUE * (1.0 + EPSILON)) {
+      throw new InvalidProtocolBufferException("Out of range float value: " + value);
+    }
+    return (float) result;
+  }
+
+  private static double parseDouble(Object value) throws InvalidProtocolBufferException {
+    String string = asString(value);
+    switch (string) {
+      case "NaN":
+        return Double.NaN;
+      case "Infinity":
+        return Double.POSITIVE_INFINITY;
+      case "-Infinity":
+        return Double.NEGATIVE_INFINITY;
+      default:
+        break;
+    }
+    BigDecimal result;
+    try {
+      result = new BigDecimal(string);
+    } catch (RuntimeException e) {
+      throw new InvalidProtocolBufferException("Not an double value: " + value);
+    }
+    if (result.compareTo(MAX_DOUBLE) > 0 || result.compareTo(MIN_DOUBLE) < 0) {
+      throw new InvalidProtocolBufferException("Out of range double value: " + value);
+    }
+    return result.doubleValue();
+  }
+
+  private static ByteString parseBytes(Object value) {
+    String string = asString(value);
+    try {
+      return ByteString.copyFrom(BaseEncoding.base64().decode(string));
+    } catch (IllegalArgumentException e) {
+      return ByteString.copyFrom(BaseEncoding.base64Url().decode(string));
+    }
+  }
+
+  private static EnumValueDescriptor parseEnum(EnumDescriptor type, Object value)
+      throws InvalidProtocolBufferException {
+    String name = asString(value);
+    EnumValueDescriptor result = type.findValueByName(name);
+    if (result == null) {
+      try {
+        int number = parseInt32(value);
+        result =
+            type.getFile().getSyntax() == FileDescriptor.Syntax.PROTO3
+                ? type.findValueByNumberCreatingIfUnknown(number)
+                : type.findValueByNumber(number);
+      } catch (InvalidProtocolBufferException e) {
+        // Reported below as an invalid enum value.
+      }
+      if (result == null) {
+        throw new InvalidProtocolBufferException(
+            "Invalid enum value: " + name + " for enum type: " + type.getFullName());
+      }
+    }
+    return result;
+  }
+
+  /** Returns the string form of a scalar in the JSON document Gson would have serialized. */
+  private static String asString(Object value) {
+    if (value instanceof String) {
+      return (String) value;
+    }
+    if (value instanceof Double || value instanceof Float) {
+      double number = ((Number) value).doubleValue();
+      if (Double.isNaN(number) || Double.isInfinite(number)) {
+        throw new IllegalArgumentException(
+            number + " is not a valid double value as per JSON specification");
+      }
+      return value.toString();
+    }
+    if (value instanceof Number || value instanceof Boolean) {
+      return value.toString();
+    }
+    if (value instanceof Date) {
+      // YAML timestamps, which Gson formats with its default date format.
+      return DateFormat.getDateTimeInstance(DateFormat.DEFAULT, DateFormat.DEFAULT, Locale.US)
+          .format((Date) value);
+    }
+    if (isArray(value)) {
+      // Like a JSON array, a single element array can be used as its element.
+      List<?> list = asList(value);
+      if (list.size() == 1 && list.get(0) != null) {
+        return asString(list.get(0));
+      }
+      throw new IllegalStateException("Not a single element array: " + value);
+    }
+    throw new UnsupportedOperationException("Not a scalar value: " + value);
+  }
+
+  // Collections and binary values are serialized to JSON arrays.
+  private static boolean isArray(Object value) {
+    return value instanceof Collection || value instanceof byte[];
+  }
+
+  private static List<?> asList(Object value) {
+    if (value instanceof byte[]) {
+      return Bytes.asList((byte[]) value);
+    }
+    return value instanceof List ? (List<?>) value : new ArrayList<>((Collection<?>) value);
+  }
+
+  private YamlProtoParser() {}
+}
@@ -0,0 +1,314 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.cloud.deploymentmanager.autogen.cli;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.BaseEncoding;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.EnumValueDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import com.google.protobuf.MessageOrBuilder;
+import com.google.protobuf.util.JsonFormat;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import org.yaml.snakeyaml.DumperOptions;
+import org.yaml.snakeyaml.DumperOptions.FlowStyle;
+import org.yaml.snakeyaml.DumperOptions.ScalarStyle;
+import org.yaml.snakeyaml.emitter.Emitter;
+import org.yaml.snakeyaml.events.DocumentEndEvent;
+import org.yaml.snakeyaml.events.DocumentStartEvent;
+import org.yaml.snakeyaml.events.ImplicitTuple;
+import org.yaml.snakeyaml.events.MappingEndEvent;
+import org.yaml.snakeyaml.events.MappingStartEvent;
+import org.yaml.snakeyaml.events.ScalarEvent;
+import org.yaml.snakeyaml.events.SequenceEndEvent;
+import org.yaml.snakeyaml.events.SequenceStartEvent;
+import org.yaml.snakeyaml.events.StreamEndEvent;
+import org.yaml.snakeyaml.events.StreamStartEvent;
+import org.yaml.snakeyaml.nodes.NodeId;
+import org.yaml.snakeyaml.nodes.Tag;
+import org.yaml.snakeyaml.reader.StreamReader;
+import org.yaml.snakeyaml.resolver.Resolver;
+
+/**
+ * Prints protobuf messages as YAML, emitting SnakeYAML events while walking the messages through
+ * their descriptors.
+ *
+ * <p>The output is the one of printing the message to JSON with {@link JsonFormat#printer()},
+ * loading that JSON with SnakeYAML and dumping the loaded values with the default options, which is
+ * how YAML output used to be written. Fields have their JSON names, 64-bit integers and bytes are
+ * strings, mappings and sequences holding only plain scalars use the flow style and multi-line
+ * strings the literal style. The events go straight to the writer instead, without materializing
+ * the JSON string, the loaded values and the dumped string.
+ */
+final class YamlProtoPrinter {
+  // Line breaks for which SnakeYAML represents strings in the literal style.
+  private static final Pattern MULTILINE = Pattern.compile("\n|\u0085|\u2028|\u2029");
+
+  // The well-known types JsonFormat prints in a special form, which the outputs don't use.
+  private static final ImmutableSet<String> SPECIAL_JSON_TYPES =
+      ImmutableSet.of(
+          "google.protobuf.Any",
+          "google.protobuf.BoolValue",
+          "google.protobuf.BytesValue",
+          "google.protobuf.DoubleValue",
+          "google.protobuf.Duration",
+          "google.protobuf.FieldMask",
+          "google.protobuf.FloatValue",
+          "google.protobuf.Int32Value",
+          "google.protobuf.Int64Value",
+          "google.protobuf.ListValue",
+          "google.protobuf.StringValue",
+          "google.protobuf.Struct",
+          "google.protobuf.Timestamp",
+          "google.protobuf.UInt32Value",
+          "google.protobuf.UInt64Value",
+          "google.protobuf.Value");
+
+  private final Emitter emitter;
+  private final Resolver resolver = new Resolver();
+
+  YamlProtoPrinter(Writer out) {
+    this.emitter = new Emitter(out, new DumperOptions());
+  }
+
+  /** Prints the message as a whole YAML document. */
+  void print(MessageOrBuilder message) throws IOException {
+    startDocument();
+    printMessage(message);
+    endDocument();
+  }
+
+  void startDocument() throws IOException {
+    emitter.emit(new StreamStartEvent(null, null));
+    emitter.emit(new DocumentStartEvent(null, null, false, null, null));
+  }
+
+  /** Ends the document, flushing the writer. */
+  void endDocument() throws IOException {
+    emitter.emit(new DocumentEndEvent(null, null, false));
+    emitter.emit(new StreamEndEvent(null, null));
+  }
+
+  void startMapping(FlowStyle flowStyle) throws IOException {
+    emitter.emit(new MappingStartEvent(null, Tag.MAP.getValue(), true, null, null, flowStyle));
+  }
+
+  void endMapping() throws IOException {
+    emitter.emit(new MappingEndEvent(null, null));
+  }
+
+  void startSequence(FlowStyle flowStyle) throws IOException {
+    emitter.emit(new SequenceStartEvent(null, Tag.SEQ.getValue(), true, null, null, flowStyle));
+  }
+
+  void endSequence() throws IOException {
+    emitter.emit(new SequenceEndEvent(null, null));
+  }
+
+  /** Prints the key of a mapping entry, to be followed by its value. */
+  void printKey(String key) throws IOException {
+    printString(key);
+  }
+
+  /** Prints the message as a mapping of its set fields, by their JSON names. */
+  void printMessage(MessageOrBuilder message) throws IOException {
+    Descriptor type = message.getDescriptorForType();
+    if (SPECIAL_JSON_TYPES.contains(type.getFullName())) {
+      throw new IllegalArgumentException("Unsupported well-known type: " + type.getFullName());
+    }
+    Map<FieldDescriptor, Object> fields = message.getAllFields();
+    boolean flow = true;
+    for (Map.Entry<FieldDescriptor, Object> field : fields.entrySet()) {
+      if (field.getKey().isRepeated() || !isPlainScalar(field.getKey(), field.getValue())) {
+        flow = false;
+        break;
+      }
+    }
+    startMapping(flow ? FlowStyle.FLOW : FlowStyle.BLOCK);
+    for (Map.Entry<FieldDescriptor, Object> field : fields.entrySet()) {
+      printKey(field.getKey().getJsonName());
+      if (field.getKey().isMapField()) {
+        printMap(field.getKey(), (List<?>) field.getValue());
+      } else if (field.getKey().isRepeated()) {
+        printList(field.getKey(), (List<?>) field.getValue());
+      } else {
+        printValue(field.getKey(), field.getValue());
+      }
+    }
+    endMapping();
+  }
+
+  private void printList(FieldDescriptor field, List<?> values) throws IOException {
+    boolean flow = true;
+    for (Object value : values) {
+      if (!isPlainScalar(field, value)) {
+        flow = false;
+        break;
+      }
+    }
+    startSequence(flow ? FlowStyle.FLOW : FlowStyle.BLOCK);
+    for (Object value : values) {
+      printValue(field, value);
+    }
+    endSequence();
+  }
+
+  // Map fields are JSON objects, whose keys are strings.
+  private void printMap(FieldDescriptor field, List<?> entries) throws IOException {
+    FieldDescriptor keyField = field.getMessageType().findFieldByName("key");
+    FieldDescriptor valueField = field.getMessageType().findFieldByName("value");
+    boolean flow = true;
+    for (Object entry : entries) {
+      Message message = (Message) entry;
+      if (!isPlainString(mapKey(keyField, message.getField(keyField)))
+          || !isPlainScalar(valueField, message.getField(valueField))) {
+        flow = false;
+        break;
+      }
+    }
+    startMapping(flow ? FlowStyle.FLOW : FlowStyle.BLOCK);
+    for (Object entry : entries) {
+      Message message = (Message) entry;
+      printString(mapKey(keyField, message.getField(keyField)));
+      printValue(valueField, message.getField(valueField));
+    }
+    endMapping();
+  }
+
+  private static String mapKey(FieldDescriptor keyField, Object key) {
+    switch (keyField.getType()) {
+      case UINT32:
+      case FIXED32:
+        return Integer.toUnsignedString((Integer) key);
+      case UINT64:
+      case FIXED64:
+        return Long.toUnsignedString((Long) key);
+      default:
+        return key.toString();
+    }
+  }
+
+  /** Returns whether the value is a scalar that SnakeYAML represents in the plain style. */
+  private static boolean isPlainScalar(FieldDescriptor field, Object value) {
+    switch (field.getJavaType()) {
+      case MESSAGE:
+        return false;
+      case STRING:
+        return isPlainString((String) value);
+      default:
+        return true;
+    }
+  }
+
+  private static boolean isPlainString(String value) {
+    return StreamReader.isPrintable(value) && !MULTILINE.matcher(value).find();
+  }
+
+  // Scalars have the tag of the value loaded from their JSON form: a number, a boolean or a string.
+  private void printValue(FieldDescriptor field, Object value) throws IOException {
+    switch (field.getType()) {
+      case MESSAGE:
+      case GROUP:
+        printMessage((MessageOrBuilder) value);
+        return;
+      case INT32:
+      case SINT32:
+      case SFIXED32:
+        printScalar(Tag.INT, value.toString(), ScalarStyle.PLAIN);
+        return;
+      case UINT32:
+      case FIXED32:
+        printScalar(Tag.INT, Integer.toUnsignedString((Integer) value), ScalarStyle.PLAIN);
+        return;
+      case INT64:
+      case SINT64:
+      case SFIXED64:
+        printString(value.toString());
+        return;
+      case UINT64:
+      case FIXED64:
+        printString(Long.toUnsignedString((Long) value));
+        return;
+      case BOOL:
+        printScalar(Tag.BOOL, value.toString(), ScalarStyle.PLAIN);
+        return;
+      case FLOAT:
+        printFloatingPoint(((Float) value).doubleValue(), value.toString());
+        return;
+      case DOUBLE:
+        printFloatingPoint((Double) value, value.toString());
+        return;
+      case STRING:
+        printString((String) value);
+        return;
+      case BYTES:
+        printString(BaseEncoding.base64().encode(((ByteString) value).toByteArray()));
+        return;
+      case ENUM:
+        EnumValueDescriptor enumValue = (EnumValueDescriptor) value;
+        // Unknown values are printed as their number.
+        if (enumValue.getIndex() == -1) {
+          printScalar(Tag.INT, String.valueOf(enumValue.getNumber()), ScalarStyle.PLAIN);
+        } else {
+          printString(enumValue.getName());
+        }
+        return;
+    }
+    throw new AssertionError("Unknown field type: " + field.getType());
+  }
+
+  // JSON has no form for NaN and infinities, so they are strings, and finite values are loaded
+  // back as doubles.
+  private void printFloatingPoint(double value, String json) throws IOException {
+    if (Double.isNaN(value)) {
+      printString("NaN");
+    } else if (Double.isInfinite(value)) {
+      printString(value > 0 ? "Infinity" : "-Infinity");
+    } else {
+      printScalar(Tag.FLOAT, Double.valueOf(json).toString(), ScalarStyle.PLAIN);
+    }
+  }
+
+  private void printString(String value) throws IOException {
+    if (!StreamReader.isPrintable(value)) {
+      // Strings with characters YAML can't hold are represented as binary.
+      printScalar(
+          Tag.BINARY, BaseEncoding.base64().encode(value.getBytes(UTF_8)), ScalarStyle.LITERAL);
+    } else {
+      printScalar(
+          Tag.STR,
+          value,
+          MULTILINE.matcher(value).find() ? ScalarStyle.LITERAL : ScalarStyle.PLAIN);
+    }
+  }
+
+  // Leaves the tag implicit when it's the one the value resolves to, like SnakeYAML's serializer.
+  private void printScalar(Tag tag, String value, ScalarStyle style) throws IOException {
+    ImplicitTuple implicit =
+        new ImplicitTuple(
+            tag.equals(resolver.resolve(NodeId.scalar, value, true)),
+            tag.equals(resolver.resolve(NodeId.scalar, value, false)));
+    emitter.emit(new ScalarEvent(null, tag.getValue(), implicit, value, null, null, style));
+  }
+}
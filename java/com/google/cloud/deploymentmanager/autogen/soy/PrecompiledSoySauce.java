@@ -0,0 +1,60 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.deploymentmanager.autogen.soy;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.template.soy.jbcsrc.api.SoySauce;
+import com.google.template.soy.jbcsrc.api.SoySauceImpl;
+import com.google.template.soy.jbcsrc.shared.CompiledTemplates;
+import com.google.template.soy.plugin.java.PluginInstances;
+import com.google.template.soy.shared.internal.InternalPlugins;
+import com.google.template.soy.shared.internal.SoySimpleScope;
+import com.google.template.soy.shared.restricted.SoyFunction;
+import com.google.template.soy.shared.restricted.SoyPrintDirective;
+import java.util.Set;
+
+/**
+ * Loads templates precompiled by {@link TemplateRenderer.FileSet.Builder#compileToJar}.
+ *
+ * <p>This is the only place depending on soy internals. Soy's public {@code SoySauceBuilder} can
+ * only be given the plugin instances of soy source functions, not the legacy functions and print
+ * directives these templates are compiled with, so this mirrors what it does instead. Written
+ * against soy 2023-12-13, as pinned in the WORKSPACE: check it again when upgrading soy.
+ */
+final class PrecompiledSoySauce {
+
+  /**
+   * Returns a {@link SoySauce} loading its templates from the given class loader, with the same
+   * plugins they were compiled with.
+   */
+  static SoySauce load(
+      ClassLoader loader,
+      Set<SoyFunction> pluginFunctions,
+      Set<SoyPrintDirective> pluginDirectives) {
+    SoySimpleScope scope = new SoySimpleScope();
+    return new SoySauceImpl(
+        new CompiledTemplates(ImmutableSet.of(), loader),
+        scope.enterable(),
+        ImmutableList.copyOf(pluginFunctions),
+        ImmutableList.<SoyPrintDirective>builder()
+            .addAll(InternalPlugins.internalDirectives(scope))
+            .addAll(pluginDirectives)
+            .build(),
+        PluginInstances.empty());
+  }
+
+  private PrecompiledSoySauce() {}
+}
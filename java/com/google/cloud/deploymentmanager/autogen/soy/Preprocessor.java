@@ -15,18 +15,6 @@
 package com.google.cloud.deploymentmanager.autogen.soy;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.Joiner;
-import com.google.common.base.Predicate;
-import com.google.common.base.Predicates;
-import com.google.common.base.Splitter;
-import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableMap;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.Scanner;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Preprocesses a soy template content by inserting special characters to preserve line breaks and
@@ -48,188 +36,179 @@ import java.util.regex.Pattern;
  *   <li>It contains any special character in the following list: <code>{sp}</code>, <code>{nil}
  *       </code>, <code>{\r}</code>, <code>{\n}</code>, and <code>{\t}</code>
  * </ul>
+ *
+ * <p>The content is processed by a hand-written lexer rather than regular expressions, so that
+ * every stage is linear in the size of the template. Each stage mirrors exactly what the
+ * equivalent Java regular expression would match, including the backtracking behavior of
+ * single-quoted strings inside soy commands, which is resolved ahead of time by {@link
+ * CommandContent}.
  */
 final class Preprocessor {
 
-  // Soy double slash single line comment only counts if it's preceded by an empty space.
-  // This is because soy wants to support "http://" without the needs for escaping.
-  // Also counts leading spaces as part of the comment.
-  private static final Pattern SOY_SINGLE_LINE_COMMENT_REGEX =
-      Pattern.compile("(?:^| +)//.*?$", Pattern.MULTILINE);
+  // If one of these is found, don't insert line breaks or preserve leading spaces.
+  private static final String[] ESCAPES = {"{sp}", "{nil}", "{\\r}", "{\\n}", "{\\t}"};
 
-  // Also counts leading spaces as part of the comment.
-  private static final Pattern SOY_BLOCK_COMMENT_REGEX =
-      Pattern.compile("(?: *)/[*].*?[*]/", Pattern.MULTILINE | Pattern.DOTALL);
+  // Soy commands that are not considered as pure commands when deciding whether a line only has
+  // soy commands. Print commands are handled separately.
+  private static final String[] SOY_COMMAND_BLACKLIST = {
+    "{sp}", "{nil}", "{\\r}", "{\\n}", "{\\t}", "{lb}", "{rb}"
+  };
 
-  // If this regex is found, don't insert line breaks or preserve leading spaces.
-  @VisibleForTesting
-  static final Pattern ESCAPE_REGEX = Pattern.compile("\\{((sp)|(nil)|(\\\\r)|(\\\\n)|(\\\\t))\\}");
+  private static final String PRINT_COMMAND_PREFIX = "{print";
 
-  // If this regex is found, preserve the leading spaces.
-  private static final Pattern PRESERVE_LEADING_REGEX = Pattern.compile("\\{plsp\\}");
+  // If this directive is found, preserve the leading spaces. This directive is then removed, as it
+  // serves only as a directive. For now we have only one directive.
+  private static final String PRESERVE_LEADING_DIRECTIVE = "{plsp}";
 
-  // Substrings found by this regex should be removed as they serve only as directives.
-  // For now we have only one directive.
-  private static final Pattern DIRECTIVE_REGEX = PRESERVE_LEADING_REGEX;
+  private static final String IMPORT_PREFIX = "import ";
 
-  // This regex should be used as an inner regex to capture the content inside a soy command,
-  // which is single-quote-sensitive. It specifically consumes all non-closed-curly-brace
-  // characters, except the ones inside a pair of single quotes.
-  private static final String SOY_COMMAND_CONTENT = "(?:(?:[^}']+)|(?:'(?:[^']|\\\\')*'))+";
+  private static final String LINE_BREAK_PREFIX = "{nil}";
+  private static final String LINE_BREAK_SUFFIX = "{\\n}";
 
-  // Captures a single-lined soy command. This does not include the short version of the print
-  // command (something like "{$variable}") and special characters.
-  // This consumes leading and trailing spaces.
-  @VisibleForTesting
-  static final Pattern SOY_COMMAND_REGEX =
-      Pattern.compile(
-          String.format("\\s*(\\{[/@]?([a-z?]+)(\\s+%s)?\\})\\s*", SOY_COMMAND_CONTENT));
+  // Jinja delimiter replacements. They are applied in order, each one seeing the output of the
+  // previous ones, which is what successive replacement passes would produce.
+  private static final String[][] JINJA_DELIMITER_REPLACEMENTS = {
+    {"{%", "{lb}%"},
+    {"%}", "%{rb}"},
+    {"{{", "{lb}{lb}"},
+    {"}}", "{rb}{rb}"},
+    {"{#", "{lb}#"},
+    {"#}", "#{rb}"},
+  };
 
-  @VisibleForTesting
-  static final Pattern SOY_COMMAND_BLACKLIST_REGEX =
-      Pattern.compile("\\{((sp)|(nil)|(\\\\r)|(\\\\n)|(\\\\t)|(lb)|(rb)|(print\\s+.*))\\}");
-
-  private static final Pattern JINJA_STATEMENT_BEGIN_REGEX = Pattern.compile("\\{%(-)?");
-  private static final Pattern JINJA_STATEMENT_END_REGEX = Pattern.compile("(-)?%\\}");
-  private static final Pattern JINJA_EXPRESSION_BEGIN_REGEX = Pattern.compile("\\{\\{(-)?");
-  private static final Pattern JINJA_EXPRESSION_END_REGEX = Pattern.compile("(-)?\\}\\}");
-  private static final Pattern JINJA_COMMENT_BEGIN_REGEX = Pattern.compile("\\{#(-)?");
-  private static final Pattern JINJA_COMMENT_END_REGEX = Pattern.compile("(-)?#\\}");
-  private static final ImmutableMap<String, Pattern> JINJA_DELIMITER_REPLACEMENTS =
-      ImmutableMap.<String, Pattern>builder()
-          .put("{lb}%$1", JINJA_STATEMENT_BEGIN_REGEX)
-          .put("$1%{rb}", JINJA_STATEMENT_END_REGEX)
-          .put("{lb}{lb}$1", JINJA_EXPRESSION_BEGIN_REGEX)
-          .put("$1{rb}{rb}", JINJA_EXPRESSION_END_REGEX)
-          .put("{lb}#$1", JINJA_COMMENT_BEGIN_REGEX)
-          .put("$1#{rb}", JINJA_COMMENT_END_REGEX)
-          .buildOrThrow();
-
-  private static final Predicate<String> IS_EMPTY_OR_HAS_ONLY_SPACES =
-      new Predicate<String>() {
-        @Override
-        public boolean apply(String trimmedLine) {
-          return trimmedLine.isEmpty();
-        }
-      };
-
-  // Predicates that a trimmed line has only soy commands other than print.
-  @VisibleForTesting
-  static final Predicate<String> HAS_ONLY_SOY_COMMANDS =
-      new Predicate<String>() {
-        @Override
-        public boolean apply(String trimmedLine) {
-          // Removes all non-print commands. If the result is an empty string, then return true.
-          Matcher m = SOY_COMMAND_REGEX.matcher(trimmedLine);
-          StringBuffer sb = new StringBuffer();
-          while (m.find()) {
-            if (!SOY_COMMAND_BLACKLIST_REGEX.matcher(m.group(1)).matches()) {
-              m.appendReplacement(sb, "");
-            } else {
-              m.appendReplacement(sb, Matcher.quoteReplacement(m.group()));
-            }
-            if (sb.length() > 0) {
-              return false;
-            }
-          }
-          m.appendTail(sb);
-          return sb.length() == 0;
-        }
-      };
-
-  // Predicates that a trimmed line has at least one special character that prevents automatic
-  // insertion of line breaks.
-  @VisibleForTesting
-  static final Predicate<String> HAS_ESCAPES =
-      new Predicate<String>() {
-        @Override
-        public boolean apply(String trimmedLine) {
-          return ESCAPE_REGEX.matcher(trimmedLine).find();
-        }
-      };
-
-  // Predicates that a trimmed line has a special directive to preserve leading spaces.
-  static final Predicate<String> SHOULD_PRESERVE_LEADING =
-      new Predicate<String>() {
-        @Override
-        public boolean apply(String trimmedLine) {
-          return PRESERVE_LEADING_REGEX.matcher(trimmedLine).find();
-        }
-      };
-
-  static final Predicate<String> IS_IMPORT =
-      new Predicate<String>() {
-        @Override
-        public boolean apply(String trimmedLine) {
-          return trimmedLine.startsWith("import ") && trimmedLine.endsWith(";");
-        }
-      };
-
-  // Predicates that a trimmed line should not have line breaks inserted.
-  private static final Predicate<String> SHOULD_SKIP_LINE_BREAKS =
-      Predicates.or(
-          ImmutableList.of(
-              IS_EMPTY_OR_HAS_ONLY_SPACES,
-              HAS_ONLY_SOY_COMMANDS,
-              HAS_ESCAPES,
-              SHOULD_PRESERVE_LEADING,
-              IS_IMPORT));
-
-  private static final Joiner LINE_JOINER = Joiner.on('\n');
-
-  // Captures all soy commands, including multi-lined ones and short versions of print command.
-  // This regex is sensitive to jinja delimiters. It's crafted to especially avoid matching
-  // something like "{{ abc }}", since such construct could have been potentially recognized as a
-  // "{ abc }" soy command, with leading { and trailing }. Note that a Jinja delimiter is always
-  // separated by at least one space, hence the space requirement in the lookbehind expression.
-  @VisibleForTesting
-  static final Pattern SOY_COMMAND_TO_COLLAPSE_REGEX =
-      Pattern.compile(
-          String.format("(?<![{])\\{(?![%%#{]-?\\s)%s\\}", SOY_COMMAND_CONTENT), Pattern.MULTILINE);
-
-  private static final Pattern LINE_COLLAPSING_REGEX =
-      Pattern.compile("\\s*\\n\\s*", Pattern.MULTILINE);
+  private static final int NO_MATCH = -1;
 
   /** Preprocesses the content of a template file, returning the modified content. */
   public static String preprocess(String content) {
     content = stripComments(content);
     content = collapseMultilineCommandsAndEscapeJinjaDelimiters(content);
-    try (Scanner scanner = new Scanner(content)) {
-      List<String> lines = new ArrayList<>();
-      while (scanner.hasNextLine()) {
-        String line = scanner.nextLine();
-        String trimmed = line.trim();
-
-        if (!SHOULD_SKIP_LINE_BREAKS.apply(trimmed)) {
-          line = "{nil}" + line + "{\\n}";
-        } else if (SHOULD_PRESERVE_LEADING.apply(trimmed)) {
-          line = "{nil}" + line;
-        }
-        line = removeDirectives(line);
-        lines.add(line);
-      }
-      return LINE_JOINER.join(lines);
-    }
+    return insertLineBreaks(content);
   }
 
   @VisibleForTesting
   static String stripComments(String content) {
-    content = SOY_SINGLE_LINE_COMMENT_REGEX.matcher(content).replaceAll("");
-    content = SOY_BLOCK_COMMENT_REGEX.matcher(content).replaceAll("");
-    return content;
+    return stripBlockComments(stripSingleLineComments(content));
+  }
+
+  // Soy double slash single line comment only counts if it's at the beginning of a line or
+  // preceded by an empty space. This is because soy wants to support "http://" without the needs
+  // for escaping. Also counts leading spaces as part of the comment.
+  private static String stripSingleLineComments(String content) {
+    int length = content.length();
+    StringBuilder sb = new StringBuilder(length);
+    int copied = 0;
+    int i = 0;
+    while (i < length) {
+      int commentStart = i;
+      int slashes = skipSpaces(content, i, length);
+      if (slashes == i && !isLineStart(content, i)) {
+        i++;
+        continue;
+      }
+      if (!content.startsWith("//", slashes)) {
+        i = Math.max(slashes, i + 1);
+        continue;
+      }
+      sb.append(content, copied, commentStart);
+      i = endOfLine(content, slashes, length);
+      copied = i;
+    }
+    return sb.append(content, copied, length).toString();
+  }
+
+  // Also counts leading spaces as part of the comment. A block comment without a closing tag is
+  // not a comment.
+  private static String stripBlockComments(String content) {
+    int length = content.length();
+    StringBuilder sb = new StringBuilder(length);
+    int copied = 0;
+    int i = 0;
+    while (i < length) {
+      int commentStart = i;
+      int opening = skipSpaces(content, i, length);
+      if (!content.startsWith("/*", opening)) {
+        i = Math.max(opening, i + 1);
+        continue;
+      }
+      int closing = content.indexOf("*/", opening + 2);
+      if (closing < 0) {
+        // No other comment can be closed either.
+        break;
+      }
+      sb.append(content, copied, commentStart);
+      i = closing + 2;
+      copied = i;
+    }
+    return sb.append(content, copied, length).toString();
   }
 
   // Collapsing multiline commands is necessary so that we don't insert line breaks on command
   // continuation lines.
   @VisibleForTesting
   static String collapseMultilineCommandsAndEscapeJinjaDelimiters(String content) {
-    StringBuilder sb = new StringBuilder();
-    Iterable<String> nonSoyCommands = Splitter.on(SOY_COMMAND_TO_COLLAPSE_REGEX).split(content);
-    Matcher m = SOY_COMMAND_TO_COLLAPSE_REGEX.matcher(content);
-    for (String nonSoyCommand : nonSoyCommands) {
-      sb.append(doEscapeJinjaDelimiters(nonSoyCommand));
-      if (m.find()) {
-        sb.append(LINE_COLLAPSING_REGEX.matcher(m.group()).replaceAll(" "));
+    int length = content.length();
+    StringBuilder sb = new StringBuilder(length + length / 8);
+    CommandContent commandContent = new CommandContent(content, 0, length);
+    JinjaEscaper escaper = new JinjaEscaper(sb);
+    int nonSoyCommandStart = 0;
+    int i = content.indexOf('{');
+    while (i >= 0) {
+      int closing = soyCommandToCollapseEnd(content, i, length, commandContent);
+      if (closing == NO_MATCH) {
+        i = content.indexOf('{', i + 1);
+        continue;
+      }
+      escaper.escape(content, nonSoyCommandStart, i);
+      appendCollapsed(sb, content, i, closing + 1);
+      nonSoyCommandStart = closing + 1;
+      i = content.indexOf('{', nonSoyCommandStart);
+    }
+    escaper.escape(content, nonSoyCommandStart, length);
+    return sb.toString();
+  }
+
+  // Inserts line breaks and removes directives, line by line. Lines are joined with '\n', and a
+  // trailing line terminator is dropped.
+  private static String insertLineBreaks(String content) {
+    int length = content.length();
+    StringBuilder sb = new StringBuilder(length + length / 4);
+    int lineStart = 0;
+    while (lineStart < length) {
+      int lineEnd = endOfLine(content, lineStart, length);
+      if (lineStart > 0) {
+        sb.append('\n');
+      }
+      int trimmedStart = lineStart;
+      int trimmedEnd = lineEnd;
+      while (trimmedStart < trimmedEnd && content.charAt(trimmedStart) <= ' ') {
+        trimmedStart++;
+      }
+      while (trimmedEnd > trimmedStart && content.charAt(trimmedEnd - 1) <= ' ') {
+        trimmedEnd--;
+      }
+
+      boolean shouldPreserveLeading =
+          indexOf(content, PRESERVE_LEADING_DIRECTIVE, trimmedStart, trimmedEnd) >= 0;
+      boolean shouldSkipLineBreaks =
+          trimmedStart == trimmedEnd
+              || shouldPreserveLeading
+              || isImport(content, trimmedStart, trimmedEnd)
+              || hasEscapes(content, trimmedStart, trimmedEnd)
+              || hasOnlySoyCommands(content, trimmedStart, trimmedEnd);
+      if (!shouldSkipLineBreaks) {
+        sb.append(LINE_BREAK_PREFIX);
+        appendWithoutDirectives(sb, content, lineStart, lineEnd);
+        sb.append(LINE_BREAK_SUFFIX);
+      } else if (shouldPreserveLeading) {
+        sb.append(LINE_BREAK_PREFIX);
+        appendWithoutDirectives(sb, content, lineStart, lineEnd);
+      } else {
+        appendWithoutDirectives(sb, content, lineStart, lineEnd);
+      }
+
+      lineStart = lineEnd;
+      if (lineStart < length) {
+        lineStart += content.startsWith("\r\n", lineStart) ? 2 : 1;
       }
     }
     return sb.toString();
@@ -237,14 +216,422 @@ final class Preprocessor {
 
   @VisibleForTesting
   static String removeDirectives(String line) {
-    return DIRECTIVE_REGEX.matcher(line).replaceAll("");
+    StringBuilder sb = new StringBuilder(line.length());
+    appendWithoutDirectives(sb, line, 0, line.length());
+    return sb.toString();
+  }
+
+  // Whether a trimmed line has only soy commands other than print.
+  @VisibleForTesting
+  static boolean hasOnlySoyCommands(String trimmedLine) {
+    return hasOnlySoyCommands(trimmedLine, 0, trimmedLine.length());
+  }
+
+  // Whether a trimmed line has at least one special character that prevents automatic insertion of
+  // line breaks.
+  @VisibleForTesting
+  static boolean hasEscapes(String trimmedLine) {
+    return hasEscapes(trimmedLine, 0, trimmedLine.length());
+  }
+
+  @VisibleForTesting
+  static boolean isEscape(String s) {
+    return matchLength(s, 0, s.length(), ESCAPES) == s.length();
+  }
+
+  // Whether the string is exactly one single-lined soy command, with optional surrounding spaces.
+  // This does not include the short version of the print command (something like "{$variable}")
+  // and special characters.
+  @VisibleForTesting
+  static boolean isSoyCommand(String s) {
+    int length = s.length();
+    int opening = skipWhitespaces(s, 0, length);
+    if (opening == length || s.charAt(opening) != '{') {
+      return false;
+    }
+    int closing = soyCommandEnd(s, opening, length, new CommandContent(s, 0, length));
+    return closing != NO_MATCH && skipWhitespaces(s, closing + 1, length) == length;
+  }
+
+  @VisibleForTesting
+  static boolean isBlacklistedCommand(String command) {
+    return isBlacklistedCommand(command, 0, command.length());
+  }
+
+  // Whether the string is exactly one command that would be collapsed, including multi-lined ones
+  // and short versions of print command.
+  @VisibleForTesting
+  static boolean isSoyCommandToCollapse(String s) {
+    int length = s.length();
+    return length > 0
+        && s.charAt(0) == '{'
+        && soyCommandToCollapseEnd(s, 0, length, new CommandContent(s, 0, length)) == length - 1;
+  }
+
+  private static boolean hasOnlySoyCommands(CharSequence s, int start, int end) {
+    CommandContent commandContent = null;
+    int i = start;
+    while (i < end) {
+      int opening = skipWhitespaces(s, i, end);
+      if (opening == end || s.charAt(opening) != '{') {
+        return false;
+      }
+      if (commandContent == null) {
+        commandContent = new CommandContent(s, start, end);
+      }
+      int closing = soyCommandEnd(s, opening, end, commandContent);
+      if (closing == NO_MATCH || isBlacklistedCommand(s, opening, closing + 1)) {
+        return false;
+      }
+      i = skipWhitespaces(s, closing + 1, end);
+    }
+    return true;
+  }
+
+  private static boolean hasEscapes(CharSequence s, int start, int end) {
+    for (int i = indexOf(s, '{', start, end); i >= 0; i = indexOf(s, '{', i + 1, end)) {
+      if (matchLength(s, i, end, ESCAPES) != NO_MATCH) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isImport(CharSequence s, int start, int end) {
+    return end - start >= IMPORT_PREFIX.length()
+        && regionMatches(s, start, end, IMPORT_PREFIX)
+        && s.charAt(end - 1) == ';';
+  }
+
+  /**
+   * Returns the position of the closing brace of a single-lined soy command opened at {@code
+   * opening}, or {@link #NO_MATCH}. A soy command is a brace, an optional "/" or "@", a lower case
+   * name, and optionally some content separated from the name by at least one whitespace.
+   */
+  private static int soyCommandEnd(
+      CharSequence s, int opening, int end, CommandContent commandContent) {
+    int i = opening + 1;
+    if (i < end && (s.charAt(i) == '/' || s.charAt(i) == '@')) {
+      i++;
+    }
+    int nameStart = i;
+    while (i < end && isCommandNameChar(s.charAt(i))) {
+      i++;
+    }
+    if (i == nameStart || i == end) {
+      return NO_MATCH;
+    }
+    if (s.charAt(i) == '}') {
+      return i;
+    }
+    if (!isWhitespace(s.charAt(i))) {
+      return NO_MATCH;
+    }
+    int contentStart = skipWhitespaces(s, i, end);
+    if (contentStart == end) {
+      return NO_MATCH;
+    }
+    if (s.charAt(contentStart) == '}') {
+      // The content must not be empty, but it can be made of the whitespaces after the first one.
+      return contentStart - i > 1 ? contentStart : NO_MATCH;
+    }
+    return commandContent.closingBrace(contentStart);
   }
 
-  private static String doEscapeJinjaDelimiters(String toEscape) {
-    for (Map.Entry<String, Pattern> entry : JINJA_DELIMITER_REPLACEMENTS.entrySet()) {
-      toEscape = entry.getValue().matcher(toEscape).replaceAll(entry.getKey());
+  /**
+   * Returns the position of the closing brace of a soy command to collapse opened at {@code
+   * opening}, or {@link #NO_MATCH}. This includes multi-lined commands and short versions of print
+   * command.
+   *
+   * <p>This is sensitive to jinja delimiters. It especially avoids matching something like "{{ abc
+   * }}", since such construct could have been potentially recognized as a "{ abc }" soy command,
+   * with leading { and trailing }. Note that a Jinja delimiter is always separated by at least one
+   * space, hence the space requirement after the delimiter.
+   */
+  private static int soyCommandToCollapseEnd(
+      CharSequence s, int opening, int end, CommandContent commandContent) {
+    if (opening > 0 && s.charAt(opening - 1) == '{') {
+      return NO_MATCH;
+    }
+    int i = opening + 1;
+    if (i == end || s.charAt(i) == '}') {
+      return NO_MATCH;
+    }
+    char c = s.charAt(i);
+    if (c == '%' || c == '#' || c == '{') {
+      int next = i + 1;
+      if (next < end
+          && (isWhitespace(s.charAt(next))
+              || (s.charAt(next) == '-' && next + 1 < end && isWhitespace(s.charAt(next + 1))))) {
+        return NO_MATCH;
+      }
+    }
+    return commandContent.closingBrace(i);
+  }
+
+  private static boolean isBlacklistedCommand(CharSequence s, int start, int end) {
+    if (matchLength(s, start, end, SOY_COMMAND_BLACKLIST) == end - start) {
+      return true;
+    }
+    // Matches "{print" followed by whitespaces, then anything on the same line up to the final
+    // brace.
+    int contentStart = start + PRINT_COMMAND_PREFIX.length();
+    if (end - start <= PRINT_COMMAND_PREFIX.length() + 1
+        || !regionMatches(s, start, end, PRINT_COMMAND_PREFIX)
+        || !isWhitespace(s.charAt(contentStart))
+        || s.charAt(end - 1) != '}') {
+      return false;
+    }
+    for (int i = skipWhitespaces(s, contentStart, end - 1); i < end - 1; i++) {
+      if (isLineTerminator(s.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Replaces every run of whitespaces that contains a line feed with a single space.
+  private static void appendCollapsed(StringBuilder sb, CharSequence s, int start, int end) {
+    int i = start;
+    while (i < end) {
+      char c = s.charAt(i);
+      if (!isWhitespace(c)) {
+        sb.append(c);
+        i++;
+        continue;
+      }
+      int runEnd = skipWhitespaces(s, i, end);
+      if (indexOf(s, '\n', i, runEnd) >= 0) {
+        sb.append(' ');
+      } else {
+        sb.append(s, i, runEnd);
+      }
+      i = runEnd;
+    }
+  }
+
+  private static void appendWithoutDirectives(
+      StringBuilder sb, CharSequence s, int start, int end) {
+    int copied = start;
+    int i = indexOf(s, PRESERVE_LEADING_DIRECTIVE, start, end);
+    while (i >= 0) {
+      sb.append(s, copied, i);
+      copied = i + PRESERVE_LEADING_DIRECTIVE.length();
+      i = indexOf(s, PRESERVE_LEADING_DIRECTIVE, copied, end);
+    }
+    sb.append(s, copied, end);
+  }
+
+  /**
+   * Returns the length of the first candidate found at {@code start}, or {@link #NO_MATCH}. None of
+   * the candidates is a prefix of another one.
+   */
+  private static int matchLength(CharSequence s, int start, int end, String[] candidates) {
+    for (String candidate : candidates) {
+      if (regionMatches(s, start, end, candidate)) {
+        return candidate.length();
+      }
+    }
+    return NO_MATCH;
+  }
+
+  private static boolean regionMatches(CharSequence s, int start, int end, String expected) {
+    if (end - start < expected.length()) {
+      return false;
+    }
+    for (int i = 0; i < expected.length(); i++) {
+      if (s.charAt(start + i) != expected.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int indexOf(CharSequence s, char c, int start, int end) {
+    for (int i = start; i < end; i++) {
+      if (s.charAt(i) == c) {
+        return i;
+      }
+    }
+    return NO_MATCH;
+  }
+
+  private static int indexOf(CharSequence s, String expected, int start, int end) {
+    char first = expected.charAt(0);
+    for (int i = indexOf(s, first, start, end); i >= 0; i = indexOf(s, first, i + 1, end)) {
+      if (regionMatches(s, i, end, expected)) {
+        return i;
+      }
+    }
+    return NO_MATCH;
+  }
+
+  private static int skipSpaces(CharSequence s, int start, int end) {
+    int i = start;
+    while (i < end && s.charAt(i) == ' ') {
+      i++;
+    }
+    return i;
+  }
+
+  private static int skipWhitespaces(CharSequence s, int start, int end) {
+    int i = start;
+    while (i < end && isWhitespace(s.charAt(i))) {
+      i++;
+    }
+    return i;
+  }
+
+  // Returns the position of the first line terminator at or after start, or end if none.
+  private static int endOfLine(CharSequence s, int start, int end) {
+    int i = start;
+    while (i < end && !isLineTerminator(s.charAt(i))) {
+      i++;
+    }
+    return i;
+  }
+
+  private static boolean isLineStart(CharSequence s, int i) {
+    return i == 0
+        || (isLineTerminator(s.charAt(i - 1))
+            && !(s.charAt(i - 1) == '\r' && s.charAt(i) == '\n'));
+  }
+
+  // Same set of characters as the \s regular expression class.
+  private static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+  }
+
+  // Same set of line terminators as java.util.regex and java.util.Scanner.
+  private static boolean isLineTerminator(char c) {
+    return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+  }
+
+  private static boolean isCommandNameChar(char c) {
+    return (c >= 'a' && c <= 'z') || c == '?';
+  }
+
+  /**
+   * Finds the closing brace of the content of a soy command, which is single-quote-sensitive. The
+   * content consumes all non-closed-curly-brace characters, except the ones inside a pair of single
+   * quotes. Inside a quoted string, a backslash-escaped quote is only considered as escaped if
+   * closing the string there would not lead to any closing brace, which is how a backtracking
+   * matcher would resolve the ambiguity.
+   *
+   * <p>Where the content ends only depends on the position it starts from and whether that
+   * position is inside a quoted string, so all ends are computed at once in a single backward pass
+   * when the text has quotes.
+   */
+  private static final class CommandContent {
+    private final CharSequence s;
+    private final int start;
+    private final int end;
+    // Closing brace position when in unquoted content, indexed by position - start.
+    private int[] unquotedClosingBraces;
+
+    CommandContent(CharSequence s, int start, int end) {
+      this.s = s;
+      this.start = start;
+      this.end = end;
+    }
+
+    /**
+     * Returns the closing brace for a non-empty content starting at {@code contentStart}, or
+     * {@link #NO_MATCH}.
+     */
+    int closingBrace(int contentStart) {
+      if (unquotedClosingBraces == null) {
+        if (indexOf(s, '\'', contentStart, end) < 0) {
+          return indexOf(s, '}', contentStart, end);
+        }
+        resolve();
+      }
+      return unquotedClosingBraces[contentStart - start];
+    }
+
+    private void resolve() {
+      int length = end - start;
+      int[] unquoted = new int[length + 1];
+      // Closing brace position when inside a quoted string, indexed by position - start.
+      int[] quoted = new int[length + 1];
+      unquoted[length] = NO_MATCH;
+      quoted[length] = NO_MATCH;
+      int nextQuote = NO_MATCH;
+      for (int i = length - 1; i >= 0; i--) {
+        char c = s.charAt(start + i);
+        if (c == '\'') {
+          nextQuote = i;
+        }
+        if (nextQuote == NO_MATCH) {
+          quoted[i] = NO_MATCH;
+        } else {
+          int closing = unquoted[nextQuote + 1];
+          if (closing == NO_MATCH
+              && nextQuote > i
+              && s.charAt(start + nextQuote - 1) == '\\') {
+            closing = quoted[nextQuote + 1];
+          }
+          quoted[i] = closing;
+        }
+        if (c == '}') {
+          unquoted[i] = start + i;
+        } else if (c == '\'') {
+          unquoted[i] = quoted[i + 1];
+        } else {
+          unquoted[i] = unquoted[i + 1];
+        }
+      }
+      unquotedClosingBraces = unquoted;
+    }
+  }
+
+  /**
+   * Escapes Jinja delimiters on the fly. Each replacement is a stage that holds back at most one
+   * character and feeds its output to the next stage.
+   */
+  private static final class JinjaEscaper {
+    private final StringBuilder sb;
+    private final boolean[] pending = new boolean[JINJA_DELIMITER_REPLACEMENTS.length];
+
+    JinjaEscaper(StringBuilder sb) {
+      this.sb = sb;
+    }
+
+    void escape(CharSequence s, int start, int end) {
+      for (int i = start; i < end; i++) {
+        feed(0, s.charAt(i));
+      }
+      for (int stage = 0; stage < pending.length; stage++) {
+        if (pending[stage]) {
+          pending[stage] = false;
+          feed(stage + 1, JINJA_DELIMITER_REPLACEMENTS[stage][0].charAt(0));
+        }
+      }
+    }
+
+    private void feed(int stage, char c) {
+      if (stage == pending.length) {
+        sb.append(c);
+        return;
+      }
+      String delimiter = JINJA_DELIMITER_REPLACEMENTS[stage][0];
+      if (pending[stage]) {
+        pending[stage] = false;
+        if (c == delimiter.charAt(1)) {
+          String replacement = JINJA_DELIMITER_REPLACEMENTS[stage][1];
+          for (int i = 0; i < replacement.length(); i++) {
+            feed(stage + 1, replacement.charAt(i));
+          }
+          return;
+        }
+        feed(stage + 1, delimiter.charAt(0));
+      }
+      if (c == delimiter.charAt(0)) {
+        pending[stage] = true;
+      } else {
+        feed(stage + 1, c);
+      }
     }
-    return toEscape;
   }
 
   private Preprocessor() {}
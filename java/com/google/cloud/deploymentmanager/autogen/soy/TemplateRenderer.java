@@ -14,14 +14,21 @@
 
 package com.google.cloud.deploymentmanager.autogen.soy;
 
+import com.google.cloud.deploymentmanager.autogen.soy.TemplateRenderer.Module.PrecompiledTemplates;
 import com.google.cloud.deploymentmanager.autogen.soy.TemplateRenderer.Module.SoyFiles;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSink;
 import com.google.common.io.Resources;
 import com.google.errorprone.annotations.CanIgnoreReturnValue;
 import com.google.inject.AbstractModule;
 import com.google.inject.Inject;
+import com.google.inject.Provider;
 import com.google.inject.Provides;
 import com.google.protobuf.Descriptors.GenericDescriptor;
 import com.google.template.soy.SoyFileSet;
+import com.google.template.soy.SoyToJbcSrcCompiler;
+import com.google.template.soy.jbcsrc.api.AdvisingAppendable;
 import com.google.template.soy.jbcsrc.api.LegacySoyJavaStringCaller;
 import com.google.template.soy.jbcsrc.api.SoySauce;
 import com.google.template.soy.jbcsrc.api.SoySauce.Renderer;
@@ -30,9 +37,16 @@ import com.google.template.soy.shared.restricted.SoyPrintDirective;
 import java.io.IOException;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import javax.annotation.Nullable;
 import javax.inject.Qualifier;
 
 /**
@@ -58,20 +72,33 @@ public final class TemplateRenderer {
    */
   public static class FileSet {
 
-    /** Builds {@link FileSet}. */
+    /**
+     * Builds {@link FileSet}.
+     *
+     * <p>Template sources are only preprocessed and compiled when needed. If the file set was
+     * precompiled ahead of time (see {@link #usePrecompiled}) and the bundled sources still match
+     * that compilation, the precompiled templates are loaded instead.
+     */
     public static class Builder {
 
       private final SoyFileSet.Builder soyFileSetBuilder;
+      private final Provider<SoySauce> precompiledSoySauce;
+      private final Map<String, String> sources = new LinkedHashMap<>();
+      private final List<GenericDescriptor> protoDescriptors = new ArrayList<>();
+      @Nullable private String precompiledFingerprintResource;
 
       /** Use {@link FileSet#builder} to create an instance. */
       @Inject
-      Builder(@SoyFiles SoyFileSet.Builder soyFileSetBuilder) {
+      Builder(
+          @SoyFiles SoyFileSet.Builder soyFileSetBuilder,
+          @PrecompiledTemplates Provider<SoySauce> precompiledSoySauce) {
         this.soyFileSetBuilder = soyFileSetBuilder;
+        this.precompiledSoySauce = precompiledSoySauce;
       }
 
       /** Adds the content of a file. */
       private Builder add(String content, String filePath) {
-        soyFileSetBuilder.add(Preprocessor.preprocess(content), filePath);
+        sources.put(filePath, content);
         return this;
       }
 
@@ -89,12 +116,88 @@ public final class TemplateRenderer {
 
       /** Adds the descriptors for protos that will be used by the soy templates. */
       public Builder addProtoDescriptors(GenericDescriptor... descriptors) {
+        Collections.addAll(protoDescriptors, descriptors);
         soyFileSetBuilder.addProtoDescriptors(descriptors);
         return this;
       }
 
+      /**
+       * Prefers the templates precompiled by {@link #compileToJar}, if they are on the classpath.
+       *
+       * @param fingerprintResourceName the resource holding the {@link #fingerprint} of the sources
+       *     at the time they were precompiled. Falls back to compiling at runtime if the resource is
+       *     missing or if its content doesn't match the sources added to this builder.
+       */
+      @CanIgnoreReturnValue
+      public Builder usePrecompiled(String fingerprintResourceName) {
+        this.precompiledFingerprintResource = fingerprintResourceName;
+        return this;
+      }
+
+      /**
+       * Returns a fingerprint of all sources and proto descriptors added so far. The sources are
+       * fingerprinted as preprocessed, so that a change to the {@link Preprocessor} also makes the
+       * precompiled templates stale. Computing it does not require compiling the templates.
+       */
+      public String fingerprint() {
+        Hasher hasher = Hashing.sha256().newHasher();
+        for (Map.Entry<String, String> source : preprocessedSources().entrySet()) {
+          hasher
+              .putString(source.getKey(), StandardCharsets.UTF_8)
+              .putByte((byte) 0)
+              .putString(source.getValue(), StandardCharsets.UTF_8)
+              .putByte((byte) 0);
+        }
+        for (GenericDescriptor descriptor : protoDescriptors) {
+          hasher.putBytes(descriptor.getFile().toProto().toByteArray());
+        }
+        return hasher.hash().toString();
+      }
+
+      /**
+       * Compiles the templates into java bytecode and writes them as a jar. Used at build time to
+       * produce the bundle loaded by {@link #usePrecompiled}.
+       */
+      public void compileToJar(ByteSink jarTarget) throws IOException {
+        SoyToJbcSrcCompiler.compile(preprocessedFileSet(), jarTarget, Optional.empty());
+      }
+
       public FileSet build() {
-        return new FileSet(soyFileSetBuilder.build().compileTemplates());
+        if (isPrecompiledUpToDate()) {
+          return new FileSet(precompiledSoySauce.get());
+        }
+        return new FileSet(preprocessedFileSet().compileTemplates());
+      }
+
+      private SoyFileSet preprocessedFileSet() {
+        for (Map.Entry<String, String> source : preprocessedSources().entrySet()) {
+          soyFileSetBuilder.add(source.getValue(), source.getKey());
+        }
+        return soyFileSetBuilder.build();
+      }
+
+      private Map<String, String> preprocessedSources() {
+        Map<String, String> preprocessed = new LinkedHashMap<>();
+        for (Map.Entry<String, String> source : sources.entrySet()) {
+          preprocessed.put(source.getKey(), Preprocessor.preprocess(source.getValue()));
+        }
+        return preprocessed;
+      }
+
+      private boolean isPrecompiledUpToDate() {
+        if (precompiledFingerprintResource == null) {
+          return false;
+        }
+        URL resource =
+            TemplateRenderer.class.getClassLoader().getResource(precompiledFingerprintResource);
+        if (resource == null) {
+          return false;
+        }
+        try {
+          return Resources.toString(resource, StandardCharsets.UTF_8).trim().equals(fingerprint());
+        } catch (IOException ioe) {
+          return false;
+        }
       }
     }
 
@@ -121,11 +224,25 @@ public final class TemplateRenderer {
     @Retention(RetentionPolicy.RUNTIME)
     @interface SoyFiles {}
 
+    @Qualifier
+    @Retention(RetentionPolicy.RUNTIME)
+    @interface PrecompiledTemplates {}
+
     @Override
     protected void configure() {
       install(new SoyDirectives.Module());
     }
 
+    // Loads the templates precompiled by FileSet.Builder#compileToJar from the classpath.
+    // Not a singleton: every file set gets its own instance, only ever loading its own templates.
+    @PrecompiledTemplates
+    @Provides
+    SoySauce providePrecompiledSoySauce(
+        Set<SoyFunction> pluginFunctions, Set<SoyPrintDirective> pluginDirectives) {
+      return PrecompiledSoySauce.load(
+          TemplateRenderer.class.getClassLoader(), pluginFunctions, pluginDirectives);
+    }
+
     @SoyFiles
     @Provides
     SoyFileSet.Builder provideBuilder(
@@ -159,4 +276,50 @@ public final class TemplateRenderer {
   public String render() {
     return delegate.renderText().get();
   }
+
+  /**
+   * Renders the template as it goes into the given appendable, without holding the whole output in
+   * memory.
+   */
+  public void renderTo(Appendable out) throws IOException {
+    SoySauce.WriteContinuation continuation =
+        delegate.renderText(new DelegatingAdvisingAppendable(out));
+    // The appendable never asks for a pause and the template data is never asynchronous, so every
+    // continuation goes on rendering right away.
+    while (!continuation.result().isDone()) {
+      continuation = continuation.continueRender();
+    }
+  }
+
+  /** Adapts an {@link Appendable} to what soy streams to, never asking the renderer to pause. */
+  private static final class DelegatingAdvisingAppendable implements AdvisingAppendable {
+    private final Appendable delegate;
+
+    DelegatingAdvisingAppendable(Appendable delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public AdvisingAppendable append(CharSequence csq) throws IOException {
+      delegate.append(csq);
+      return this;
+    }
+
+    @Override
+    public AdvisingAppendable append(CharSequence csq, int start, int end) throws IOException {
+      delegate.append(csq, start, end);
+      return this;
+    }
+
+    @Override
+    public AdvisingAppendable append(char c) throws IOException {
+      delegate.append(c);
+      return this;
+    }
+
+    @Override
+    public boolean softLimitReached() {
+      return false;
+    }
+  }
 }
@@ -40,7 +40,11 @@ import org.junit.runners.Suite;
 import org.junit.runners.Suite.SuiteClasses;
 
 @RunWith(Suite.class)
-@SuiteClasses({VerifySolutionFileSetTest.class, VerifyAutogenFileContent.class})
+@SuiteClasses({
+  VerifySolutionFileSetTest.class,
+  VerifyAutogenFileContent.class,
+  PackageCacheTest.class
+})
 public class AutogenMediumTestsSuite {
   static final String RELATIVE_TESTDATA_PATH =
       "javatests/com/google/cloud/deploymentmanager/autogen/testdata/";
@@ -59,12 +63,15 @@ public class AutogenMediumTestsSuite {
     final String name;
     final File solutionFolder;
     final File goldenFolder;
+    final Supplier<DeploymentPackageInput> input;
     final Supplier<SolutionPackage> solutionPackage;
 
     static Collection<String[]> allSolutionsActualFilesDesc() {
       List<String[]> files = new ArrayList<>();
       for (Solution solution : findAllSolutions()) {
-        for (SolutionPackage.File f : solution.solutionPackage.get().getFilesList()) {
+        SolutionPackage solutionPackage =
+            Autogen.encodeBinaryContentWithBase64(solution.solutionPackage.get());
+        for (SolutionPackage.File f : solutionPackage.getFilesList()) {
           files.add(
               new String[] {
                 solution.name, solution.goldenFolder.getPath(), f.getPath(), f.getContent()
@@ -112,7 +119,7 @@ public class AutogenMediumTestsSuite {
       this.name = relativePathFunction(ROOT, inputSpecFile);
       this.solutionFolder = solutionFolder;
       this.goldenFolder = goldenFolder;
-      this.solutionPackage =
+      this.input =
           Suppliers.memoize(
               () -> {
                 try {
@@ -120,12 +127,16 @@ public class AutogenMediumTestsSuite {
                   TextFormat.getParser()
                       .merge(Files.asCharSource(inputSpecFile, UTF_8).read(), input);
                   input.getSpecBuilder().setDeploymentTool(tool);
-                  return AUTOGEN.generateDeploymentPackage(
-                      input.build(), SharedSupportFilesStrategy.INCLUDED);
+                  return input.build();
                 } catch (IOException e) {
                   throw new RuntimeException(e);
                 }
               });
+      this.solutionPackage =
+          Suppliers.memoize(
+              () ->
+                  AUTOGEN.generateDeploymentPackage(
+                      input.get(), SharedSupportFilesStrategy.INCLUDED));
     }
 
     @Override
@@ -21,9 +21,11 @@ import org.junit.runners.Suite.SuiteClasses;
 @RunWith(Suite.class)
 @SuiteClasses({
     DisplayDescriptionGeneratorTest.class,
+    PackageSinkTest.class,
     SoyDirectivesTest.class,
     SoyFunctionsTest.class,
     SpecDefaultsTest.class,
+    SpecFingerprintTest.class,
     SpecValidationsTest.class
 })
 public class AutogenSmallTestsSuite {
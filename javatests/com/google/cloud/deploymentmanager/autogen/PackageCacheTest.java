@@ -0,0 +1,142 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.deploymentmanager.autogen;
+
+import static com.google.cloud.deploymentmanager.autogen.AutogenMediumTestsSuite.AUTOGEN;
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.extensions.proto.ProtoTruth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.cloud.deploymentmanager.autogen.Autogen.SharedSupportFilesStrategy;
+import com.google.cloud.deploymentmanager.autogen.AutogenMediumTestsSuite.Solution;
+import com.google.cloud.deploymentmanager.autogen.proto.DeploymentPackageInput;
+import com.google.cloud.deploymentmanager.autogen.proto.Image;
+import com.google.cloud.deploymentmanager.autogen.proto.SolutionPackage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class PackageCacheTest {
+  private static final long MAX_BYTES = 64L * 1024 * 1024;
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private Path directory;
+  private DeploymentPackageInput input;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = temporaryFolder.newFolder().toPath();
+    input = Solution.findAllSolutions().iterator().next().input.get();
+  }
+
+  @Test
+  public void testHitReturnsGeneratedPackage() throws IOException {
+    PackageCache cache = new PackageCache(AUTOGEN, directory, MAX_BYTES);
+    SolutionPackage generated =
+        cache.generateDeploymentPackage(input, SharedSupportFilesStrategy.INCLUDED);
+    SolutionPackage cached =
+        cache.generateDeploymentPackage(input, SharedSupportFilesStrategy.INCLUDED);
+
+    assertThat(cached).isEqualTo(generated);
+    assertThat(generated)
+        .isEqualTo(AUTOGEN.generateDeploymentPackage(input, SharedSupportFilesStrategy.INCLUDED));
+    assertThat(cache.stats().missCount()).isEqualTo(1);
+    assertThat(cache.stats().hitCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testPackagesPersistAcrossInstances() throws IOException {
+    SolutionPackage generated =
+        new PackageCache(AUTOGEN, directory, MAX_BYTES)
+            .generateDeploymentPackage(input, SharedSupportFilesStrategy.INCLUDED);
+
+    PackageCache cache = new PackageCache(AUTOGEN, directory, MAX_BYTES);
+    assertThat(cache.generateDeploymentPackage(input, SharedSupportFilesStrategy.INCLUDED))
+        .isEqualTo(generated);
+    assertThat(cache.stats().hitCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testStrategyIsPartOfKey() throws IOException {
+    assertThat(PackageCache.key(input, SharedSupportFilesStrategy.INCLUDED))
+        .isNotEqualTo(PackageCache.key(input, SharedSupportFilesStrategy.EXCLUDED));
+
+    PackageCache cache = new PackageCache(AUTOGEN, directory, MAX_BYTES);
+    cache.generateDeploymentPackage(input, SharedSupportFilesStrategy.INCLUDED);
+    SolutionPackage excluded =
+        cache.generateDeploymentPackage(input, SharedSupportFilesStrategy.EXCLUDED);
+
+    assertThat(excluded)
+        .isEqualTo(AUTOGEN.generateDeploymentPackage(input, SharedSupportFilesStrategy.EXCLUDED));
+    assertThat(cache.stats().missCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void testLocalImageContentIsPartOfKey() throws IOException {
+    Path logo = temporaryFolder.newFile("logo").toPath();
+    Files.write(logo, new byte[] {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'});
+    DeploymentPackageInput withLogo =
+        input.toBuilder().setLogo(Image.newBuilder().setLocalFile(logo.toString())).build();
+    String pngKey = PackageCache.key(withLogo, SharedSupportFilesStrategy.INCLUDED);
+    assertThat(PackageCache.key(withLogo, SharedSupportFilesStrategy.INCLUDED)).isEqualTo(pngKey);
+
+    Files.write(logo, new byte[] {(byte) 0xff, (byte) 0xd8, (byte) 0xff});
+    assertThat(PackageCache.key(withLogo, SharedSupportFilesStrategy.INCLUDED))
+        .isNotEqualTo(pngKey);
+    Files.delete(logo);
+    assertThat(PackageCache.key(withLogo, SharedSupportFilesStrategy.INCLUDED))
+        .isNotEqualTo(pngKey);
+  }
+
+  @Test
+  public void testCorruptedPackageIsRegenerated() throws IOException {
+    PackageCache cache = new PackageCache(AUTOGEN, directory, MAX_BYTES);
+    SolutionPackage generated =
+        cache.generateDeploymentPackage(input, SharedSupportFilesStrategy.INCLUDED);
+    File[] files = directory.toFile().listFiles();
+    assertThat(files).hasLength(1);
+    Files.write(files[0].toPath(), "not a package".getBytes(UTF_8));
+
+    assertThat(cache.generateDeploymentPackage(input, SharedSupportFilesStrategy.INCLUDED))
+        .isEqualTo(generated);
+    assertThat(cache.stats().missCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void testLeastRecentlyUsedPackageIsEvicted() throws IOException {
+    long size =
+        AUTOGEN
+            .generateDeploymentPackage(input, SharedSupportFilesStrategy.INCLUDED)
+            .getSerializedSize();
+    // Only fits the package generated last.
+    PackageCache cache = new PackageCache(AUTOGEN, directory, size);
+    cache.generateDeploymentPackage(input, SharedSupportFilesStrategy.INCLUDED);
+    cache.generateDeploymentPackage(input, SharedSupportFilesStrategy.EXCLUDED);
+    cache.generateDeploymentPackage(input, SharedSupportFilesStrategy.INCLUDED);
+
+    assertThat(cache.stats().missCount()).isEqualTo(3);
+    assertThat(cache.stats().evictionCount()).isEqualTo(2);
+    assertThat(directory.toFile().listFiles()).hasLength(1);
+  }
+}
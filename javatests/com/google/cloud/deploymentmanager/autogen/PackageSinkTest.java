@@ -0,0 +1,116 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.deploymentmanager.autogen;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.extensions.proto.ProtoTruth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.cloud.deploymentmanager.autogen.proto.SolutionPackage;
+import com.google.common.io.BaseEncoding;
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.io.Writer;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests {@link PackageSink} and the {@link SolutionPackage} it builds. */
+@RunWith(JUnit4.class)
+public class PackageSinkTest {
+
+  private static final ByteString IMAGE = ByteString.copyFrom(new byte[] {(byte) 0x89, 'P', 0});
+
+  @Test
+  public void forBuilder_addsFilesInOrder() throws IOException {
+    SolutionPackage.Builder builder = SolutionPackage.newBuilder();
+    PackageSink sink = PackageSink.forBuilder(builder);
+    sink.addBinaryFile("logo.png", IMAGE);
+    try (Writer writer = sink.addTextFile("main.tf")) {
+      writer.write("resource ");
+      writer.write("{}");
+    }
+    sink.addSourceFile("icon.jpg", "/images/icon.jpg");
+    sink.addSharedSupportFile("common/common.py");
+
+    assertThat(builder.build())
+        .isEqualTo(
+            SolutionPackage.newBuilder()
+                .addFiles(newFile("logo.png").setBinaryContent(IMAGE))
+                .addFiles(newFile("main.tf").setContent("resource {}"))
+                .addFiles(newFile("icon.jpg").setSourcePath("/images/icon.jpg"))
+                .addSharedSupportFiles("common/common.py")
+                .build());
+  }
+
+  @Test
+  public void emptyTextFile_isEncodedAsBefore() throws IOException {
+    SolutionPackage.Builder builder = SolutionPackage.newBuilder();
+    PackageSink.forBuilder(builder).addTextFile("empty", "");
+
+    // A text file with no content only has a path on the wire, like before binary_content.
+    assertThat(builder.build().toByteString())
+        .isEqualTo(
+            ByteString.copyFrom(new byte[] {0x0a, 0x07, 0x0a, 0x05, 'e', 'm', 'p', 't', 'y'}));
+  }
+
+  @Test
+  public void encodeBinaryContentWithBase64_replacesBinaryContent() {
+    SolutionPackage encoded =
+        Autogen.encodeBinaryContentWithBase64(
+            SolutionPackage.newBuilder()
+                .addFiles(newFile("logo.png").setBinaryContent(IMAGE))
+                .build());
+
+    SolutionPackage.File file = encoded.getFiles(0);
+    assertThat(file.getSourceCase()).isEqualTo(SolutionPackage.File.SourceCase.SOURCE_NOT_SET);
+    assertThat(file.getContent()).isEqualTo(BaseEncoding.base64().encode(IMAGE.toByteArray()));
+  }
+
+  @Test
+  public void addAll_replaysPackage() throws IOException {
+    SolutionPackage solutionPackage =
+        SolutionPackage.newBuilder()
+            .addFiles(newFile("logo.png").setBinaryContent(IMAGE))
+            .addFiles(newFile("main.tf").setContent("{}"))
+            .addFiles(newFile("empty"))
+            .addFiles(newFile("icon.jpg").setSourcePath("/icon.jpg"))
+            .addSharedSupportFiles("common/common.py")
+            .build();
+    SolutionPackage.Builder replayed = SolutionPackage.newBuilder();
+
+    PackageSink.forBuilder(replayed).addAll(solutionPackage);
+
+    assertThat(replayed.build()).isEqualTo(solutionPackage);
+  }
+
+  @Test
+  public void addAll_rejectsContentAlongWithSource() {
+    SolutionPackage solutionPackage =
+        SolutionPackage.newBuilder()
+            .addFiles(newFile("logo.png").setContent("text").setBinaryContent(IMAGE))
+            .build();
+
+    IllegalArgumentException e =
+        assertThrows(
+            IllegalArgumentException.class,
+            () -> PackageSink.forBuilder(SolutionPackage.newBuilder()).addAll(solutionPackage));
+    assertThat(e).hasMessageThat().contains("logo.png");
+  }
+
+  private static SolutionPackage.File.Builder newFile(String path) {
+    return SolutionPackage.File.newBuilder().setPath(path);
+  }
+}
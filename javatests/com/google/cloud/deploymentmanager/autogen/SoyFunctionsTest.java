@@ -20,6 +20,8 @@ import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.Truth.assertWithMessage;
 import static org.junit.Assert.fail;
 
+import com.google.cloud.deploymentmanager.autogen.Autogen.SharedSupportFilesStrategy;
+import com.google.cloud.deploymentmanager.autogen.AutogenMediumTestsSuite.Solution;
 import com.google.cloud.deploymentmanager.autogen.SoyFunctions.BooleanExpressionDisplayCondition;
 import com.google.cloud.deploymentmanager.autogen.SoyFunctions.DependentTiers;
 import com.google.cloud.deploymentmanager.autogen.SoyFunctions.DeployInputFieldName;
@@ -44,6 +46,8 @@ import com.google.cloud.deploymentmanager.autogen.proto.DeployInputField.StringB
 import com.google.cloud.deploymentmanager.autogen.proto.DeployInputSection;
 import com.google.cloud.deploymentmanager.autogen.proto.DeployInputSection.Placement;
 import com.google.cloud.deploymentmanager.autogen.proto.DeployInputSpec;
+import com.google.cloud.deploymentmanager.autogen.proto.DeploymentPackageAutogenSpec;
+import com.google.cloud.deploymentmanager.autogen.proto.DeploymentPackageInput;
 import com.google.cloud.deploymentmanager.autogen.proto.GceMetadataItem;
 import com.google.cloud.deploymentmanager.autogen.proto.GceMetadataItem.TierVmNames;
 import com.google.cloud.deploymentmanager.autogen.proto.MultiVmDeploymentPackageSpec;
@@ -67,6 +71,7 @@ import com.google.template.soy.shared.restricted.SoyJavaFunction;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.LongAdder;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -367,6 +372,119 @@ public class SoyFunctionsTest {
         .hasMessageThat().startsWith("Unexpected 2nd arg type");
   }
 
+  @Test
+  public void testFunctionsWithSpecIndexOfCurrentRender() {
+    DeployInputField email = buildStringBoxInput("email");
+    DeployInputField username = buildStringBoxInput("username");
+    DeployInputField otherEmail = buildIntegerBoxInput("email");
+    DeploymentPackageAutogenSpec spec =
+        DeploymentPackageAutogenSpec.newBuilder()
+            .setMultiVm(
+                MultiVmDeploymentPackageSpec.newBuilder()
+                    .setDeployInput(
+                        DeployInputSpec.newBuilder()
+                            .addSections(buildInputSection("Main", MAIN, email, username))
+                            .addSections(buildInputSection("Other", CUSTOM_BOTTOM, otherEmail)))
+                    .addTiers(VmTierSpec.newBuilder().setName("tier0"))
+                    .addTiers(
+                        VmTierSpec.newBuilder()
+                            .setName("tier1")
+                            .addGceMetadataItems(
+                                GceMetadataItem.newBuilder()
+                                    .setTierVmNames(TierVmNames.newBuilder().setTier("tier0")))
+                            .addGceMetadataItems(
+                                GceMetadataItem.newBuilder()
+                                    .setKey("user")
+                                    .setValueFromDeployInputField("username"))))
+            .build();
+    // Templates are rendered with the very protos that were indexed.
+    MultiVmDeploymentPackageSpec multiVmSpec = spec.getMultiVm();
+    DeployInputSpec inputSpec = multiVmSpec.getDeployInput();
+    List<VmTierSpec> tiers = multiVmSpec.getTiersList();
+
+    LongAdder hits = new LongAdder();
+
+    SpecIndex.of(spec, new SoyFunctionCache(new LongAdder(), new LongAdder()), hits)
+        .render(
+            () -> {
+              assertFunctionCall(findDeployInputField, "email", inputSpec)
+                  .hasResultThat().isEqualTo(toSoyValue(email));
+              assertFunctionCall(findDeployInputField, "password", inputSpec)
+                  .throwsException(IllegalArgumentException.class);
+              assertFunctionCall(findVmTier, "tier1", tiers)
+                  .hasResultThat().isEqualTo(toSoyValue(tiers.get(1)));
+              assertFunctionCall(findVmTier, "tier0", multiVmSpec)
+                  .hasResultThat().isEqualTo(toSoyValue(tiers.get(0)));
+              assertFunctionCall(findVmTier, "tier2", tiers)
+                  .throwsExceptionThat(RuntimeException.class)
+                  .hasMessageThat().isEqualTo("Unable to locate tier with name tier2");
+              assertFunctionCall(dependentTiers, tiers.get(1), tiers)
+                  .hasIterableResultThat()
+                  .containsExactly(toSoyValue(tiers.get(0)));
+              assertFunctionCall(listDeployInputFields, inputSpec)
+                  .hasIterableResultThat()
+                  .containsExactly(toSoyValue(email), toSoyValue(username), toSoyValue(otherEmail))
+                  .inOrder();
+              assertFunctionCall(listDeployInputFields, inputSpec, tiers.get(1))
+                  .hasIterableResultThat()
+                  .containsExactly(toSoyValue(username));
+              return null;
+            });
+    // All but the lookups of the missing field and tier.
+    assertThat(hits.sum()).isEqualTo(6);
+  }
+
+  @Test
+  public void testSpecIndexUsedWhenRenderingPackages() {
+    Autogen autogen =
+        Guice.createInjector(Autogen.getAutogenModule()).getInstance(Autogen.class);
+    int multiVmSolutions = 0;
+    for (Solution solution : Solution.findAllSolutions()) {
+      DeploymentPackageInput input = solution.input.get();
+      if (!input.getSpec().hasMultiVm()) {
+        continue;
+      }
+      multiVmSolutions++;
+      long hits = autogen.getSpecIndexHitCount();
+
+      autogen.generateDeploymentPackage(input, SharedSupportFilesStrategy.INCLUDED);
+
+      assertWithMessage(solution.name).that(autogen.getSpecIndexHitCount()).isGreaterThan(hits);
+    }
+    assertThat(multiVmSolutions).isGreaterThan(0);
+  }
+
+  @Test
+  public void testPureFunctionsMemoizedForCurrentRender() {
+    DeploymentPackageAutogenSpec spec =
+        DeploymentPackageAutogenSpec.newBuilder()
+            .setSingleVm(
+                SingleVmDeploymentPackageSpec.newBuilder()
+                    .addAccelerators(AcceleratorSpec.newBuilder().addTypes("nvidia-tesla-k80")))
+            .build();
+    SingleVmDeploymentPackageSpec singleVmSpec = spec.getSingleVm();
+    LongAdder hits = new LongAdder();
+    LongAdder misses = new LongAdder();
+
+    SpecIndex.of(spec, new SoyFunctionCache(hits, misses), new LongAdder())
+        .render(
+            () -> {
+              assertFunctionCall(solutionHasGpus, singleVmSpec)
+                  .hasResultThat().isEqualTo(toSoyValue(true));
+              assertFunctionCall(solutionHasGpus, singleVmSpec)
+                  .hasResultThat().isEqualTo(toSoyValue(true));
+              // Equal protos are different arguments, only the same instance is a hit.
+              assertFunctionCall(solutionHasGpus, singleVmSpec.toBuilder().build())
+                  .hasResultThat().isEqualTo(toSoyValue(true));
+              assertFunctionCall(
+                      solutionHasGpus, SingleVmDeploymentPackageSpec.getDefaultInstance())
+                  .hasResultThat().isEqualTo(toSoyValue(false));
+              return null;
+            });
+    assertThat(hits.sum()).isEqualTo(1);
+    assertThat(misses.sum()).isEqualTo(3);
+  }
+
   @Test
   public void testTierPrefixed() {
     VmTierSpec tier = VmTierSpec.newBuilder().setName("mytier").build();
@@ -0,0 +1,102 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.deploymentmanager.autogen;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.cloud.deploymentmanager.autogen.proto.DeployInputField;
+import com.google.cloud.deploymentmanager.autogen.proto.DeployInputField.StringDropdown;
+import com.google.cloud.deploymentmanager.autogen.proto.DeploymentPackageInput;
+import com.google.cloud.deploymentmanager.autogen.proto.DiskSpec;
+import com.google.cloud.deploymentmanager.autogen.proto.ImageSpec;
+import com.google.cloud.deploymentmanager.autogen.proto.SingleVmDeploymentPackageSpec;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests {@link SpecFingerprint}. */
+@RunWith(JUnit4.class)
+public class SpecFingerprintTest {
+
+  @Test
+  public void shouldBeStable() {
+    assertThat(SpecFingerprint.of(newInput(newSingleSpec())))
+        .isEqualTo(SpecFingerprint.of(newInput(newSingleSpec())));
+  }
+
+  @Test
+  public void shouldIgnoreExplicitDefaults() {
+    SingleVmDeploymentPackageSpec.Builder withDefaults = newSingleSpec();
+    SpecDefaults.fillInMissingDefaults(withDefaults);
+    assertThat(withDefaults.build()).isNotEqualTo(newSingleSpec().build());
+
+    assertThat(SpecFingerprint.of(newInput(withDefaults)))
+        .isEqualTo(SpecFingerprint.of(newInput(newSingleSpec())));
+  }
+
+  @Test
+  public void shouldIgnoreMapInsertionOrder() {
+    SingleVmDeploymentPackageSpec.Builder spec = newSingleSpec();
+    spec.getDeployInputBuilder()
+        .addSectionsBuilder()
+        .addFields(
+            newDropdownField(
+                StringDropdown.newBuilder().putValueLabels("a", "A").putValueLabels("b", "B")));
+    SingleVmDeploymentPackageSpec.Builder reversed = newSingleSpec();
+    reversed
+        .getDeployInputBuilder()
+        .addSectionsBuilder()
+        .addFields(
+            newDropdownField(
+                StringDropdown.newBuilder().putValueLabels("b", "B").putValueLabels("a", "A")));
+
+    assertThat(SpecFingerprint.of(newInput(reversed)))
+        .isEqualTo(SpecFingerprint.of(newInput(spec)));
+  }
+
+  @Test
+  public void shouldDifferForDifferentPackages() {
+    SingleVmDeploymentPackageSpec.Builder biggerDisk = newSingleSpec();
+    biggerDisk
+        .getBootDiskBuilder()
+        .setDiskSize(DiskSpec.DiskSize.newBuilder().setDefaultSizeGb(20));
+
+    assertThat(SpecFingerprint.of(newInput(biggerDisk)))
+        .isNotEqualTo(SpecFingerprint.of(newInput(newSingleSpec())));
+    DeploymentPackageInput otherPartner =
+        newInput(newSingleSpec()).toBuilder().setPartnerId("other-partner").build();
+    assertThat(SpecFingerprint.of(otherPartner))
+        .isNotEqualTo(SpecFingerprint.of(newInput(newSingleSpec())));
+  }
+
+  private static DeployInputField newDropdownField(StringDropdown.Builder dropdown) {
+    return DeployInputField.newBuilder()
+        .setName("dropdown")
+        .setTitle("Dropdown")
+        .setStringDropdown(dropdown.addValues("a").addValues("b"))
+        .build();
+  }
+
+  private static DeploymentPackageInput newInput(SingleVmDeploymentPackageSpec.Builder spec) {
+    DeploymentPackageInput.Builder input = DeploymentPackageInput.newBuilder();
+    input.getSpecBuilder().setSingleVm(spec);
+    return input.build();
+  }
+
+  private static SingleVmDeploymentPackageSpec.Builder newSingleSpec() {
+    return SingleVmDeploymentPackageSpec.newBuilder()
+        .addImages(ImageSpec.newBuilder().setProject("image-project").setName("image-name"));
+  }
+}
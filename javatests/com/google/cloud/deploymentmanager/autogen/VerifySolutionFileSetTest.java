@@ -15,15 +15,26 @@
 package com.google.cloud.deploymentmanager.autogen;
 
 import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
 
+import com.google.cloud.deploymentmanager.autogen.Autogen.SharedSupportFilesStrategy;
 import com.google.cloud.deploymentmanager.autogen.AutogenMediumTestsSuite.Solution;
 import com.google.cloud.deploymentmanager.autogen.proto.SolutionPackage;
 import com.google.common.base.Function;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.Files;
+import com.google.protobuf.ByteString;
 import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
@@ -64,6 +75,103 @@ public class VerifySolutionFileSetTest {
     assertThat(actualFilePaths).containsExactlyElementsIn(expectedFiles);
   }
 
+  @Test
+  public void verifyConcurrentlyGeneratedFiles() {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      SolutionPackage concurrentlyGenerated =
+          AutogenMediumTestsSuite.AUTOGEN.generateDeploymentPackage(
+              solution.input.get(), SharedSupportFilesStrategy.INCLUDED, executor);
+      // Same files, in the same order.
+      assertThat(concurrentlyGenerated).isEqualTo(solution.solutionPackage.get());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void verifyRendersCancelledWhenSinkFails() {
+    // Renders the first file right away, holding back the others.
+    AtomicBoolean first = new AtomicBoolean(true);
+    List<Runnable> heldBack = new ArrayList<>();
+    Executor executor =
+        task -> {
+          if (first.getAndSet(false)) {
+            task.run();
+          } else {
+            heldBack.add(task);
+          }
+        };
+    PackageSink failingSink =
+        new PackageSink() {
+          @Override
+          public Writer addTextFile(String path) throws IOException {
+            throw new IOException("Disk full");
+          }
+
+          @Override
+          public void addBinaryFile(String path, ByteString content) {}
+
+          @Override
+          public void addSourceFile(String path, String sourcePath) {}
+
+          @Override
+          public void addSharedSupportFile(String path) {}
+        };
+
+    IOException e =
+        assertThrows(
+            IOException.class,
+            () ->
+                AutogenMediumTestsSuite.AUTOGEN.generateDeploymentPackage(
+                    solution.input.get(),
+                    SharedSupportFilesStrategy.INCLUDED,
+                    failingSink,
+                    executor));
+    assertThat(e).hasMessageThat().isEqualTo("Disk full");
+    assertThat(heldBack).isNotEmpty();
+    long hits = AutogenMediumTestsSuite.AUTOGEN.getSpecIndexHitCount();
+    heldBack.forEach(Runnable::run);
+    // Cancelled, so none of them renders.
+    assertThat(AutogenMediumTestsSuite.AUTOGEN.getSpecIndexHitCount()).isEqualTo(hits);
+  }
+
+  @Test
+  public void verifySharedSupportFilesReferenced() {
+    SolutionPackage shared =
+        AutogenMediumTestsSuite.AUTOGEN.generateDeploymentPackage(
+            solution.input.get(), SharedSupportFilesStrategy.SHARED);
+    SolutionPackage.Builder resolved = shared.toBuilder().clearSharedSupportFiles();
+    for (SolutionPackage.File file : Autogen.getSharedSupportFiles().getFilesList()) {
+      if (shared.getSharedSupportFilesList().contains(file.getPath())) {
+        resolved.addFiles(file);
+      }
+    }
+    // The referenced shared support files are the ones included otherwise.
+    assertThat(resolved.build()).isEqualTo(solution.solutionPackage.get());
+  }
+
+  @Test
+  public void verifyStreamedFiles() throws IOException {
+    SolutionPackage.Builder streamed = SolutionPackage.newBuilder();
+    AutogenMediumTestsSuite.AUTOGEN.generateDeploymentPackage(
+        solution.input.get(),
+        SharedSupportFilesStrategy.INCLUDED,
+        PackageSink.forBuilder(streamed));
+    // Same files, in the same order.
+    assertThat(streamed.build()).isEqualTo(solution.solutionPackage.get());
+  }
+
+  @Test
+  public void verifyReplayedFiles() throws IOException {
+    SolutionPackage shared =
+        AutogenMediumTestsSuite.AUTOGEN.generateDeploymentPackage(
+            solution.input.get(), SharedSupportFilesStrategy.SHARED);
+    SolutionPackage.Builder replayed = SolutionPackage.newBuilder();
+    PackageSink.forBuilder(replayed).addAll(shared);
+    assertThat(replayed.build()).isEqualTo(shared);
+  }
+
   static Function<File, String> relativePathFunction(final File parent) {
     return new Function<File, String>() {
       @Override
@@ -0,0 +1,167 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.deploymentmanager.autogen.benchmarks;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.cloud.deploymentmanager.autogen.Autogen;
+import com.google.cloud.deploymentmanager.autogen.Autogen.SharedSupportFilesStrategy;
+import com.google.cloud.deploymentmanager.autogen.proto.DeploymentPackageAutogenSpec.DeploymentTool;
+import com.google.cloud.deploymentmanager.autogen.proto.DeploymentPackageInput;
+import com.google.cloud.deploymentmanager.autogen.proto.SolutionPackage;
+import com.google.common.base.Preconditions;
+import com.google.common.io.Files;
+import com.google.inject.Guice;
+import com.google.protobuf.TextFormat;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures {@link Autogen#generateDeploymentPackage} end to end on the golden test solutions.
+ *
+ * <p>Each solution input is benchmarked for every deployment tool it has a golden folder for, in
+ * the same way as {@code AutogenMediumTestsSuite}. The main method runs all benchmarks with the
+ * {@link GCProfiler} enabled, so that the allocation rate per operation is reported along with the
+ * throughput. Any JMH command line option can be passed to override the defaults.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GenerateDeploymentPackageBenchmark {
+
+  // Relative to the runfiles directory, which is the working directory with "bazel run".
+  private static final String TESTDATA_PATH =
+      "javatests/com/google/cloud/deploymentmanager/autogen/testdata/";
+
+  /** Shares one {@link Autogen} instance, the way a long running process would. */
+  @State(Scope.Benchmark)
+  public static class AutogenState {
+    Autogen autogen;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+      autogen = Guice.createInjector(Autogen.getAutogenModule()).getInstance(Autogen.class);
+    }
+  }
+
+  /** Solutions having a Deployment Manager golden folder. */
+  @State(Scope.Benchmark)
+  public static class DeploymentManagerSolution {
+    @Param({
+      "multivm/full_features/input.prototext",
+      "multivm/full_features/input_deprecated_external_ip.prototext",
+      "multivm/full_features2/input.prototext",
+      "multivm/full_features_with_application_status_spec/input.prototext",
+      "multivm/full_features_with_application_status_spec/input_deprecated_external_ip.prototext",
+      "singlevm/full_features/input.prototext",
+      "singlevm/full_features/input_deprecated_external_ip.prototext",
+      "singlevm/full_features2/input.prototext",
+      "singlevm/full_features_with_application_status_spec/input.prototext",
+      "singlevm/full_features_with_application_status_spec/input_deprecated_external_ip.prototext",
+      "singlevm/single_image/input.prototext",
+      "singlevm/single_image/input_deprecated_external_ip.prototext",
+    })
+    public String solution;
+
+    DeploymentPackageInput input;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+      input = readInput(solution, DeploymentTool.DEPLOYMENT_MANAGER, "dm");
+    }
+  }
+
+  /**
+   * Solutions having a Terraform golden folder. Terraform autogen does not support application
+   * status, so some solutions are only benchmarked for Deployment Manager.
+   */
+  @State(Scope.Benchmark)
+  public static class TerraformSolution {
+    @Param({
+      "multivm/full_features/input.prototext",
+      "multivm/full_features/input_deprecated_external_ip.prototext",
+      "multivm/full_features2/input.prototext",
+      "singlevm/full_features/input.prototext",
+      "singlevm/full_features/input_deprecated_external_ip.prototext",
+      "singlevm/full_features2/input.prototext",
+      "singlevm/single_image/input.prototext",
+      "singlevm/single_image/input_deprecated_external_ip.prototext",
+    })
+    public String solution;
+
+    DeploymentPackageInput input;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+      input = readInput(solution, DeploymentTool.TERRAFORM, "tf");
+    }
+  }
+
+  @Benchmark
+  public SolutionPackage deploymentManager(
+      AutogenState state, DeploymentManagerSolution solution) {
+    return state.autogen.generateDeploymentPackage(
+        solution.input, SharedSupportFilesStrategy.INCLUDED);
+  }
+
+  @Benchmark
+  public SolutionPackage terraform(AutogenState state, TerraformSolution solution) {
+    return state.autogen.generateDeploymentPackage(
+        solution.input, SharedSupportFilesStrategy.INCLUDED);
+  }
+
+  private static DeploymentPackageInput readInput(
+      String solution, DeploymentTool tool, String goldenFolderName) throws IOException {
+    File inputSpecFile = new File(TESTDATA_PATH, solution);
+    Preconditions.checkArgument(
+        new File(inputSpecFile.getParentFile(), goldenFolderName).isDirectory(),
+        "Solution %s has no %s golden folder, it's not expected to support %s",
+        solution,
+        goldenFolderName,
+        tool);
+    DeploymentPackageInput.Builder input = DeploymentPackageInput.newBuilder();
+    TextFormat.getParser().merge(Files.asCharSource(inputSpecFile, UTF_8).read(), input);
+    input.getSpecBuilder().setDeploymentTool(tool);
+    return input.build();
+  }
+
+  public static void main(String[] args) throws Exception {
+    new Runner(
+            new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build())
+        .run();
+  }
+}
@@ -0,0 +1,154 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.deploymentmanager.autogen.cli;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertThrows;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests {@link ArchiveOutput}. */
+@RunWith(JUnit4.class)
+public class ArchiveOutputTest {
+  // Longer than the 100 bytes of the ustar name field, so split into its prefix field.
+  private static final String LONG_PATH =
+      Strings.repeat("folder/", 20) + Strings.repeat("n", 90) + ".txt";
+
+  private static final ImmutableMap<String, String> FILES =
+      ImmutableMap.of(
+          "solution.jinja", "resources:\n- name: vm\n",
+          "resources/en-us/empty.txt", "",
+          "resources/en-us/block.txt", Strings.repeat("b", 512),
+          "resources/en-us/large.txt", Strings.repeat("0123456789", 1000),
+          LONG_PATH, "long");
+
+  @Test
+  public void zip_roundTrips() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ArchiveOutput archive = ArchiveOutput.zip(bytes)) {
+      putFiles(archive);
+    }
+
+    Map<String, String> files = new LinkedHashMap<>();
+    try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+      for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+        files.put(entry.getName(), new String(ByteStreams.toByteArray(zip), UTF_8));
+      }
+    }
+    assertThat(files).containsExactlyEntriesIn(FILES).inOrder();
+  }
+
+  @Test
+  public void tarGz_roundTrips() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ArchiveOutput archive = ArchiveOutput.tarGz(bytes)) {
+      putFiles(archive);
+    }
+
+    assertThat(readTarGz(bytes.toByteArray())).containsExactlyEntriesIn(FILES).inOrder();
+  }
+
+  @Test
+  public void tarGz_rejectsPathThatCantBeSplit() throws IOException {
+    ArchiveOutput archive = ArchiveOutput.tarGz(new ByteArrayOutputStream());
+
+    IOException e =
+        assertThrows(
+            IOException.class,
+            () -> archive.putFile(Strings.repeat("n", 101), ByteSource.empty()));
+    assertThat(e).hasMessageThat().contains("Path too long");
+  }
+
+  private static void putFiles(ArchiveOutput archive) throws IOException {
+    for (Map.Entry<String, String> file : FILES.entrySet()) {
+      archive.putFile(file.getKey(), ByteSource.wrap(file.getValue().getBytes(UTF_8)));
+    }
+  }
+
+  /** Reads the regular files of a gzipped ustar archive, checking each header. */
+  private static Map<String, String> readTarGz(byte[] archive) throws IOException {
+    Map<String, String> files = new LinkedHashMap<>();
+    try (DataInputStream tar =
+        new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(archive)))) {
+      byte[] header = new byte[512];
+      while (true) {
+        tar.readFully(header);
+        if (isZeros(header)) {
+          // The end of the archive is two zero blocks.
+          tar.readFully(header);
+          assertThat(isZeros(header)).isTrue();
+          assertThat(tar.read()).isEqualTo(-1);
+          return files;
+        }
+        assertThat(field(header, 257, 6)).isEqualTo("ustar");
+        assertThat(field(header, 263, 2)).isEqualTo("00");
+        assertThat((char) header[156]).isEqualTo('0');
+        assertThat(Long.parseLong(field(header, 148, 8).trim(), 8)).isEqualTo(checksum(header));
+
+        String name = field(header, 0, 100);
+        String prefix = field(header, 345, 155);
+        String path = prefix.isEmpty() ? name : prefix + "/" + name;
+        int size = Integer.parseInt(field(header, 124, 12), 8);
+        byte[] content = new byte[size];
+        tar.readFully(content);
+        ByteStreams.skipFully(tar, -size & 511);
+        files.put(path, new String(content, UTF_8));
+      }
+    }
+  }
+
+  // The sum of the header bytes, counting those of the checksum field as spaces.
+  private static long checksum(byte[] header) {
+    long checksum = 0;
+    for (int i = 0; i < header.length; i++) {
+      checksum += i >= 148 && i < 156 ? ' ' : header[i] & 0xff;
+    }
+    return checksum;
+  }
+
+  // Returns the NUL terminated string of a header field.
+  private static String field(byte[] header, int offset, int length) {
+    int end = offset;
+    while (end < offset + length && header[end] != 0) {
+      end++;
+    }
+    return new String(header, offset, end - offset, UTF_8);
+  }
+
+  private static boolean isZeros(byte[] block) {
+    for (byte b : block) {
+      if (b != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
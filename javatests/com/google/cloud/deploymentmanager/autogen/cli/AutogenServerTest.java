@@ -0,0 +1,229 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.deploymentmanager.autogen.cli;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.cloud.deploymentmanager.autogen.PackageSink;
+import com.google.cloud.deploymentmanager.autogen.proto.DeploymentPackageInput;
+import com.google.cloud.deploymentmanager.autogen.proto.Image;
+import com.google.cloud.deploymentmanager.autogen.proto.SolutionPackage;
+import com.google.common.io.ByteStreams;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.util.JsonFormat;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests {@link AutogenServer}. */
+@RunWith(JUnit4.class)
+public class AutogenServerTest {
+  private static final DeploymentPackageInput INPUT =
+      DeploymentPackageInput.newBuilder().setPartnerId("partner").setSolutionId("solution").build();
+
+  private ExecutorService executor;
+  private HttpServer server;
+
+  @Before
+  public void setUp() throws IOException {
+    executor = Executors.newCachedThreadPool();
+    server = new AutogenServer(AutogenServerTest::generate, false, executor).start(0);
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void postWire_respondsWithPackage() throws IOException {
+    HttpURLConnection connection =
+        post(AutogenServer.WIRE_CONTENT_TYPE, INPUT.toByteArray());
+
+    assertThat(connection.getResponseCode()).isEqualTo(200);
+    assertThat(connection.getContentType()).isEqualTo(AutogenServer.WIRE_CONTENT_TYPE);
+    try (InputStream body = connection.getInputStream()) {
+      // Encoded the same as the message, down to the empty content being omitted.
+      assertThat(ByteStreams.toByteArray(body)).isEqualTo(newPackage(INPUT).toByteArray());
+    }
+  }
+
+  @Test
+  public void postJson_respondsWithJsonPackage() throws IOException {
+    HttpURLConnection connection =
+        post(AutogenServer.JSON_CONTENT_TYPE, JsonFormat.printer().print(INPUT).getBytes(UTF_8));
+
+    assertThat(connection.getResponseCode()).isEqualTo(200);
+    assertThat(connection.getContentType()).isEqualTo(AutogenServer.JSON_CONTENT_TYPE);
+    SolutionPackage.Builder response = SolutionPackage.newBuilder();
+    JsonFormat.parser().merge(readBody(connection.getInputStream()), response);
+    assertThat(response.build()).isEqualTo(newPackage(INPUT));
+  }
+
+  @Test
+  public void postInvalidWire_respondsWithBadRequest() throws IOException {
+    HttpURLConnection connection =
+        post(AutogenServer.WIRE_CONTENT_TYPE, new byte[] {(byte) 0xff, (byte) 0xff});
+
+    assertThat(connection.getResponseCode()).isEqualTo(400);
+    assertThat(readBody(connection.getErrorStream())).contains("Invalid DeploymentPackageInput");
+  }
+
+  @Test
+  public void postInvalidJson_respondsWithBadRequest() throws IOException {
+    HttpURLConnection connection =
+        post(AutogenServer.JSON_CONTENT_TYPE, "{\"unknownField\": 1}".getBytes(UTF_8));
+
+    assertThat(connection.getResponseCode()).isEqualTo(400);
+    assertThat(readBody(connection.getErrorStream())).contains("Invalid DeploymentPackageInput");
+  }
+
+  @Test
+  public void postFailingValidation_respondsWithBadRequest() throws IOException {
+    HttpURLConnection connection =
+        post(
+            AutogenServer.WIRE_CONTENT_TYPE,
+            INPUT.toBuilder().clearPartnerId().build().toByteArray());
+
+    assertThat(connection.getResponseCode()).isEqualTo(400);
+    assertThat(readBody(connection.getErrorStream())).contains("Partner ID is required");
+  }
+
+  @Test
+  public void postLocalFileImage_respondsWithBadRequest() throws IOException {
+    DeploymentPackageInput input =
+        INPUT.toBuilder().setLogo(Image.newBuilder().setLocalFile("/etc/hostname")).build();
+
+    for (HttpURLConnection connection :
+        new HttpURLConnection[] {
+          post(AutogenServer.WIRE_CONTENT_TYPE, input.toByteArray()),
+          post(AutogenServer.JSON_CONTENT_TYPE, JsonFormat.printer().print(input).getBytes(UTF_8))
+        }) {
+      assertThat(connection.getResponseCode()).isEqualTo(400);
+      assertThat(readBody(connection.getErrorStream())).contains("Image.local_file");
+    }
+  }
+
+  @Test
+  public void postGeneratingSourceFile_respondsWithBadRequest() throws IOException {
+    DeploymentPackageInput input = INPUT.toBuilder().setSolutionId("source-file").build();
+
+    for (HttpURLConnection connection :
+        new HttpURLConnection[] {
+          post(AutogenServer.WIRE_CONTENT_TYPE, input.toByteArray()),
+          post(AutogenServer.JSON_CONTENT_TYPE, JsonFormat.printer().print(input).getBytes(UTF_8))
+        }) {
+      assertThat(connection.getResponseCode()).isEqualTo(400);
+      assertThat(readBody(connection.getErrorStream())).contains("Image.local_file");
+    }
+  }
+
+  @Test
+  public void postFailingGeneration_respondsWithServerError() throws IOException {
+    HttpURLConnection connection =
+        post(
+            AutogenServer.WIRE_CONTENT_TYPE,
+            INPUT.toBuilder().setSolutionId("unreadable").build().toByteArray());
+
+    assertThat(connection.getResponseCode()).isEqualTo(500);
+    assertThat(readBody(connection.getErrorStream())).contains("Could not read");
+  }
+
+  @Test
+  public void get_respondsWithMethodNotAllowed() throws IOException {
+    HttpURLConnection connection = open();
+
+    assertThat(connection.getResponseCode()).isEqualTo(405);
+    assertThat(connection.getHeaderField("Allow")).isEqualTo("POST");
+  }
+
+  // Stands in for Autogen, with its validation of the partner ID.
+  private static void generate(DeploymentPackageInput input, PackageSink sink)
+      throws IOException {
+    if (input.getPartnerId().isEmpty()) {
+      throw new IllegalArgumentException("Partner ID is required");
+    }
+    if (input.getSolutionId().equals("unreadable")) {
+      throw new IOException("Could not read");
+    }
+    if (input.getSolutionId().equals("source-file")) {
+      sink.addSourceFile("logo.png", "/etc/hostname");
+    }
+    SolutionPackage solution = newPackage(input);
+    for (SolutionPackage.File file : solution.getFilesList()) {
+      if (file.getSourceCase() == SolutionPackage.File.SourceCase.BINARY_CONTENT) {
+        sink.addBinaryFile(file.getPath(), file.getBinaryContent());
+      } else {
+        try (Writer writer = sink.addTextFile(file.getPath())) {
+          writer.write(file.getContent());
+        }
+      }
+    }
+    for (String path : solution.getSharedSupportFilesList()) {
+      sink.addSharedSupportFile(path);
+    }
+  }
+
+  private static SolutionPackage newPackage(DeploymentPackageInput input) {
+    return SolutionPackage.newBuilder()
+        .addFiles(
+            SolutionPackage.File.newBuilder()
+                .setPath("logo.png")
+                .setBinaryContent(ByteString.copyFrom(new byte[] {(byte) 0x89, 'P', 'N', 'G'})))
+        .addFiles(
+            SolutionPackage.File.newBuilder()
+                .setPath(input.getSolutionId() + ".jinja")
+                .setContent("partner: " + input.getPartnerId() + "\ndescription: Caf\u00e9\n"))
+        .addFiles(SolutionPackage.File.newBuilder().setPath("empty.txt"))
+        .addSharedSupportFiles("common/common.py")
+        .build();
+  }
+
+  private HttpURLConnection open() throws IOException {
+    return (HttpURLConnection)
+        new URL("http", "localhost", server.getAddress().getPort(), AutogenServer.PATH)
+            .openConnection();
+  }
+
+  private HttpURLConnection post(String contentType, byte[] body) throws IOException {
+    HttpURLConnection connection = open();
+    connection.setRequestMethod("POST");
+    connection.setRequestProperty("Content-Type", contentType);
+    connection.setDoOutput(true);
+    try (OutputStream request = connection.getOutputStream()) {
+      request.write(body);
+    }
+    return connection;
+  }
+
+  private static String readBody(InputStream body) throws IOException {
+    try (InputStream stream = body) {
+      return new String(ByteStreams.toByteArray(stream), UTF_8);
+    }
+  }
+}
@@ -0,0 +1,57 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.deploymentmanager.autogen.cli;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.toList;
+
+import com.google.cloud.deploymentmanager.autogen.proto.DeploymentPackageInput;
+import com.google.common.collect.ImmutableMap;
+import com.google.protobuf.TextFormat;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+/** Reads the golden solutions of the autogen tests, from the test runfiles. */
+final class GoldenSolutions {
+  static final Path RUNFILES =
+      Path.of(System.getenv("TEST_SRCDIR"), System.getenv("TEST_WORKSPACE"));
+
+  private static final Path TESTDATA =
+      RUNFILES.resolve("javatests/com/google/cloud/deploymentmanager/autogen/testdata");
+
+  /** Returns the inputs of the golden solutions, by their path under the testdata folder. */
+  static ImmutableMap<String, DeploymentPackageInput> readInputs() throws IOException {
+    List<Path> files;
+    try (Stream<Path> paths = Files.walk(TESTDATA)) {
+      files =
+          paths
+              .filter(path -> path.getFileName().toString().matches("input.*\\.prototext"))
+              .sorted()
+              .collect(toList());
+    }
+    ImmutableMap.Builder<String, DeploymentPackageInput> inputs = ImmutableMap.builder();
+    for (Path file : files) {
+      DeploymentPackageInput.Builder input = DeploymentPackageInput.newBuilder();
+      TextFormat.getParser().merge(new String(Files.readAllBytes(file), UTF_8), input);
+      inputs.put(TESTDATA.relativize(file).toString(), input.build());
+    }
+    return inputs.build();
+  }
+
+  private GoldenSolutions() {}
+}
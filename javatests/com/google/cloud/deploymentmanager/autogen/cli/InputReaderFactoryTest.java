@@ -0,0 +1,173 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.deploymentmanager.autogen.cli;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.cloud.deploymentmanager.autogen.cli.InputReaderFactory.SolutionIterator;
+import com.google.cloud.deploymentmanager.autogen.cli.InputReaderFactory.WireReader;
+import com.google.cloud.deploymentmanager.autogen.proto.BatchInput;
+import com.google.cloud.deploymentmanager.autogen.proto.DeploymentPackageInput;
+import com.google.cloud.deploymentmanager.autogen.proto.Image;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests {@link InputReaderFactory}. */
+@RunWith(JUnit4.class)
+public class InputReaderFactoryTest {
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void wireReader_readsSolutionsAcrossWindowBoundaries() throws Exception {
+    BatchInput batch = newBatch(5);
+    File input = writeInput(batch.toByteArray());
+    int largestField = 0;
+    for (DeploymentPackageInput solution : batch.getSolutionsList()) {
+      largestField =
+          Math.max(
+              largestField,
+              CodedOutputStream.computeMessageSize(BatchInput.SOLUTIONS_FIELD_NUMBER, solution));
+    }
+
+    // Every window size that fits a solution, for the windows to end anywhere in the solutions.
+    for (int windowSize = largestField; windowSize <= input.length() + 1; windowSize++) {
+      assertThat(readSolutions(new WireReader(newSettings(input), windowSize)))
+          .containsExactlyElementsIn(batch.getSolutionsList())
+          .inOrder();
+    }
+  }
+
+  @Test
+  public void wireReader_skipsOtherFields() throws Exception {
+    BatchInput batch = newBatch(3);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+    for (DeploymentPackageInput solution : batch.getSolutionsList()) {
+      output.writeMessage(BatchInput.SOLUTIONS_FIELD_NUMBER, solution);
+      output.writeBytes(15, ByteString.copyFrom(new byte[40]));
+      output.writeUInt64(16, Long.MAX_VALUE);
+      output.writeFixed64(17, 1);
+    }
+    output.flush();
+    File input = writeInput(bytes.toByteArray());
+
+    for (int windowSize = (int) input.length() / 3; windowSize <= input.length(); windowSize++) {
+      assertThat(readSolutions(new WireReader(newSettings(input), windowSize)))
+          .containsExactlyElementsIn(batch.getSolutionsList())
+          .inOrder();
+    }
+  }
+
+  @Test
+  public void wireReader_rejectsSolutionLargerThanWindow() throws Exception {
+    BatchInput batch = newBatch(2);
+    File input = writeInput(batch.toByteArray());
+    WireReader reader = new WireReader(newSettings(input), 100);
+
+    UncheckedIOException e =
+        assertThrows(UncheckedIOException.class, () -> readSolutions(reader));
+    assertThat(e).hasCauseThat().hasMessageThat().contains("larger than the 100 bytes");
+  }
+
+  @Test
+  public void wireReader_rejectsTruncatedBatch() throws Exception {
+    byte[] bytes = newBatch(3).toByteArray();
+    File input = writeInput(Arrays.copyOf(bytes, bytes.length - 10));
+    WireReader reader = new WireReader(newSettings(input), bytes.length / 2);
+
+    assertThrows(UncheckedIOException.class, () -> readSolutions(reader));
+  }
+
+  @Test
+  public void wireReader_streamsSolutionsFromStdin() throws Exception {
+    BatchInput batch = newBatch(3);
+    InputStream stdin = System.in;
+    System.setIn(new ByteArrayInputStream(batch.toByteArray()));
+    try {
+      AutogenSettings settings =
+          AutogenSettings.build(new String[] {"--batch_input", "--input_type", "WIRE"});
+
+      assertThat(readSolutions(new WireReader(settings)))
+          .containsExactlyElementsIn(batch.getSolutionsList())
+          .inOrder();
+    } finally {
+      System.setIn(stdin);
+    }
+  }
+
+  @Test
+  public void wireReader_readsSingleInput() throws Exception {
+    DeploymentPackageInput solution = newBatch(1).getSolutions(0);
+    File input = writeInput(solution.toByteArray());
+
+    assertThat(new WireReader(newSettings(input)).readInput(DeploymentPackageInput.newBuilder()))
+        .isEqualTo(solution);
+  }
+
+  private File writeInput(byte[] bytes) throws IOException {
+    File input = tmp.newFile();
+    Files.write(input.toPath(), bytes);
+    return input;
+  }
+
+  private static List<DeploymentPackageInput> readSolutions(WireReader reader)
+      throws IOException {
+    List<DeploymentPackageInput> solutions = new ArrayList<>();
+    try (SolutionIterator iterator = reader.readSolutions()) {
+      iterator.forEachRemaining(solutions::add);
+    }
+    return solutions;
+  }
+
+  private static AutogenSettings newSettings(File input) throws Exception {
+    return AutogenSettings.build(
+        new String[] {"--batch_input=" + input.getPath(), "--input_type", "WIRE"});
+  }
+
+  private static BatchInput newBatch(int size) {
+    BatchInput.Builder batch = BatchInput.newBuilder();
+    for (int i = 0; i < size; i++) {
+      byte[] logo = new byte[50 + 30 * i];
+      logo[0] = (byte) i;
+      batch
+          .addSolutionsBuilder()
+          .setPartnerId("partner")
+          .setSolutionId("solution-" + i)
+          .setLogo(
+              Image.newBuilder()
+                  .setRaw(
+                      Image.RawImage.newBuilder()
+                          .setContentType(Image.RawImage.ContentType.PNG)
+                          .setContent(ByteString.copyFrom(logo))));
+    }
+    return batch.build();
+  }
+}
@@ -0,0 +1,181 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.deploymentmanager.autogen.cli;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.toList;
+
+import com.google.cloud.deploymentmanager.autogen.cli.OutputWriterFactory.SolutionSink;
+import com.google.cloud.deploymentmanager.autogen.proto.BatchOutput;
+import com.google.cloud.deploymentmanager.autogen.proto.SolutionPackage;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ObjectArrays;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.TextFormat;
+import com.google.protobuf.util.JsonFormat;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.stream.Stream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests {@link OutputWriterFactory}. */
+@RunWith(JUnit4.class)
+public class OutputWriterFactoryTest {
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  private Path output;
+
+  @Before
+  public void setUp() {
+    output = tmp.getRoot().toPath();
+  }
+
+  @Test
+  public void packageSink_writesRenderedTextFiles() throws Exception {
+    writeSolution(newSettings(), "resources/en-us/solution.jinja", "name: Caf\u00e9\n");
+
+    assertThat(read("resources/en-us/solution.jinja")).isEqualTo("name: Caf\u00e9\n");
+  }
+
+  @Test
+  public void packageSink_onlyReplacesRenderedTextFilesThatChanged() throws Exception {
+    AutogenSettings settings = newSettings("--skip_unchanged");
+    writeSolution(settings, "solution.jinja", "unchanged");
+    Object fileKey = fileKey("solution.jinja");
+
+    writeSolution(settings, "solution.jinja", "unchanged");
+
+    assertThat(fileKey("solution.jinja")).isEqualTo(fileKey);
+
+    writeSolution(settings, "solution.jinja", "changed");
+
+    assertThat(read("solution.jinja")).isEqualTo("changed");
+    // Replaced by the temporary file it was written to, none of which is left behind.
+    assertThat(fileKey("solution.jinja")).isNotEqualTo(fileKey);
+    try (Stream<Path> files = Files.list(output)) {
+      assertThat(files.map(file -> file.getFileName().toString()).collect(toList()))
+          .containsExactly("solution.jinja", PackageManifest.FILE_NAME);
+    }
+  }
+
+  @Test
+  public void jsonBatch_isPrintedLikeWholeMessage() throws Exception {
+    for (BatchOutput batch : newBatches()) {
+      assertThat(writeBatch("JSON", batch)).isEqualTo(JsonFormat.printer().print(batch));
+    }
+  }
+
+  @Test
+  public void prototextBatch_isPrintedLikeWholeMessage() throws Exception {
+    for (BatchOutput batch : newBatches()) {
+      assertThat(writeBatch("PROTOTEXT", batch))
+          .isEqualTo(TextFormat.printer().printToString(batch));
+    }
+  }
+
+  @Test
+  public void yamlBatch_isPrintedLikeWholeMessage() throws Exception {
+    for (BatchOutput batch : newBatches()) {
+      StringWriter whole = new StringWriter();
+      new YamlProtoPrinter(whole).print(batch);
+      assertThat(writeBatch("YAML", batch)).isEqualTo(whole.toString());
+    }
+  }
+
+  // Streams the batch one solution at a time.
+  private String writeBatch(String outputType, BatchOutput batch) throws Exception {
+    Path file = tmp.newFile().toPath();
+    AutogenSettings settings =
+        AutogenSettings.build(
+            new String[] {
+              "--batch_input", "--output_type", outputType, "--output", file.toString()
+            });
+    OutputWriterFactory.getWriter(settings).writeBatch(batch);
+    return new String(Files.readAllBytes(file), UTF_8);
+  }
+
+  /** Returns batches of several solutions with and without shared support files, and empty ones. */
+  private static ImmutableList<BatchOutput> newBatches() {
+    BatchOutput.Builder batch = BatchOutput.newBuilder();
+    for (int i = 0; i < 3; i++) {
+      batch
+          .addSolutionsBuilder()
+          .setPartnerId("partner")
+          .setSolutionId("solution-" + i)
+          .getPackageBuilder()
+          .addFiles(
+              SolutionPackage.File.newBuilder()
+                  .setPath("solution-" + i + ".jinja")
+                  .setContent("resources:\n- name: \"vm\"\n  description: Caf\u00e9 \\ \t{{x}}\n"))
+          .addFiles(SolutionPackage.File.newBuilder().setPath("empty.txt"))
+          .addFiles(
+              SolutionPackage.File.newBuilder()
+                  .setPath("resources/en-us/logo.png")
+                  .setBinaryContent(
+                      ByteString.copyFrom(new byte[] {(byte) 0x89, 'P', 0, (byte) i})))
+          .addSharedSupportFiles("common/common.py");
+    }
+    SolutionPackage sharedSupportFiles =
+        SolutionPackage.newBuilder()
+            .addFiles(
+                SolutionPackage.File.newBuilder()
+                    .setPath("common/common.py")
+                    .setContent("def f():\n  return 'x'\n"))
+            .build();
+    return ImmutableList.of(
+        batch.build(),
+        batch.clone().setSharedSupportFiles(sharedSupportFiles).build(),
+        BatchOutput.getDefaultInstance(),
+        BatchOutput.newBuilder().setSharedSupportFiles(sharedSupportFiles).build());
+  }
+
+  private void writeSolution(AutogenSettings settings, String path, String content)
+      throws IOException {
+    try (SolutionSink sink =
+        OutputWriterFactory.getWriter(settings).openSolutionSink().get()) {
+      try (Writer writer = sink.addTextFile(path)) {
+        writer.write(content);
+      }
+    }
+  }
+
+  private AutogenSettings newSettings(String... args) throws Exception {
+    return AutogenSettings.build(
+        ObjectArrays.concat(
+            new String[] {
+              "--single_input", "--output_type", "PACKAGE", "--output", output.toString()
+            },
+            args,
+            String.class));
+  }
+
+  private Object fileKey(String path) throws IOException {
+    return Files.readAttributes(output.resolve(path), BasicFileAttributes.class).fileKey();
+  }
+
+  private String read(String path) throws IOException {
+    return new String(Files.readAllBytes(output.resolve(path)), UTF_8);
+  }
+}
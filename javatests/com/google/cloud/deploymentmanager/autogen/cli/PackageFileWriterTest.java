@@ -0,0 +1,279 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.deploymentmanager.autogen.cli;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertThrows;
+
+import com.google.cloud.deploymentmanager.autogen.cli.AutogenSettings.FsyncPolicy;
+import com.google.common.io.ByteSource;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests {@link PackageFileWriter}. */
+@RunWith(JUnit4.class)
+public class PackageFileWriterTest {
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void write_writesContentAndCopiesSourceWithEveryFsyncPolicy() throws IOException {
+    Path source = tmp.newFile().toPath();
+    Files.write(source, "source".getBytes(UTF_8));
+
+    for (FsyncPolicy fsyncPolicy : FsyncPolicy.values()) {
+      Path folder = tmp.newFolder().toPath();
+      AtomicInteger written = new AtomicInteger();
+      try (PackageFileWriter writer = new PackageFileWriter(2, fsyncPolicy)) {
+        for (int i = 0; i < 10; i++) {
+          writer.write(
+              folder.resolve(i + ".txt"),
+              asByteSource("file " + i),
+              null,
+              written::incrementAndGet);
+        }
+        writer.write(folder.resolve("copy.txt"), ByteSource.empty(), source, null);
+        writer.endSolution();
+      }
+
+      assertThat(written.get()).isEqualTo(10);
+      for (int i = 0; i < 10; i++) {
+        assertThat(read(folder.resolve(i + ".txt"))).isEqualTo("file " + i);
+      }
+      assertThat(read(folder.resolve("copy.txt"))).isEqualTo("source");
+    }
+  }
+
+  @Test
+  public void write_truncatesExistingFile() throws IOException {
+    Path file = tmp.newFile().toPath();
+    Files.write(file, "longer content".getBytes(UTF_8));
+
+    try (PackageFileWriter writer = new PackageFileWriter(1, FsyncPolicy.NONE)) {
+      writer.write(file, asByteSource("short"), null, null);
+    }
+
+    assertThat(read(file)).isEqualTo("short");
+  }
+
+  @Test
+  public void endSolution_waitsForWritesOnlyWhenSyncingEachSolution() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    Path folder = tmp.getRoot().toPath();
+
+    PackageFileWriter perSolution = new PackageFileWriter(2, FsyncPolicy.SOLUTION);
+    AtomicInteger written = new AtomicInteger();
+    perSolution.write(
+        folder.resolve("a.txt"), blockingSource(release, null), null, written::incrementAndGet);
+    Thread ending = new Thread(() -> endSolution(perSolution));
+    ending.start();
+    ending.join(200);
+    assertThat(ending.isAlive()).isTrue();
+    release.countDown();
+    ending.join();
+    assertThat(written.get()).isEqualTo(1);
+    perSolution.close();
+
+    CountDownLatch blocked = new CountDownLatch(1);
+    try (PackageFileWriter unsynced = new PackageFileWriter(2, FsyncPolicy.NONE)) {
+      unsynced.write(folder.resolve("b.txt"), blockingSource(blocked, null), null, null);
+      unsynced.endSolution();
+      blocked.countDown();
+    }
+  }
+
+  @Test
+  public void close_syncsFilesOnceWithBatchPolicy() throws Exception {
+    Path file = tmp.getRoot().toPath().resolve("a.txt");
+    CountDownLatch written = new CountDownLatch(1);
+    PackageFileWriter writer = new PackageFileWriter(1, FsyncPolicy.BATCH);
+    writer.write(file, asByteSource("a"), null, written::countDown);
+    writer.endSolution();
+    written.await();
+    Files.delete(file);
+
+    // The file is only synced when closing, by when it's gone.
+    IOException e = assertThrows(IOException.class, writer::close);
+    assertThat(e).hasCauseThat().isInstanceOf(NoSuchFileException.class);
+  }
+
+  @Test
+  public void write_boundsFilesBeingWritten() throws Exception {
+    int concurrency = 3;
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger active = new AtomicInteger();
+    AtomicInteger maxActive = new AtomicInteger();
+    AtomicInteger submitted = new AtomicInteger();
+    Path folder = tmp.getRoot().toPath();
+    PackageFileWriter writer = new PackageFileWriter(concurrency, FsyncPolicy.NONE);
+
+    Thread writing =
+        new Thread(
+            () -> {
+              try {
+                for (int i = 0; i < 10; i++) {
+                  writer.write(
+                      folder.resolve(i + ".txt"),
+                      blockingSource(
+                          release,
+                          () -> maxActive.accumulateAndGet(active.incrementAndGet(), Math::max)),
+                      null,
+                      active::decrementAndGet);
+                  submitted.incrementAndGet();
+                }
+              } catch (IOException e) {
+                throw new AssertionError(e);
+              }
+            });
+    writing.start();
+    while (active.get() < concurrency) {
+      Thread.sleep(10);
+    }
+    writing.join(200);
+
+    // The writing thread is blocked on the next file until one of them is written.
+    assertThat(writing.isAlive()).isTrue();
+    assertThat(submitted.get()).isEqualTo(concurrency);
+    release.countDown();
+    writing.join();
+    writer.close();
+    assertThat(maxActive.get()).isEqualTo(concurrency);
+    assertThat(active.get()).isEqualTo(0);
+  }
+
+  @Test
+  public void write_throwsFailureOfEarlierWrite() throws Exception {
+    Path folder = tmp.getRoot().toPath();
+    PackageFileWriter writer = new PackageFileWriter(1, FsyncPolicy.SOLUTION);
+    writer.write(folder.resolve("a.txt"), failingSource(new IOException("Disk full")), null, null);
+    IOException e = assertThrows(IOException.class, writer::endSolution);
+    assertThat(e).hasMessageThat().isEqualTo("Disk full");
+
+    e =
+        assertThrows(
+            IOException.class,
+            () -> writer.write(folder.resolve("b.txt"), asByteSource("b"), null, null));
+    assertThat(e).hasMessageThat().isEqualTo("Disk full");
+    assertThat(Files.exists(folder.resolve("b.txt"))).isFalse();
+    assertThrows(IOException.class, writer::close);
+  }
+
+  @Test
+  public void close_throwsFailureOfCallback() throws IOException {
+    PackageFileWriter writer = new PackageFileWriter(2, FsyncPolicy.NONE);
+    writer.write(
+        tmp.getRoot().toPath().resolve("a.txt"),
+        asByteSource("a"),
+        null,
+        () -> {
+          throw new IOException("Manifest failure");
+        });
+
+    IOException e = assertThrows(IOException.class, writer::close);
+    assertThat(e).hasMessageThat().isEqualTo("Manifest failure");
+  }
+
+  @Test
+  public void endSolution_throwsRuntimeFailureOfWrite() throws IOException {
+    PackageFileWriter writer = new PackageFileWriter(2, FsyncPolicy.SOLUTION);
+    writer.write(
+        tmp.getRoot().toPath().resolve("a.txt"),
+        failingSource(new IllegalStateException("Bug")),
+        null,
+        null);
+
+    IllegalStateException e = assertThrows(IllegalStateException.class, writer::endSolution);
+    assertThat(e).hasCauseThat().hasMessageThat().isEqualTo("Bug");
+    assertThrows(IllegalStateException.class, writer::close);
+  }
+
+  @Test
+  public void endSolution_throwsWhenInterrupted() throws IOException {
+    CountDownLatch release = new CountDownLatch(1);
+    PackageFileWriter writer = new PackageFileWriter(1, FsyncPolicy.SOLUTION);
+    writer.write(
+        tmp.getRoot().toPath().resolve("a.txt"), blockingSource(release, null), null, null);
+
+    Thread.currentThread().interrupt();
+    try {
+      assertThrows(InterruptedIOException.class, writer::endSolution);
+      assertThat(Thread.interrupted()).isTrue();
+    } finally {
+      release.countDown();
+      writer.close();
+    }
+  }
+
+  private static void endSolution(PackageFileWriter writer) {
+    try {
+      writer.endSolution();
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static ByteSource asByteSource(String content) {
+    return ByteSource.wrap(content.getBytes(UTF_8));
+  }
+
+  /** Returns a source whose stream is only opened once the latch is released. */
+  private static ByteSource blockingSource(CountDownLatch release, Runnable onOpen) {
+    return new ByteSource() {
+      @Override
+      public InputStream openStream() throws IOException {
+        if (onOpen != null) {
+          onOpen.run();
+        }
+        try {
+          if (!release.await(10, TimeUnit.SECONDS)) {
+            throw new IOException("Never released");
+          }
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException();
+        }
+        return new ByteArrayInputStream("content".getBytes(UTF_8));
+      }
+    };
+  }
+
+  private static ByteSource failingSource(Exception failure) {
+    return new ByteSource() {
+      @Override
+      public InputStream openStream() throws IOException {
+        if (failure instanceof IOException) {
+          throw (IOException) failure;
+        }
+        throw (RuntimeException) failure;
+      }
+    };
+  }
+
+  private static String read(Path file) throws IOException {
+    return new String(Files.readAllBytes(file), UTF_8);
+  }
+}
@@ -0,0 +1,155 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.deploymentmanager.autogen.cli;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.hash.HashCode;
+import com.google.common.io.ByteSource;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests {@link PackageManifest}. */
+@RunWith(JUnit4.class)
+public class PackageManifestTest {
+  @Rule public TemporaryFolder tmp = new TemporaryFolder();
+
+  private Path root;
+
+  @Before
+  public void setUp() {
+    root = tmp.getRoot().toPath();
+  }
+
+  @Test
+  public void isUnchanged_onlyForSameContentAsRecorded() throws IOException {
+    PackageManifest manifest = PackageManifest.load(root);
+    manifest.startSolution("");
+    write(manifest, "a.txt", "a");
+    manifest.finish();
+
+    PackageManifest next = PackageManifest.load(root);
+    next.startSolution("");
+    assertThat(next.isUnchanged(root.resolve("a.txt"), 1, hash("a"))).isTrue();
+    assertThat(next.isUnchanged(root.resolve("a.txt"), 1, hash("b"))).isFalse();
+    assertThat(next.isUnchanged(root.resolve("b.txt"), 1, hash("a"))).isFalse();
+  }
+
+  @Test
+  public void isUnchanged_notForFileModifiedSince() throws IOException {
+    PackageManifest manifest = PackageManifest.load(root);
+    manifest.startSolution("");
+    Path file = write(manifest, "a.txt", "a");
+    manifest.finish();
+    Files.setLastModifiedTime(
+        file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() - 10_000));
+
+    PackageManifest next = PackageManifest.load(root);
+    next.startSolution("");
+    assertThat(next.isUnchanged(file, 1, hash("a"))).isFalse();
+  }
+
+  @Test
+  public void finish_deletesFilesNoLongerGeneratedInWrittenFolders() throws IOException {
+    PackageManifest manifest = PackageManifest.load(root);
+    manifest.startSolution("partner/one");
+    manifest.startSolution("partner/two");
+    write(manifest, "partner/one/kept.txt", "kept");
+    write(manifest, "partner/one/stale.txt", "stale");
+    write(manifest, "partner/two/other.txt", "other");
+    manifest.finish();
+
+    PackageManifest next = PackageManifest.load(root);
+    next.startSolution("partner/one");
+    write(next, "partner/one/kept.txt", "kept again");
+    next.finish();
+
+    assertThat(next.getDeletedCount()).isEqualTo(1);
+    assertThat(Files.exists(root.resolve("partner/one/kept.txt"))).isTrue();
+    assertThat(Files.exists(root.resolve("partner/one/stale.txt"))).isFalse();
+    // Not written in this run, so kept along with its manifest entry.
+    assertThat(Files.exists(root.resolve("partner/two/other.txt"))).isTrue();
+    PackageManifest last = PackageManifest.load(root);
+    last.startSolution("partner/two");
+    assertThat(last.isUnchanged(root.resolve("partner/two/other.txt"), 5, hash("other")))
+        .isTrue();
+  }
+
+  @Test
+  public void finish_rootSolutionOnlyDeletesItsOwnFiles() throws IOException {
+    PackageManifest batch = PackageManifest.load(root);
+    batch.startSolution("partner/solution");
+    write(batch, "partner/solution/batch.txt", "batch");
+    batch.finish();
+    PackageManifest single = PackageManifest.load(root);
+    single.startSolution("");
+    write(single, "kept.txt", "kept");
+    write(single, "resources/stale.png", "stale");
+    single.finish();
+
+    PackageManifest next = PackageManifest.load(root);
+    next.startSolution("");
+    write(next, "kept.txt", "kept again");
+    next.finish();
+
+    assertThat(next.getDeletedCount()).isEqualTo(1);
+    assertThat(Files.exists(root.resolve("kept.txt"))).isTrue();
+    assertThat(Files.exists(root.resolve("resources/stale.png"))).isFalse();
+    assertThat(Files.exists(root.resolve("partner/solution/batch.txt"))).isTrue();
+  }
+
+  @Test
+  public void finish_solutionWrittenAgainAtRootKeepsSubfolderSolutions() throws IOException {
+    PackageManifest single = PackageManifest.load(root);
+    single.startSolution("");
+    write(single, "root.txt", "root");
+    single.finish();
+    PackageManifest batch = PackageManifest.load(root);
+    batch.startSolution("partner/solution");
+    write(batch, "partner/solution/batch.txt", "batch");
+    batch.finish();
+
+    // The batch file is under the root, but was written for its own solution folder.
+    PackageManifest next = PackageManifest.load(root);
+    next.startSolution("");
+    write(next, "root.txt", "root again");
+    next.finish();
+
+    assertThat(next.getDeletedCount()).isEqualTo(0);
+    assertThat(Files.exists(root.resolve("partner/solution/batch.txt"))).isTrue();
+  }
+
+  private Path write(PackageManifest manifest, String path, String content) throws IOException {
+    Path file = root.resolve(path);
+    Files.createDirectories(file.getParent());
+    byte[] bytes = content.getBytes(UTF_8);
+    Files.write(file, bytes);
+    manifest.recordWritten(file, bytes.length, hash(content));
+    return file;
+  }
+
+  private static HashCode hash(String content) throws IOException {
+    return PackageManifest.hash(ByteSource.wrap(content.getBytes(UTF_8)));
+  }
+}
@@ -0,0 +1,265 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.deploymentmanager.autogen.cli;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertThrows;
+
+import com.google.cloud.deploymentmanager.autogen.proto.DeploymentPackageInput;
+import com.google.common.collect.ImmutableMap;
+import com.google.gson.Gson;
+import com.google.protobuf.DescriptorProtos.FieldDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.DescriptorProtos.UninterpretedOption;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.util.JsonFormat;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.yaml.snakeyaml.Yaml;
+
+/**
+ * Tests {@link YamlProtoParser} against the way YAML input used to be read: loading it with
+ * SnakeYAML, serializing it to JSON with Gson and parsing that with {@link JsonFormat#parser()}.
+ */
+@RunWith(JUnit4.class)
+public class YamlProtoParserTest {
+  @Test
+  public void goldenInputs_parseLikeJsonRoundTrip() throws IOException {
+    ImmutableMap<String, DeploymentPackageInput> inputs = GoldenSolutions.readInputs();
+    assertThat(inputs).isNotEmpty();
+
+    for (Map.Entry<String, DeploymentPackageInput> input : inputs.entrySet()) {
+      for (JsonFormat.Printer printer :
+          new JsonFormat.Printer[] {
+            JsonFormat.printer(), JsonFormat.printer().preservingProtoFieldNames()
+          }) {
+        // Written the way YAML output used to be.
+        Yaml yaml = new Yaml();
+        String document = yaml.dump(yaml.load(printer.print(input.getValue())));
+
+        Message parsed =
+            assertParsesLikeJsonRoundTrip(document, DeploymentPackageInput.getDefaultInstance());
+        assertWithMessage(input.getKey()).that(parsed).isEqualTo(input.getValue());
+      }
+    }
+  }
+
+  @Test
+  public void exampleConfig_parsesLikeJsonRoundTrip() throws IOException {
+    String document =
+        new String(
+            Files.readAllBytes(GoldenSolutions.RUNFILES.resolve("example-config/solution.yaml")),
+            UTF_8);
+
+    DeploymentPackageInput input =
+        (DeploymentPackageInput)
+            assertParsesLikeJsonRoundTrip(document, DeploymentPackageInput.getDefaultInstance());
+    assertThat(input.getPartnerId()).isEqualTo("my-partner-id");
+    // A YAML float, read as the string JSON would have held.
+    assertThat(input.getSpec().getVersion()).isEqualTo("1.0");
+  }
+
+  @Test
+  public void fieldNames_matchLowerCamelAndOriginalNames() throws IOException {
+    FileDescriptorProto file =
+        (FileDescriptorProto)
+            assertParsesLikeJsonRoundTrip(
+                "name: file.proto\n"
+                    + "message_type:\n"
+                    + "- name: Message\n"
+                    + "  field:\n"
+                    + "  - {name: first_field, json_name: firstField, number: 1}\n"
+                    + "  - {name: second_field, jsonName: secondField, number: 2}\n"
+                    + "  oneofDecl:\n"
+                    + "  - name: choice\n"
+                    + "publicDependency: [1, 2]\n",
+                FileDescriptorProto.getDefaultInstance());
+
+    assertThat(file.getMessageType(0).getField(0).getJsonName()).isEqualTo("firstField");
+    assertThat(file.getMessageType(0).getField(1).getJsonName()).isEqualTo("secondField");
+    assertThat(file.getMessageType(0).getOneofDecl(0).getName()).isEqualTo("choice");
+    assertThat(file.getPublicDependencyList()).containsExactly(1, 2).inOrder();
+  }
+
+  @Test
+  public void fieldNames_failWhenSetByBothNames() {
+    assertFailsLikeJsonRoundTrip(
+        "messageType:\n- name: A\nmessage_type:\n- name: B\n",
+        FileDescriptorProto.getDefaultInstance());
+  }
+
+  @Test
+  public void enums_matchNameAndNumber() throws IOException {
+    FileDescriptorProto file =
+        (FileDescriptorProto)
+            assertParsesLikeJsonRoundTrip(
+                "messageType:\n"
+                    + "- field:\n"
+                    + "  - {name: by_name, type: TYPE_STRING, label: LABEL_REPEATED}\n"
+                    + "  - {name: by_number, type: 9, label: 3}\n"
+                    + "  - {name: by_string_number, type: '9', label: '3'}\n",
+                FileDescriptorProto.getDefaultInstance());
+
+    for (FieldDescriptorProto field : file.getMessageType(0).getFieldList()) {
+      assertWithMessage(field.getName())
+          .that(field.getType())
+          .isEqualTo(FieldDescriptorProto.Type.TYPE_STRING);
+      assertWithMessage(field.getName())
+          .that(field.getLabel())
+          .isEqualTo(FieldDescriptorProto.Label.LABEL_REPEATED);
+    }
+  }
+
+  @Test
+  public void enums_failForUnknownNameOrNumber() {
+    assertFailsLikeJsonRoundTrip(
+        "messageType:\n- field:\n  - {type: TYPE_UNKNOWN}\n",
+        FileDescriptorProto.getDefaultInstance());
+    assertFailsLikeJsonRoundTrip(
+        "messageType:\n- field:\n  - {type: 99}\n", FileDescriptorProto.getDefaultInstance());
+  }
+
+  @Test
+  public void int64_parsedFromStringsAndNumbers() throws IOException {
+    UninterpretedOption option =
+        (UninterpretedOption)
+            assertParsesLikeJsonRoundTrip(
+                "positiveIntValue: '18446744073709551615'\n"
+                    + "negativeIntValue: '-9223372036854775807'\n"
+                    + "doubleValue: 1e3\n"
+                    + "stringValue: Y2Fmw6k=\n",
+                UninterpretedOption.getDefaultInstance());
+
+    assertThat(option.getPositiveIntValue()).isEqualTo(-1L);
+    assertThat(option.getNegativeIntValue()).isEqualTo(-Long.MAX_VALUE);
+    assertThat(option.getDoubleValue()).isEqualTo(1000.0);
+    assertThat(option.getStringValue().toStringUtf8()).isEqualTo("caf\u00e9");
+
+    option =
+        (UninterpretedOption)
+            assertParsesLikeJsonRoundTrip(
+                "positiveIntValue: 42\nnegative_int_value: -4.2e1\n",
+                UninterpretedOption.getDefaultInstance());
+
+    assertThat(option.getPositiveIntValue()).isEqualTo(42L);
+    assertThat(option.getNegativeIntValue()).isEqualTo(-42L);
+  }
+
+  @Test
+  public void int64_failsOutOfRange() {
+    for (String document :
+        new String[] {"negativeIntValue: '9223372036854775808'\n", "positiveIntValue: -1\n"}) {
+      // Both fail, JsonFormat quoting the string value in its message.
+      assertThrows(
+          InvalidProtocolBufferException.class,
+          () -> JsonFormat.parser().merge(toJson(document), UninterpretedOption.newBuilder()));
+      assertThrows(
+          InvalidProtocolBufferException.class,
+          () ->
+              YamlProtoParser.merge(new StringReader(document), UninterpretedOption.newBuilder()));
+    }
+  }
+
+  @Test
+  public void nestedRepeatedMessages_parseLikeJsonRoundTrip() throws IOException {
+    FileDescriptorProto file =
+        (FileDescriptorProto)
+            assertParsesLikeJsonRoundTrip(
+                "messageType:\n"
+                    + "- name: Outer\n"
+                    + "  nestedType:\n"
+                    + "  - name: Inner\n"
+                    + "    field:\n"
+                    + "    - name: a\n"
+                    + "      options:\n"
+                    + "        uninterpretedOption:\n"
+                    + "        - name:\n"
+                    + "          - {namePart: first, isExtension: false}\n"
+                    + "          - {name_part: second, is_extension: true}\n"
+                    + "          identifierValue: value\n"
+                    + "        - aggregateValue: ''\n"
+                    + "    - name: b\n"
+                    + "  - name: Empty\n"
+                    + "    field: []\n"
+                    + "- name: Other\n",
+                FileDescriptorProto.getDefaultInstance());
+
+    assertThat(file.getMessageTypeCount()).isEqualTo(2);
+    assertThat(file.getMessageType(0).getNestedType(0).getFieldCount()).isEqualTo(2);
+    assertThat(
+            file.getMessageType(0)
+                .getNestedType(0)
+                .getField(0)
+                .getOptions()
+                .getUninterpretedOption(0)
+                .getName(1)
+                .getNamePart())
+        .isEqualTo("second");
+    assertThat(file.getMessageType(0).getNestedType(1).getFieldCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void unknownField_failsLikeJsonRoundTrip() {
+    assertFailsLikeJsonRoundTrip("unknownField: 1\n", DeploymentPackageInput.getDefaultInstance());
+    assertFailsLikeJsonRoundTrip(
+        "spec:\n  singleVm:\n    unknown_field: [a, b]\n",
+        DeploymentPackageInput.getDefaultInstance());
+    assertFailsLikeJsonRoundTrip(
+        "messageType:\n- field:\n  - {name: a, unknownField: }\n  - {name: b, unknown: 1}\n",
+        FileDescriptorProto.getDefaultInstance());
+  }
+
+  /** Parses the document both ways, returning the message once checked to be the same. */
+  private static Message assertParsesLikeJsonRoundTrip(String document, Message defaultInstance)
+      throws IOException {
+    Message.Builder expected = defaultInstance.newBuilderForType();
+    JsonFormat.parser().merge(toJson(document), expected);
+    Message.Builder actual = defaultInstance.newBuilderForType();
+    YamlProtoParser.merge(new StringReader(document), actual);
+
+    assertThat(actual.build()).isEqualTo(expected.build());
+    return actual.build();
+  }
+
+  private static void assertFailsLikeJsonRoundTrip(String document, Message defaultInstance) {
+    InvalidProtocolBufferException expected =
+        assertThrows(
+            InvalidProtocolBufferException.class,
+            () -> JsonFormat.parser().merge(toJson(document), defaultInstance.newBuilderForType()));
+    InvalidProtocolBufferException actual =
+        assertThrows(
+            InvalidProtocolBufferException.class,
+            () ->
+                YamlProtoParser.merge(
+                    new StringReader(document), defaultInstance.newBuilderForType()));
+
+    assertWithMessage(document)
+        .that(actual)
+        .hasMessageThat()
+        .isEqualTo(expected.getMessage());
+  }
+
+  private static String toJson(String document) {
+    return new Gson().toJson(new Yaml().loadAs(document, Map.class));
+  }
+}
@@ -0,0 +1,234 @@
+// Copyright 2018 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.cloud.deploymentmanager.autogen.cli;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+import static org.junit.Assert.assertThrows;
+
+import com.google.cloud.deploymentmanager.autogen.Autogen;
+import com.google.cloud.deploymentmanager.autogen.Autogen.SharedSupportFilesStrategy;
+import com.google.cloud.deploymentmanager.autogen.proto.BatchOutput;
+import com.google.cloud.deploymentmanager.autogen.proto.DeployInputField;
+import com.google.cloud.deploymentmanager.autogen.proto.DeploymentPackageAutogenSpec.DeploymentTool;
+import com.google.cloud.deploymentmanager.autogen.proto.DeploymentPackageInput;
+import com.google.cloud.deploymentmanager.autogen.proto.MachineTypeSpec;
+import com.google.cloud.deploymentmanager.autogen.proto.SolutionPackage;
+import com.google.common.collect.ImmutableMap;
+import com.google.inject.Guice;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.DescriptorProtos.DescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileOptions;
+import com.google.protobuf.DescriptorProtos.UninterpretedOption;
+import com.google.protobuf.MessageOrBuilder;
+import com.google.protobuf.Timestamp;
+import com.google.protobuf.util.JsonFormat;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.yaml.snakeyaml.Yaml;
+
+/**
+ * Tests {@link YamlProtoPrinter} against the way YAML output used to be written: printing the
+ * message with {@link JsonFormat#printer()}, loading that with SnakeYAML and dumping it again.
+ */
+@RunWith(JUnit4.class)
+public class YamlProtoPrinterTest {
+  private static final String[] STRINGS = {
+    "plain",
+    "",
+    "Caf\u00e9 \u2603",
+    "yes",
+    "null",
+    "1.0",
+    "0x1F",
+    "2018-01-01",
+    "~",
+    " leading and trailing ",
+    "key: value",
+    "# comment",
+    "- item",
+    "'quoted'",
+    "\"double quoted\"",
+    "tab\there",
+    "first line\nsecond line\n",
+    "trailing spaces  \n\n",
+    "line\u2028separator",
+    "control \u0001 character",
+  };
+
+  @Test
+  public void goldenSolutions_printLikeYamlRoundTrip() throws IOException {
+    ImmutableMap<String, DeploymentPackageInput> inputs = GoldenSolutions.readInputs();
+    assertThat(inputs).isNotEmpty();
+    Autogen autogen = Guice.createInjector(Autogen.getAutogenModule()).getInstance(Autogen.class);
+
+    BatchOutput.Builder batch = BatchOutput.newBuilder();
+    for (Map.Entry<String, DeploymentPackageInput> entry : inputs.entrySet()) {
+      DeploymentPackageInput.Builder input = entry.getValue().toBuilder();
+      input.getSpecBuilder().setDeploymentTool(DeploymentTool.DEPLOYMENT_MANAGER);
+      SolutionPackage solutionPackage =
+          autogen.generateDeploymentPackage(input.build(), SharedSupportFilesStrategy.INCLUDED);
+      assertWithMessage(entry.getKey())
+          .that(
+              solutionPackage.getFilesList().stream()
+                  .anyMatch(file -> !file.getBinaryContent().isEmpty()))
+          .isTrue();
+
+      assertPrintsLikeYamlRoundTrip(entry.getKey(), input);
+      assertPrintsLikeYamlRoundTrip(entry.getKey(), solutionPackage);
+      batch
+          .addSolutionsBuilder()
+          .setPartnerId(input.getPartnerId())
+          .setSolutionId(input.getSolutionId())
+          .setPackage(solutionPackage);
+    }
+    assertPrintsLikeYamlRoundTrip("batch", batch.build());
+  }
+
+  @Test
+  public void bytes_printLikeYamlRoundTrip() throws IOException {
+    SolutionPackage.Builder solutionPackage = SolutionPackage.newBuilder();
+    for (int length = 0; length < 100; length += 7) {
+      byte[] bytes = new byte[length];
+      for (int i = 0; i < length; i++) {
+        bytes[i] = (byte) (i * 37 + length);
+      }
+      solutionPackage
+          .addFilesBuilder()
+          .setPath(length + ".bin")
+          .setBinaryContent(ByteString.copyFrom(bytes));
+    }
+
+    assertPrintsLikeYamlRoundTrip("bytes", solutionPackage);
+  }
+
+  @Test
+  public void int64AndFloatingPoint_printLikeYamlRoundTrip() throws IOException {
+    long[] longs = {0, 1, -1, 42, Long.MAX_VALUE, Long.MIN_VALUE, 1L << 53, (1L << 53) + 1};
+    double[] doubles = {
+      0, -0.0, 0.1, 1.5, -2, 1e-7, 1e20, 1.0e300, Double.MIN_VALUE, Double.MAX_VALUE, Double.NaN,
+      Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY
+    };
+
+    for (long value : longs) {
+      assertPrintsLikeYamlRoundTrip(
+          "int64 " + value,
+          UninterpretedOption.newBuilder()
+              .setPositiveIntValue(value)
+              .setNegativeIntValue(value)
+              .setStringValue(ByteString.copyFromUtf8(Long.toString(value))));
+    }
+    for (double value : doubles) {
+      assertPrintsLikeYamlRoundTrip(
+          "double " + value, UninterpretedOption.newBuilder().setDoubleValue(value));
+      assertPrintsLikeYamlRoundTrip(
+          "float " + value,
+          MachineTypeSpec.MachineTypeConstraint.newBuilder().setCpu(1).setRamGb((float) value));
+    }
+  }
+
+  @Test
+  public void strings_printLikeYamlRoundTrip() throws IOException {
+    FileDescriptorProto.Builder plainOnly = FileDescriptorProto.newBuilder();
+    for (String value : STRINGS) {
+      assertPrintsLikeYamlRoundTrip(value, FileDescriptorProto.newBuilder().setName(value));
+      assertPrintsLikeYamlRoundTrip(value, FileDescriptorProto.newBuilder().addDependency(value));
+      assertPrintsLikeYamlRoundTrip(
+          value,
+          UninterpretedOption.newBuilder()
+              .addNameBuilder()
+              .setNamePart(value)
+              .setIsExtension(false));
+      if (!value.contains("\n") && !value.contains(" ") && !value.contains("\u0001")) {
+        plainOnly.addDependency(value);
+      }
+    }
+
+    // Sequences of plain scalars only are printed in the flow style, others in the block style.
+    assertPrintsLikeYamlRoundTrip("plain", plainOnly);
+    assertPrintsLikeYamlRoundTrip(
+        "mixed", FileDescriptorProto.newBuilder().addAllDependency(Arrays.asList(STRINGS)));
+  }
+
+  @Test
+  public void maps_printLikeYamlRoundTrip() throws IOException {
+    DeployInputField.IntegerDropdown.Builder integerDropdown =
+        DeployInputField.IntegerDropdown.newBuilder().addValues(-1).addValues(0).addValues(7);
+    DeployInputField.StringDropdown.Builder stringDropdown =
+        DeployInputField.StringDropdown.newBuilder();
+    for (int i = 0; i < STRINGS.length; i++) {
+      integerDropdown.putValueLabels(i - 1, STRINGS[i]);
+      stringDropdown.addValues(STRINGS[i]).putValueLabels(STRINGS[i], "label " + i);
+    }
+
+    assertPrintsLikeYamlRoundTrip("int32 keys", integerDropdown);
+    assertPrintsLikeYamlRoundTrip("string keys", stringDropdown);
+    assertPrintsLikeYamlRoundTrip(
+        "plain", DeployInputField.StringDropdown.newBuilder().putValueLabels("a", "b"));
+  }
+
+  @Test
+  public void emptyFields_printLikeYamlRoundTrip() throws IOException {
+    assertPrintsLikeYamlRoundTrip("empty", FileDescriptorProto.newBuilder());
+    assertPrintsLikeYamlRoundTrip("empty", BatchOutput.newBuilder());
+    // Empty repeated fields aren't printed, empty messages are.
+    assertPrintsLikeYamlRoundTrip(
+        "empty repeated",
+        FileDescriptorProto.newBuilder()
+            .setName("file.proto")
+            .addMessageType(DescriptorProto.getDefaultInstance())
+            .addMessageType(DescriptorProto.newBuilder().setName("A"))
+            .setOptions(FileOptions.getDefaultInstance()));
+    assertPrintsLikeYamlRoundTrip(
+        "empty package",
+        BatchOutput.newBuilder()
+            .addSolutions(BatchOutput.SolutionOutput.getDefaultInstance())
+            .addSolutions(
+                BatchOutput.SolutionOutput.newBuilder()
+                    .setPartnerId("partner")
+                    .setPackage(SolutionPackage.getDefaultInstance()))
+            .setSharedSupportFiles(
+                SolutionPackage.newBuilder()
+                    .addFiles(
+                        SolutionPackage.File.newBuilder().setPath("empty.txt").setContent(""))
+                    .addFiles(
+                        SolutionPackage.File.newBuilder()
+                            .setPath("empty.bin")
+                            .setBinaryContent(ByteString.EMPTY))));
+  }
+
+  @Test
+  public void print_rejectsSpecialJsonTypes() {
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> new YamlProtoPrinter(new StringWriter()).print(Timestamp.getDefaultInstance()));
+  }
+
+  private static void assertPrintsLikeYamlRoundTrip(String name, MessageOrBuilder message)
+      throws IOException {
+    Yaml yaml = new Yaml();
+    String expected = yaml.dump(yaml.load(JsonFormat.printer().print(message)));
+    StringWriter actual = new StringWriter();
+    new YamlProtoPrinter(actual).print(message);
+
+    assertWithMessage(name).that(actual.toString()).isEqualTo(expected);
+  }
+}
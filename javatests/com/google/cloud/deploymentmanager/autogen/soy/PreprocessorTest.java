@@ -14,10 +14,10 @@
 
 package com.google.cloud.deploymentmanager.autogen.soy;
 
-import static com.google.cloud.deploymentmanager.autogen.soy.Preprocessor.ESCAPE_REGEX;
-import static com.google.cloud.deploymentmanager.autogen.soy.Preprocessor.SOY_COMMAND_BLACKLIST_REGEX;
-import static com.google.cloud.deploymentmanager.autogen.soy.Preprocessor.SOY_COMMAND_REGEX;
-import static com.google.cloud.deploymentmanager.autogen.soy.Preprocessor.SOY_COMMAND_TO_COLLAPSE_REGEX;
+import static com.google.cloud.deploymentmanager.autogen.soy.Preprocessor.isBlacklistedCommand;
+import static com.google.cloud.deploymentmanager.autogen.soy.Preprocessor.isEscape;
+import static com.google.cloud.deploymentmanager.autogen.soy.Preprocessor.isSoyCommand;
+import static com.google.cloud.deploymentmanager.autogen.soy.Preprocessor.isSoyCommandToCollapse;
 import static com.google.cloud.deploymentmanager.autogen.soy.Preprocessor.removeDirectives;
 import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.assertFalse;
@@ -36,91 +36,94 @@ import org.junit.runners.JUnit4;
 public class PreprocessorTest {
   
   @Test
-  public void testLineBreakEscapeCharRegex() {
-    assertTrue(ESCAPE_REGEX.matcher("{sp}").matches());
-    assertTrue(ESCAPE_REGEX.matcher("{nil}").matches());
-    assertTrue(ESCAPE_REGEX.matcher("{\\n}").matches());
-    assertTrue(ESCAPE_REGEX.matcher("{\\r}").matches());
-    assertTrue(ESCAPE_REGEX.matcher("{\\t}").matches());
-    assertFalse(ESCAPE_REGEX.matcher("{lb}").matches());
-    assertFalse(ESCAPE_REGEX.matcher("{rb}").matches());
-    assertFalse(ESCAPE_REGEX.matcher("{if}").matches());
+  public void testIsEscape() {
+    assertTrue(isEscape("{sp}"));
+    assertTrue(isEscape("{nil}"));
+    assertTrue(isEscape("{\\n}"));
+    assertTrue(isEscape("{\\r}"));
+    assertTrue(isEscape("{\\t}"));
+    assertFalse(isEscape("{lb}"));
+    assertFalse(isEscape("{rb}"));
+    assertFalse(isEscape("{if}"));
   }
   
   @Test
-  public void testSoyCommandRegex() {
-    assertTrue(SOY_COMMAND_REGEX.matcher("{template abc kind=\"text\"}").matches());
-    assertTrue(SOY_COMMAND_REGEX.matcher("{if $a > $b}").matches());
-    assertTrue(SOY_COMMAND_REGEX.matcher("{/for}").matches());
-    assertTrue(SOY_COMMAND_REGEX.matcher("{@param $a: string}").matches());
-    assertTrue(SOY_COMMAND_REGEX.matcher("{@param? $a: string}").matches());
-    assertTrue(SOY_COMMAND_REGEX.matcher("{param $p: 'abc'/}").matches());
-    assertTrue(SOY_COMMAND_REGEX.matcher("{print $a |capitalized}").matches());
-    assertTrue(SOY_COMMAND_REGEX.matcher("{sp}").matches());
-    assertTrue(SOY_COMMAND_REGEX.matcher("{lb}").matches());
-    assertFalse(SOY_COMMAND_REGEX.matcher("{$param}").matches());
-    assertFalse(SOY_COMMAND_REGEX.matcher("{ $param }").matches());
-    assertFalse(SOY_COMMAND_REGEX.matcher("{'abc'}").matches());
-    assertFalse(SOY_COMMAND_REGEX.matcher("some{sp}text").matches());
-    assertFalse(SOY_COMMAND_REGEX.matcher("some text").matches());
-    assertFalse(SOY_COMMAND_REGEX.matcher("{{ jinja_variable }}").matches());
-    assertFalse(SOY_COMMAND_REGEX.matcher("{{ jinja_variable -}}").matches());
-    assertFalse(SOY_COMMAND_REGEX.matcher("{{- jinja_variable }}").matches());
-    assertFalse(SOY_COMMAND_REGEX.matcher("{{- jinja_variable -}}").matches());
-    assertFalse(SOY_COMMAND_REGEX.matcher("{% if jinja_boolean %}").matches());
-    assertFalse(SOY_COMMAND_REGEX.matcher("{%- if jinja_boolean -%}").matches());
-    assertFalse(SOY_COMMAND_REGEX.matcher("{% if jinja_boolean -%}").matches());
-    assertFalse(SOY_COMMAND_REGEX.matcher("{%- if jinja_boolean %}").matches());
-    assertFalse(SOY_COMMAND_REGEX.matcher("{%- if jinja_boolean -%}").matches());
-    assertFalse(SOY_COMMAND_REGEX.matcher("{# jinja comment #}").matches());
-    assertFalse(SOY_COMMAND_REGEX.matcher("{# jinja comment -#}").matches());
-    assertFalse(SOY_COMMAND_REGEX.matcher("{#- jinja comment #}").matches());
-    assertFalse(SOY_COMMAND_REGEX.matcher("{#- jinja comment -#}").matches());
-    assertFalse(SOY_COMMAND_REGEX.matcher("<head>").matches());
+  public void testIsSoyCommand() {
+    assertTrue(isSoyCommand("{template abc kind=\"text\"}"));
+    assertTrue(isSoyCommand("{if $a > $b}"));
+    assertTrue(isSoyCommand("{/for}"));
+    assertTrue(isSoyCommand("{@param $a: string}"));
+    assertTrue(isSoyCommand("{@param? $a: string}"));
+    assertTrue(isSoyCommand("{param $p: 'abc'/}"));
+    assertTrue(isSoyCommand("{print $a |capitalized}"));
+    assertTrue(isSoyCommand("{sp}"));
+    assertTrue(isSoyCommand("{lb}"));
+    assertFalse(isSoyCommand("{$param}"));
+    assertFalse(isSoyCommand("{ $param }"));
+    assertFalse(isSoyCommand("{'abc'}"));
+    assertFalse(isSoyCommand("some{sp}text"));
+    assertFalse(isSoyCommand("some text"));
+    assertFalse(isSoyCommand("{{ jinja_variable }}"));
+    assertFalse(isSoyCommand("{{ jinja_variable -}}"));
+    assertFalse(isSoyCommand("{{- jinja_variable }}"));
+    assertFalse(isSoyCommand("{{- jinja_variable -}}"));
+    assertFalse(isSoyCommand("{% if jinja_boolean %}"));
+    assertFalse(isSoyCommand("{%- if jinja_boolean -%}"));
+    assertFalse(isSoyCommand("{% if jinja_boolean -%}"));
+    assertFalse(isSoyCommand("{%- if jinja_boolean %}"));
+    assertFalse(isSoyCommand("{%- if jinja_boolean -%}"));
+    assertFalse(isSoyCommand("{# jinja comment #}"));
+    assertFalse(isSoyCommand("{# jinja comment -#}"));
+    assertFalse(isSoyCommand("{#- jinja comment #}"));
+    assertFalse(isSoyCommand("{#- jinja comment -#}"));
+    assertFalse(isSoyCommand("<head>"));
   }
   
   @Test
-  public void testSoyCommandBlacklistRegex() {
-    assertTrue(SOY_COMMAND_BLACKLIST_REGEX.matcher("{sp}").matches());
-    assertTrue(SOY_COMMAND_BLACKLIST_REGEX.matcher("{nil}").matches());
-    assertTrue(SOY_COMMAND_BLACKLIST_REGEX.matcher("{lb}").matches());
-    assertTrue(SOY_COMMAND_BLACKLIST_REGEX.matcher("{rb}").matches());
-    assertTrue(SOY_COMMAND_BLACKLIST_REGEX.matcher("{\\n}").matches());
-    assertTrue(SOY_COMMAND_BLACKLIST_REGEX.matcher("{\\r}").matches());
-    assertTrue(SOY_COMMAND_BLACKLIST_REGEX.matcher("{\\t}").matches());
-    assertTrue(SOY_COMMAND_BLACKLIST_REGEX.matcher("{print $abc}").matches());
-    assertFalse(SOY_COMMAND_BLACKLIST_REGEX.matcher("{if a > b}").matches());
+  public void testIsBlacklistedCommand() {
+    assertTrue(isBlacklistedCommand("{sp}"));
+    assertTrue(isBlacklistedCommand("{nil}"));
+    assertTrue(isBlacklistedCommand("{lb}"));
+    assertTrue(isBlacklistedCommand("{rb}"));
+    assertTrue(isBlacklistedCommand("{\\n}"));
+    assertTrue(isBlacklistedCommand("{\\r}"));
+    assertTrue(isBlacklistedCommand("{\\t}"));
+    assertTrue(isBlacklistedCommand("{print $abc}"));
+    assertFalse(isBlacklistedCommand("{if a > b}"));
   }
   
   @Test
-  public void testSoyCommandToCollapseRegex() {
-    assertTrue(SOY_COMMAND_TO_COLLAPSE_REGEX.matcher("{template abc kind=\"text\"}").matches());
-    assertTrue(SOY_COMMAND_TO_COLLAPSE_REGEX.matcher("{if $a > $b}").matches());
-    assertTrue(SOY_COMMAND_TO_COLLAPSE_REGEX.matcher("{/for}").matches());
-    assertTrue(SOY_COMMAND_TO_COLLAPSE_REGEX.matcher("{@param $a: string}").matches());
-    assertTrue(SOY_COMMAND_TO_COLLAPSE_REGEX.matcher("{@param? $a: string}").matches());
-    assertTrue(SOY_COMMAND_TO_COLLAPSE_REGEX.matcher("{param $p: 'abc'/}").matches());
-    assertTrue(SOY_COMMAND_TO_COLLAPSE_REGEX.matcher("{print $a |capitalized}").matches());
-    assertTrue(SOY_COMMAND_TO_COLLAPSE_REGEX.matcher("{sp}").matches());
-    assertTrue(SOY_COMMAND_TO_COLLAPSE_REGEX.matcher("{lb}").matches());
-    assertTrue(SOY_COMMAND_TO_COLLAPSE_REGEX.matcher("{$param}").matches());
-    assertTrue(SOY_COMMAND_TO_COLLAPSE_REGEX.matcher("{ $param }").matches());
-    assertTrue(SOY_COMMAND_TO_COLLAPSE_REGEX.matcher("{'abc'}").matches());
-    assertFalse(SOY_COMMAND_TO_COLLAPSE_REGEX.matcher("some{sp}text").matches());
-    assertFalse(SOY_COMMAND_TO_COLLAPSE_REGEX.matcher("some text").matches());
-    assertFalse(SOY_COMMAND_TO_COLLAPSE_REGEX.matcher("{{ jinja_variable }}").matches());
-    assertFalse(SOY_COMMAND_TO_COLLAPSE_REGEX.matcher("{{ jinja_variable -}}").matches());
-    assertFalse(SOY_COMMAND_TO_COLLAPSE_REGEX.matcher("{{- jinja_variable }}").matches());
-    assertFalse(SOY_COMMAND_TO_COLLAPSE_REGEX.matcher("{{- jinja_variable -}}").matches());
-    assertFalse(SOY_COMMAND_TO_COLLAPSE_REGEX.matcher("{% if jinja_boolean %}").matches());
-    assertFalse(SOY_COMMAND_TO_COLLAPSE_REGEX.matcher("{% if jinja_boolean -%}").matches());
-    assertFalse(SOY_COMMAND_TO_COLLAPSE_REGEX.matcher("{%- if jinja_boolean %}").matches());
-    assertFalse(SOY_COMMAND_TO_COLLAPSE_REGEX.matcher("{%- if jinja_boolean -%}").matches());
-    assertFalse(SOY_COMMAND_TO_COLLAPSE_REGEX.matcher("{# jinja comment #}").matches());
-    assertFalse(SOY_COMMAND_TO_COLLAPSE_REGEX.matcher("{# jinja comment -#}").matches());
-    assertFalse(SOY_COMMAND_TO_COLLAPSE_REGEX.matcher("{#- jinja comment #}").matches());
-    assertFalse(SOY_COMMAND_TO_COLLAPSE_REGEX.matcher("{#- jinja comment -#}").matches());
-    assertFalse(SOY_COMMAND_TO_COLLAPSE_REGEX.matcher("<head>").matches());
+  public void testIsSoyCommandToCollapse() {
+    assertTrue(isSoyCommandToCollapse("{template abc kind=\"text\"}"));
+    assertTrue(isSoyCommandToCollapse("{if $a > $b}"));
+    assertTrue(isSoyCommandToCollapse("{/for}"));
+    assertTrue(isSoyCommandToCollapse("{@param $a: string}"));
+    assertTrue(isSoyCommandToCollapse("{@param? $a: string}"));
+    assertTrue(isSoyCommandToCollapse("{param $p: 'abc'/}"));
+    assertTrue(isSoyCommandToCollapse("{print $a |capitalized}"));
+    assertTrue(isSoyCommandToCollapse("{sp}"));
+    assertTrue(isSoyCommandToCollapse("{lb}"));
+    assertTrue(isSoyCommandToCollapse("{$param}"));
+    assertTrue(isSoyCommandToCollapse("{ $param }"));
+    assertTrue(isSoyCommandToCollapse("{'abc'}"));
+    assertFalse(isSoyCommandToCollapse("some{sp}text"));
+    assertFalse(isSoyCommandToCollapse("some text"));
+    assertFalse(isSoyCommandToCollapse("{{ jinja_variable }}"));
+    assertFalse(isSoyCommandToCollapse("{{ jinja_variable -}}"));
+    assertFalse(isSoyCommandToCollapse("{{- jinja_variable }}"));
+    assertFalse(isSoyCommandToCollapse("{{- jinja_variable -}}"));
+    assertFalse(isSoyCommandToCollapse("{% if jinja_boolean %}"));
+    assertFalse(isSoyCommandToCollapse("{% if jinja_boolean -%}"));
+    assertFalse(isSoyCommandToCollapse("{%- if jinja_boolean %}"));
+    assertFalse(isSoyCommandToCollapse("{%- if jinja_boolean -%}"));
+    assertFalse(isSoyCommandToCollapse("{# jinja comment #}"));
+    assertFalse(isSoyCommandToCollapse("{# jinja comment -#}"));
+    assertFalse(isSoyCommandToCollapse("{#- jinja comment #}"));
+    assertFalse(isSoyCommandToCollapse("{#- jinja comment -#}"));
+    assertFalse(isSoyCommandToCollapse("<head>"));
+    assertFalse(isSoyCommandToCollapse("{}"));
+    assertTrue(isSoyCommandToCollapse("{'}'}"));
+    assertTrue(isSoyCommandToCollapse("{'it\\'s'}"));
   }
 
   @Test
@@ -275,6 +278,7 @@ public class PreprocessorTest {
     assertHasOnlySoyCommands("{@param abc: string}{@param def: int}");
     assertHasOnlySoyCommands("{@param? abc: string}{@param? def: int}");
     assertHasOnlySoyCommands("{@param? abc: string} {@param? def: int}");
+    assertHasOnlySoyCommands("{if $a == '}'}");
     assertHasOtherThanSoyCommands("{$abc}");
     assertHasOtherThanSoyCommands("{ $abc }");
     assertHasOtherThanSoyCommands("{'xyz'}");
@@ -315,19 +319,19 @@ public class PreprocessorTest {
   }
 
   private static void assertHasOnlySoyCommands(String trimmedLine) {
-    assertThat(Preprocessor.HAS_ONLY_SOY_COMMANDS.apply(trimmedLine)).isTrue();
+    assertThat(Preprocessor.hasOnlySoyCommands(trimmedLine)).isTrue();
   }
 
   private static void assertHasOtherThanSoyCommands(String trimmedLine) {
-    assertThat(Preprocessor.HAS_ONLY_SOY_COMMANDS.apply(trimmedLine)).isFalse();
+    assertThat(Preprocessor.hasOnlySoyCommands(trimmedLine)).isFalse();
   }
 
   private static void assertHasEscapes(String trimmedLine) {
-    assertThat(Preprocessor.HAS_ESCAPES.apply(trimmedLine)).isTrue();
+    assertThat(Preprocessor.hasEscapes(trimmedLine)).isTrue();
   }
 
   private static void assertHasNoEscapes(String trimmedLine) {
-    assertThat(Preprocessor.HAS_ESCAPES.apply(trimmedLine)).isFalse();
+    assertThat(Preprocessor.hasEscapes(trimmedLine)).isFalse();
   }
 
   private static String lines(String... lines) {
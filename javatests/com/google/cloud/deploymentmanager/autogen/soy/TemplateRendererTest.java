@@ -21,6 +21,7 @@ import com.google.cloud.deploymentmanager.autogen.soy.TemplateRenderer.FileSet;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.io.Resources;
 import com.google.inject.Guice;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -39,6 +40,17 @@ public class TemplateRendererTest {
    */
   @Test
   public void test() throws Exception {
+    assertThat(newSanityCheckRenderer().render()).isEqualTo(sanityCheckExpectedOutput());
+  }
+
+  @Test
+  public void renderTo_streamsSameOutputAsRender() throws Exception {
+    StringBuilder out = new StringBuilder();
+    newSanityCheckRenderer().renderTo(out);
+    assertThat(out.toString()).isEqualTo(sanityCheckExpectedOutput());
+  }
+
+  private static TemplateRenderer newSanityCheckRenderer() {
     FileSet.Builder fileSet =
         Guice.createInjector(Autogen.getAutogenModule()).getInstance(FileSet.Builder.class);
     TemplateRenderer renderer =
@@ -46,17 +58,18 @@ public class TemplateRendererTest {
             .addContentFromResource(testDataResource("sanity_check.jinja.soy"))
             .build()
             .newRenderer("test.sanityCheck");
-    renderer.setData(
+    return renderer.setData(
         ImmutableMap.of(
             "description", "World's best",
             "zone", "myZone",
             "port", 12345,
             "supportFirewall", true,
             "supportStaticIp", false));
-    String expectedOutput =
-        Resources.toString(
-            Resources.getResource(testDataResource("sanity_check.jinja")), StandardCharsets.UTF_8);
-    assertThat(renderer.render()).isEqualTo(expectedOutput);
+  }
+
+  private static String sanityCheckExpectedOutput() throws IOException {
+    return Resources.toString(
+        Resources.getResource(testDataResource("sanity_check.jinja")), StandardCharsets.UTF_8);
   }
 
   private static String testDataResource(String resName) {